@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * What an agent connection costs before any script runs: reading the install
+ * state of the agent, the old slave_setup.ini included, recording the deployed
+ * items and writing the state back.
+ */
+@JmhBenchmark
+public class InstallStateBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Items {
+
+        @Param({"10", "100", "1000", "10000"})
+        public int itemCount;
+
+        List<SetupConfigItem> items;
+        List<InstallState.Record> records;
+        String text;
+        String legacyIni;
+
+        @Setup
+        public void setup() {
+            items = new ArrayList<>();
+            records = new ArrayList<>();
+            StringBuilder ini = new StringBuilder();
+            for (int i = 0; i < itemCount; i++) {
+                SetupConfigItem item =
+                        new SetupConfigItem("prepare " + i, null, "install " + i, false, "label-" + i + " && linux");
+                items.add(item);
+                records.add(new InstallState.Record(item.getIdentity(), Integer.toString(i), i, 10, 0));
+                ini.append(item.remoteCache()).append("\r\n");
+            }
+            InstallState state = new InstallState();
+            records.forEach(state::put);
+            text = state.toText();
+            legacyIni = ini.toString();
+        }
+    }
+
+    @Benchmark
+    public InstallState parseState(Items items) {
+        return InstallState.fromText(items.text);
+    }
+
+    @Benchmark
+    public InstallState migrateLegacyIni(Items items) {
+        return InstallState.fromLegacyIni(items.legacyIni);
+    }
+
+    @Benchmark
+    public InstallState recordItems(Items items) {
+        InstallState state = new InstallState();
+        for (InstallState.Record record : items.records) {
+            state.put(record);
+        }
+        return state;
+    }
+
+    @Benchmark
+    public String writeState(Items items) {
+        return InstallState.fromText(items.text).toText();
+    }
+}
@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Label matching of the setup items against a node, as done on every agent
+ * connection, and the label auto completion of the configuration page, with
+ * nodes carrying many labels.
+ */
+@JmhBenchmark
+public class LabelBenchmark {
+
+    public static class Labels extends JmhBenchmarkState {
+
+        @Param({"10", "1000", "10000"})
+        public int itemCount;
+
+        @Param({"10", "1000", "50000"})
+        public int labelCount;
+
+        List<SetupConfigItem> items;
+        Node node;
+
+        @Override
+        public void setup() throws Exception {
+            StringBuilder labels = new StringBuilder();
+            for (int i = 0; i < labelCount; i++) {
+                labels.append("label-").append(i).append(' ');
+            }
+            DumbSlave slave = new DumbSlave("bench", Files.createTempDirectory("bench").toString(), new JNLPLauncher());
+            slave.setLabelString(labels.toString());
+            getJenkins().addNode(slave);
+            node = slave;
+
+            items = new ArrayList<>();
+            for (int i = 0; i < itemCount; i++) {
+                // one item in two matches the node
+                String label = i % 2 == 0 ? "label-" + (i % labelCount) : "other-" + i;
+                items.add(new SetupConfigItem(null, null, "install " + i, false, label + " && !windows"));
+            }
+            SetupConfig.get().setSetupConfigItems(items);
+            LabelMatchIndex.get().invalidate();
+        }
+    }
+
+    @Benchmark
+    public void utilsLabelMatches(Labels state, Blackhole blackhole) {
+        for (SetupConfigItem item : state.items) {
+            blackhole.consume(Utils.labelMatches(item.getAssignedLabelString(), state.node));
+        }
+    }
+
+    @Benchmark
+    public void labelMatchIndex(Labels state, Blackhole blackhole) {
+        for (SetupConfigItem item : state.items) {
+            blackhole.consume(LabelMatchIndex.get().matches(item, state.node));
+        }
+    }
+
+    @Benchmark
+    public void autoCompleteSeeds(Blackhole blackhole) {
+        blackhole.consume(new SetupConfig.AutoCompleteSeeder("label-1").getSeeds());
+        blackhole.consume(new SetupConfig.AutoCompleteSeeder("linux && \"label-1").getSeeds());
+        blackhole.consume(new SetupConfig.AutoCompleteSeeder("linux && ").getSeeds());
+    }
+
+    @Benchmark
+    public Object autoCompleteLabels(Labels state) {
+        return SetupConfig.get().doAutoCompleteAssignedLabelString("label-1");
+    }
+}
@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The SetupConfigItem accessors called for every item on every agent
+ * connection. The fresh variants build new items each time, as happens after a
+ * configuration save, so the cached label string is measured cold as well.
+ */
+@JmhBenchmark
+public class SetupConfigItemBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Items {
+
+        @Param({"10", "100", "1000", "10000"})
+        public int itemCount;
+
+        List<SetupConfigItem> items;
+
+        @Setup
+        public void setup() {
+            items = new ArrayList<>();
+            for (int i = 0; i < itemCount; i++) {
+                items.add(new SetupConfigItem(
+                        "prepare " + i, null, "install " + i, false, "(label-" + i + " || docker) && !windows"));
+            }
+        }
+
+        List<SetupConfigItem> fresh() {
+            List<SetupConfigItem> copies = new ArrayList<>(items.size());
+            for (SetupConfigItem item : items) {
+                copies.add(new SetupConfigItem(
+                        item.getPrepareScript(),
+                        item.getFilesDir(),
+                        item.getCommandLine(),
+                        item.getDeployNow(),
+                        item.getIdentity()));
+            }
+            return copies;
+        }
+    }
+
+    @Benchmark
+    public void assignedLabelString(Items items, Blackhole blackhole) {
+        for (SetupConfigItem item : items.items) {
+            blackhole.consume(item.getAssignedLabelString());
+        }
+    }
+
+    @Benchmark
+    public void assignedLabelStringFresh(Items items, Blackhole blackhole) {
+        for (SetupConfigItem item : items.fresh()) {
+            blackhole.consume(item.getAssignedLabelString());
+        }
+    }
+
+    @Benchmark
+    public void remoteCache(Items items, Blackhole blackhole) {
+        for (SetupConfigItem item : items.items) {
+            blackhole.consume(item.remoteCache());
+        }
+    }
+
+    @Benchmark
+    public void hashCodes(Items items, Blackhole blackhole) {
+        for (SetupConfigItem item : items.items) {
+            blackhole.consume(item.hashCode());
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Setup of a node run by the agent itself.
+ *
+ * The controller asks in one call which files of each item the agent misses,
+ * then sends in a second call the whole plan with a single archive of those
+ * files. The items whose whole tree is missing get the archive of their version
+ * packed once for all agents by the ArchiveCache instead. The agent copies the
+ * files of each item, runs its command line and records it, in order, stopping
+ * at the first failure; then writes its state once. The output of the command
+ * lines is streamed back as they run.
+ */
+public class AgentSetup {
+
+    /**
+     * One item to set up, its prepare script already ran on the controller
+     */
+    public static class Step implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String identity;
+        private final String version;
+        private final String script;
+
+        /**
+         * name of the stored manifest and content of the files dir, null if the item has no files
+         */
+        private final String manifestName;
+
+        private final FileManifest manifest;
+
+        /**
+         * files dir on the controller, never sent
+         */
+        private final transient File filesDir;
+
+        public Step(String identity, String version, String script, File filesDir, FileManifest manifest) {
+            this.identity = identity;
+            this.version = version;
+            this.script = script;
+            this.filesDir = filesDir;
+            this.manifest = filesDir == null ? null : manifest;
+            this.manifestName = filesDir == null ? null : FileSync.manifestName(filesDir);
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+    }
+
+    private final List<Step> steps;
+
+    private final EnvVars environment;
+
+    private long bytesSent;
+
+    public AgentSetup(List<Step> steps, EnvVars environment) {
+        this.steps = new ArrayList<>(steps);
+        this.environment = environment == null ? new EnvVars() : environment;
+    }
+
+    /**
+     * Runs the setup on the agent, which writes state with the new records.
+     *
+     * @param root  FilePath of the agent root
+     * @param state InstallState of the agent, updated with the records of the steps which ran
+     * @param log   SetupLog of the node setup
+     * @return List of the records of the steps which ran, the last one failed if it is shorter than the plan
+     * @throws IOException          IO error accessing disk or the agent
+     * @throws InterruptedException Broken pipe
+     */
+    public List<InstallState.Record> execute(FilePath root, InstallState state, SetupLog log)
+            throws IOException, InterruptedException {
+        if (steps.isEmpty()) return new ArrayList<>();
+
+        List<FileManifest> manifests = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (Step step : steps) {
+            manifests.add(step.manifest);
+            names.add(step.manifestName);
+        }
+        List<List<String>> changed = root.act(new Survey(names, manifests));
+
+        SetupConfig config = SetupConfig.get();
+        ArchiveCache.Codec codec = config.getArchiveCompression();
+        List<ArchiveCache.Lease> leases = new ArrayList<>();
+        List<InputStream> opened = new ArrayList<>();
+        File archive = null;
+        bytesSent = 0;
+        try {
+            List<List<String>> delta = new ArrayList<>();
+            List<InputStream> trees = new ArrayList<>();
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                List<String> missing = changed.get(i);
+                if (missing.isEmpty() || missing.size() < step.manifest.size() || !ArchiveCache.isEnabled()) {
+                    delta.add(missing);
+                    trees.add(null);
+                    continue;
+                }
+                // a whole tree, as on a fresh agent: the archive of this version packed once for all of them
+                ArchiveCache.Lease lease = ArchiveCache.get()
+                        .lease(step.filesDir, step.manifest, codec, config.getArchiveCompressionLevel());
+                leases.add(lease);
+                InputStream in = Files.newInputStream(lease.getFile().toPath());
+                opened.add(in);
+                bytesSent += lease.getFile().length();
+                delta.add(List.of());
+                trees.add(new RemoteInputStream(in, RemoteInputStream.Flag.GREEDY));
+            }
+            archive = pack(delta, codec);
+            InputStream in = null;
+            if (archive != null) {
+                bytesSent += archive.length();
+                in = Files.newInputStream(archive.toPath());
+                opened.add(in);
+            }
+
+            state.nextGeneration();
+            Run run = new Run(
+                    steps,
+                    environment,
+                    SetupPlan.configuredShell(),
+                    state.toText(),
+                    in == null ? null : new RemoteInputStream(in, RemoteInputStream.Flag.GREEDY),
+                    trees,
+                    codec.getCompression(),
+                    new RemoteOutputStream(log.getListener().getLogger()));
+            List<InstallState.Record> records = root.act(run);
+            for (InstallState.Record record : records) {
+                state.put(record);
+            }
+            return records;
+        } finally {
+            try {
+                for (InputStream in : opened) {
+                    in.close();
+                }
+            } finally {
+                leases.forEach(ArchiveCache.Lease::close);
+                if (archive != null) Files.deleteIfExists(archive.toPath());
+            }
+        }
+    }
+
+    /**
+     * @return long size of the archives of missing files sent by execute, 0 if none was needed
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Packs the missing files of every step in a temporary archive, under a
+     * directory named after the index of the step. Only done for the files an
+     * agent misses out of a tree it already has, so the archive is small.
+     */
+    private File pack(List<List<String>> changed, ArchiveCache.Codec codec) throws IOException, InterruptedException {
+        List<File> dirs = new ArrayList<>();
+        boolean empty = true;
+        for (int i = 0; i < steps.size(); i++) {
+            dirs.add(steps.get(i).filesDir);
+            empty &= changed.get(i).isEmpty();
+        }
+        if (empty) return null;
+
+        File archive = File.createTempFile("agent-setup", codec.getExtension());
+        try (OutputStream out = ArchiveCache.open(archive, codec, SetupConfig.get().getArchiveCompressionLevel())) {
+            new FilePath(archive.getParentFile()).tar(out, new StepScanner(dirs, changed));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            Files.deleteIfExists(archive.toPath());
+            throw e;
+        }
+        return archive;
+    }
+
+    /**
+     * Visits the changed files of every step directory as "index/path".
+     */
+    static class StepScanner extends DirScanner {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> dirs;
+        private final List<List<String>> paths;
+
+        StepScanner(List<File> dirs, List<List<String>> paths) {
+            this.dirs = dirs;
+            this.paths = paths;
+        }
+
+        @Override
+        public void scan(File ignored, FileVisitor visitor) throws IOException {
+            for (int i = 0; i < dirs.size(); i++) {
+                for (String path : paths.get(i)) {
+                    File file = new File(dirs.get(i), path);
+                    if (file.isFile()) visitor.visit(file, i + "/" + path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs on the agent: which files of each step are missing, without changing anything.
+     */
+    static class Survey extends MasterToSlaveFileCallable<List<List<String>>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> names;
+        private final List<FileManifest> manifests;
+
+        Survey(List<String> names, List<FileManifest> manifests) {
+            this.names = names;
+            this.manifests = manifests;
+        }
+
+        @Override
+        public List<List<String>> invoke(File root, VirtualChannel channel) throws IOException {
+            List<List<String>> changed = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                FileManifest manifest = manifests.get(i);
+                changed.add(
+                        manifest == null
+                                ? new ArrayList<>()
+                                : manifest.changedSince(FileSync.readManifest(root, names.get(i)), root));
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Runs on the agent: the whole setup.
+     */
+    static class Run extends MasterToSlaveFileCallable<List<InstallState.Record>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Step> steps;
+        private final EnvVars environment;
+        private final String shell;
+        private final String stateText;
+        private final InputStream archive;
+
+        /**
+         * cached archive of the whole tree of each step, null for the steps whose files are in archive
+         */
+        private final List<InputStream> trees;
+
+        private final FilePath.TarCompression compression;
+        private final OutputStream out;
+
+        Run(
+                List<Step> steps,
+                EnvVars environment,
+                String shell,
+                String stateText,
+                InputStream archive,
+                List<InputStream> trees,
+                FilePath.TarCompression compression,
+                OutputStream out) {
+            this.steps = steps;
+            this.environment = environment;
+            this.shell = shell;
+            this.stateText = stateText;
+            this.archive = archive;
+            this.trees = new ArrayList<>(trees);
+            this.compression = compression;
+            this.out = out;
+        }
+
+        @Override
+        public List<InstallState.Record> invoke(File root, VirtualChannel channel)
+                throws IOException, InterruptedException {
+            TaskListener listener = new StreamTaskListener(out, StandardCharsets.UTF_8);
+            Launcher launcher = new Launcher.LocalLauncher(listener);
+            InstallState state = InstallState.fromText(stateText);
+            List<InstallState.Record> records = new ArrayList<>();
+
+            Path staging = Files.createTempDirectory(root.toPath(), ".slave_setup-incoming");
+            try {
+                if (archive != null) new FilePath(staging.toFile()).untarFrom(archive, compression);
+                for (int i = 0; i < trees.size(); i++) {
+                    if (trees.get(i) == null) continue;
+                    new FilePath(staging.resolve(Integer.toString(i)).toFile()).untarFrom(trees.get(i), compression);
+                }
+
+                for (int i = 0; i < steps.size(); i++) {
+                    Step step = steps.get(i);
+                    long start = System.currentTimeMillis();
+                    listener.getLogger().println("[%d/%d] %s".formatted(i + 1, steps.size(), step.identity));
+                    if (step.manifest != null) {
+                        FileManifest installed = FileSync.readManifest(root, step.manifestName);
+                        FileSync.removeGone(root, step.manifestName, step.manifest, installed);
+                        moveInto(staging.resolve(Integer.toString(i)), root.toPath());
+                        FileSync.writeManifest(root, step.manifestName, step.manifest);
+                    }
+                    int exitStatus = step.script == null
+                            ? 0
+                            : SetupPlan.runScript(launcher, listener, root, step.script, environment, shell);
+
+                    long now = System.currentTimeMillis();
+                    InstallState.Record record =
+                            new InstallState.Record(step.identity, step.version, now, now - start, exitStatus);
+                    state.put(record);
+                    records.add(record);
+                    if (exitStatus != 0) break;
+                }
+            } finally {
+                // whatever happened, what ran is recorded
+                InstallStateIndex.writeAgentState(root, state.toText());
+                deleteRecursively(staging);
+                listener.getLogger().flush();
+            }
+            return records;
+        }
+
+        private static void moveInto(Path from, Path to) throws IOException {
+            if (!Files.isDirectory(from)) return;
+            Files.walkFileTree(from, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Path target = to.resolve(from.relativize(file));
+                    Files.createDirectories(target.getParent());
+                    Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        private static void deleteRecursively(Path dir) throws IOException {
+            if (!Files.exists(dir)) return;
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                    Files.delete(d);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.FilePath;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import jenkins.model.Jenkins;
+
+/**
+ * Controller side cache of packed setup files directories.
+ *
+ * Every distinct content of a directory, identified by the digest of its
+ * FileManifest, is packed once and the very same archive is streamed to every
+ * agent needing the whole tree. Archives not used recently are evicted once the
+ * cache grows over its configured size, except the ones being streamed.
+ */
+public class ArchiveCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ArchiveCache.class.getName());
+
+    /**
+     * Compression applied to the cached archives
+     */
+    public enum Codec {
+        NONE(FilePath.TarCompression.NONE, ".tar"),
+        GZIP(FilePath.TarCompression.GZIP, ".tar.gz");
+
+        private final FilePath.TarCompression compression;
+        private final String extension;
+
+        Codec(FilePath.TarCompression compression, String extension) {
+            this.compression = compression;
+            this.extension = extension;
+        }
+
+        public FilePath.TarCompression getCompression() {
+            return compression;
+        }
+
+        /**
+         * @return String extension of the archives compressed so
+         */
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private static final ArchiveCache INSTANCE = new ArchiveCache();
+
+    /**
+     * one lock per archive being looked up, so a version is packed only once even if many agents ask for it at
+     * the same time
+     */
+    private final ConcurrentMap<String, Object> packing = new ConcurrentHashMap<>();
+
+    /**
+     * leases held on each archive, guarded by this; an archive with leases is never evicted
+     */
+    private final Map<File, Integer> leases = new HashMap<>();
+
+    public static ArchiveCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return true if the global configuration allows to cache archives
+     */
+    public static boolean isEnabled() {
+        return SetupConfig.get().getArchiveCacheSizeMB() > 0;
+    }
+
+    private File getDirectory() {
+        return new File(Jenkins.get().getRootDir(), "slave-setup/archives");
+    }
+
+    /**
+     * Streams the whole content of localDir into remoteRoot, packing it first if
+     * this version isn't cached yet.
+     *
+     * @param localDir   File directory on the controller
+     * @param manifest   FileManifest of localDir
+     * @param remoteRoot FilePath to extract the archive into
+     * @return long number of bytes sent
+     * @throws IOException          IO error while accessing disk
+     * @throws InterruptedException BrokenPipe
+     */
+    public long send(File localDir, FileManifest manifest, FilePath remoteRoot)
+            throws IOException, InterruptedException {
+        SetupConfig config = SetupConfig.get();
+        Codec codec = config.getArchiveCompression();
+        try (Lease lease = lease(localDir, manifest, codec, config.getArchiveCompressionLevel());
+                InputStream in = Files.newInputStream(lease.getFile().toPath())) {
+            // the agent extracts while the archive is still being received
+            remoteRoot.untarFrom(in, codec.getCompression());
+            return lease.getFile().length();
+        }
+    }
+
+    /**
+     * Leases the archive of the given version of localDir, packing it if needed.
+     * The archive is kept in the cache until the lease is closed.
+     *
+     * @param localDir File directory on the controller
+     * @param manifest FileManifest of localDir
+     * @param codec    Codec to compress with
+     * @param level    int compression level, 1 (fastest) to 9 (smallest)
+     * @return Lease on the archive in the cache
+     * @throws IOException          IO error while accessing disk
+     * @throws InterruptedException interrupted while packing
+     */
+    Lease lease(File localDir, FileManifest manifest, Codec codec, int level) throws IOException, InterruptedException {
+        String name = manifest.digest() + "-" + codec.name().toLowerCase() + level + codec.extension;
+        File archive = new File(getDirectory(), name);
+
+        Object lock = packing.computeIfAbsent(name, k -> new Object());
+        try {
+            synchronized (lock) {
+                if (!acquire(archive)) pack(localDir, manifest, codec, level, archive);
+            }
+        } finally {
+            // threads already waiting on lock find the archive packed, later ones get a new lock
+            packing.remove(name, lock);
+        }
+        evict(SetupConfig.get().getArchiveCacheSizeMB() * 1024L * 1024L);
+        return new Lease(archive);
+    }
+
+    /**
+     * Takes a lease on archive if it is in the cache.
+     *
+     * @return true if archive exists and is now leased
+     */
+    private synchronized boolean acquire(File archive) {
+        if (!archive.isFile()) return false;
+        // LRU: the modification time is the last use
+        archive.setLastModified(System.currentTimeMillis());
+        leases.merge(archive, 1, Integer::sum);
+        return true;
+    }
+
+    private synchronized void release(File archive) {
+        leases.computeIfPresent(archive, (file, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Moves a packed archive into the cache, already leased so it can't be evicted before being read.
+     */
+    private synchronized void publish(File tmp, File archive) throws IOException {
+        Files.move(tmp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        leases.merge(archive, 1, Integer::sum);
+    }
+
+    /**
+     * Packs archive and leases it.
+     */
+    private void pack(File localDir, FileManifest manifest, Codec codec, int level, File archive)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(archive.getParentFile().toPath());
+        // unique, in case an evicted version is packed again by a thread holding an older lock
+        File tmp = Files.createTempFile(archive.getParentFile().toPath(), archive.getName(), ".tmp").toFile();
+
+        // only the files of the manifest, so the archive matches the digest it is stored under
+        FileSync.ListScanner scanner = new FileSync.ListScanner(new ArrayList<>(manifest.getEntries().keySet()));
+        try (OutputStream out = open(tmp, codec, level)) {
+            new FilePath(localDir).tar(out, scanner);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        publish(tmp, archive);
+        LOGGER.log(Level.FINE, "Packed {0} into {1} ({2} bytes) in {3} ms", new Object[] {
+            localDir, archive.getName(), archive.length(), System.currentTimeMillis() - start
+        });
+    }
+
+    /**
+     * @param file  File to write the archive to
+     * @param codec Codec to compress with
+     * @param level int compression level, 1 to 9
+     * @return OutputStream writing the archive compressed with codec
+     * @throws IOException if the file can't be created
+     */
+    static OutputStream open(File file, Codec codec, int level) throws IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()));
+        if (codec == Codec.NONE) return out;
+        return new GZIPOutputStream(out, 64 * 1024) {
+            {
+                def.setLevel(Math.max(1, Math.min(9, level)));
+            }
+        };
+    }
+
+    /**
+     * Removes the least recently used archives not leased until the cache fits in capacity.
+     *
+     * @param capacity long maximum size of the cache in bytes
+     */
+    synchronized void evict(long capacity) {
+        File[] archives = getDirectory().listFiles(f -> f.isFile() && !f.getName().endsWith(".tmp"));
+        if (archives == null) return;
+
+        long total = 0;
+        for (File archive : archives) {
+            total += archive.length();
+        }
+        List<File> byAge = new ArrayList<>(Arrays.asList(archives));
+        byAge.sort(Comparator.comparingLong(File::lastModified));
+        for (File archive : byAge) {
+            if (total <= capacity) break;
+            if (leases.containsKey(archive)) continue;
+            long size = archive.length();
+            // an archive whose lease just ended may still be open on some platforms, retried next time
+            if (archive.delete()) {
+                total -= size;
+                LOGGER.log(Level.FINE, "Evicted {0} from the archive cache", archive.getName());
+            }
+        }
+    }
+
+    /**
+     * Use of a cached archive, which stays in the cache until closed.
+     */
+    final class Lease implements AutoCloseable {
+
+        private final File archive;
+        private boolean closed;
+
+        private Lease(File archive) {
+            this.archive = archive;
+        }
+
+        /**
+         * @return File archive in the cache
+         */
+        File getFile() {
+            return archive;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ArchiveCache.this) {
+                if (closed) return;
+                closed = true;
+                release(archive);
+            }
+        }
+    }
+}
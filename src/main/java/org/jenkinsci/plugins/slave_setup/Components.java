@@ -3,13 +3,32 @@ package org.jenkinsci.plugins.slave_setup;
 import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Node;
 import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 
 /**
@@ -22,17 +41,24 @@ import org.apache.commons.lang.StringUtils;
  */
 public class Components {
 
-    private static final String FILENAME = "slave_setup.ini";
-
     private FilePath remotePath;
     private List<SetupConfigItem> configs;
     private Computer slave;
-    private static TaskListener listener;
+    /**
+     * gets the lines of the rollouts as a whole, each node setup logs to its own SetupLogSink
+     */
+    private static TaskListener defaultListener =
+            new LogTaskListener(Logger.getLogger(Components.class.getName()), Level.INFO);
+    private final SetupLog log;
 
-    private List<String> cache;
-    private static boolean debugMode = false;
+    private InstallState state;
+
+    /**
+     * records added to the state since it was last written on the slave
+     */
+    private final List<InstallState.Record> unflushed = new ArrayList<>();
+    private static boolean defaultDebugMode = false;
     private FilePath configFile;
-    private String remoteSeparator;
 
     /**
      *
@@ -47,22 +73,33 @@ public class Components {
      *
      */
     public Components(FilePath remoteRootPath, Computer slave) throws IOException, InterruptedException {
+        this(remoteRootPath, slave, defaultLog());
+    }
+
+    /**
+     * Same as Components(remoteRootPath, slave) but logging to the given listener
+     * instead of the global one set by setLogger.
+     *
+     * @param remoteRootPath FilePath of remote/slave rootPath
+     * @param slave          Computer slave.
+     * @param log            SetupLog of this node setup
+     *
+     * @throws InterruptedException Pipe Broken
+     * @throws IOException          IO error while accessing configFile
+     */
+    public Components(FilePath remoteRootPath, Computer slave, SetupLog log)
+            throws IOException, InterruptedException {
         this.remotePath = remoteRootPath;
         this.slave = slave;
+        this.log = log;
         this.Initialize();
     }
 
     private void Initialize() throws IOException, InterruptedException {
 
-        this.configFile = this.remotePath.child(FILENAME);
-        if (!this.configFile.exists()) {
-            this.configFile.write();
-            Components.debug("New config created on " + this.configFile.getRemote());
-        }
-
-        this.remoteSeparator = Utils.osLineSeparator(this.remotePath.getRemote());
+        this.configFile = this.remotePath.child(InstallState.FILENAME);
         this.configs = SetupConfig.get().getSetupConfigItems();
-        this.cache = createConfigStream();
+        this.state = createConfigStream();
     }
 
     /**
@@ -78,7 +115,22 @@ public class Components {
      *
      */
     public Components(Computer slave) throws IOException, InterruptedException {
+        this(slave, defaultLog());
+    }
+
+    /**
+     * Same as Components(slave) but logging to the given listener instead of the
+     * global one set by setLogger.
+     *
+     * @param slave Computer slave.
+     * @param log   SetupLog of this node setup
+     *
+     * @throws InterruptedException Pipe Broken
+     * @throws IOException          IO error while accessing configFile
+     */
+    public Components(Computer slave, SetupLog log) throws IOException, InterruptedException {
         this.slave = slave;
+        this.log = log;
         Node node = this.slave.getNode();
         if (node == null) throw new InterruptedException("slave return null RootPath");
 
@@ -96,54 +148,41 @@ public class Components {
      * @return Boolean checking if the cache is empty or not to tag it as newDeploy
      */
     public boolean newDeploy() {
-        return this.getCache().size() == 0;
+        return this.state.isEmpty();
     }
 
     /**
-     * Required method to define logging procedures
+     * Defines the listener used by the static printers and by the Components
+     * created without their own SetupLog, the log of this class by default.
      *
      * @param listener TaskListener of the job
      */
     public static void setLogger(TaskListener listener) {
-        Components.listener = listener;
+        Components.defaultListener = listener;
     }
 
     /**
-     * Returns current cache, if null will create new one
-     *
-     * @return List<String> of components
+     * @return SetupLog printing to the listener set by setLogger
      */
-    private List<String> getCache() {
-        if (cache == null) cache = new ArrayList<>();
-        return cache;
+    static SetupLog defaultLog() {
+        return new SetupLog(defaultListener, defaultDebugMode);
     }
 
     /**
-     * Appends element to cache, and prevents to create duplicated items with
-     * diferent or same versions.
-     *
-     * @param component String of component/installation to add.
+     * @return SetupLog of this node setup
      */
-    private void addCache(String component) {
-
-        // slow logic to find old version installations
-        boolean writed = false;
-
-        if (getCache().contains(component)) {
-            return;
-        }
+    public SetupLog getLog() {
+        return log;
+    }
 
-        // Execute getCache() at firstime, to prevent empty list
-        for (int i = 0; i < getCache().size(); i++) {
-            if (cache.get(i).contains(component.split(SetupConfigItem.DELIMITER)[0])) {
-                cache.set(i, component);
-                writed = true;
-                break;
-            }
-        }
-        if (writed != true) {
-            cache.add(component); // if we don't write cache yet, will add at end
-        }
+    /**
+     * Returns what is installed on the slave, as read when this manager was created
+     * plus the deployments done since.
+     *
+     * @return InstallState of the slave
+     */
+    public InstallState getState() {
+        return state;
     }
 
     /**
@@ -156,12 +195,35 @@ public class Components {
      *
      */
     public void doSetup() throws AbortException, IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            this.setupAll();
+            this.markUpToDate();
+        } finally {
+            this.timed(SetupMetrics.Phase.SETUP, null, start);
+        }
+    }
+
+    private void setupAll() throws IOException, InterruptedException {
         if (!this.newDeploy()) {
             // If slave contains some setups, will read cache data from slave disk
-            Components.info("Updating existing installations for " + slave.getName());
-        } else Components.info("Executing first install for " + slave.getName());
+            log.info("Updating existing installations for " + slave.getName());
+        } else log.info("Executing first install for " + slave.getName());
 
-        Components.debug("Given cache contains this lines:\r\n " + String.join(remoteSeparator, cache));
+        log.debug("Given cache contains this lines:\r\n " + state);
+        SetupGraph graph = this.graph();
+        if (isAgentMode()) {
+            this.agentSetup(graph.getOrder());
+            return;
+        }
+        if (isBatched()) {
+            this.batchSetup(graph.getOrder());
+            return;
+        }
+        if (isGraphed(graph)) {
+            this.graphSetup(graph, configs);
+            return;
+        }
         for (SetupConfigItem item : configs) {
             this.singleSetup(item);
         }
@@ -180,20 +242,20 @@ public class Components {
      *
      */
     public void singleSetup(SetupConfigItem item) throws IOException, InterruptedException {
-        if (Utils.labelMatches(item.getAssignedLabelString(), slave)) {
+        if (LabelMatchIndex.get().matches(item, slave)) {
 
-            Components.debug("Start executing scripts for " + item.getAssignedLabelString() + " with version "
-                    + item.hashCode());
+            log.debug("Start executing scripts for " + item.getAssignedLabelString() + " with version "
+                    + item.getVersion());
 
-            if (!getCache().contains(item.remoteCache())) {
-                Components.info("Installing " + item.getAssignedLabelString());
+            if (!state.isInstalled(item.getIdentity(), item.getVersion())) {
+                log.info("Installing " + item.getAssignedLabelString());
                 this.doDeploy(item);
                 // 6.6.18 Aaron, At this point we only flush cache wen something is finished
                 // install.
                 this.closeConfigStream();
-                Components.info("Install " + item.getAssignedLabelString() + " succeded");
+                log.info("Install " + item.getAssignedLabelString() + " succeded");
             } else
-                Components.info(
+                log.info(
                         "%s slave have last version of %s".formatted(slave.getName(), item.getAssignedLabelString()));
         }
     }
@@ -207,12 +269,39 @@ public class Components {
      * @throws AbortException       User close/Cancelled
      */
     public void doConfig() throws AbortException, IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            this.configAll();
+            this.markUpToDate();
+        } finally {
+            this.timed(SetupMetrics.Phase.SETUP, null, start);
+        }
+    }
+
+    private void configAll() throws IOException, InterruptedException {
         if (!this.newDeploy()) {
             // If slave contains some setups, will read cache data from slave disk
-            Components.info("Updating existing installations for " + slave.getName());
-        } else Components.info("Executing first install for " + slave.getName());
+            log.info("Updating existing installations for " + slave.getName());
+        } else log.info("Executing first install for " + slave.getName());
 
-        Components.debug("Given cache contains this lines:\r\n " + String.join(remoteSeparator, cache));
+        log.debug("Given cache contains this lines:\r\n " + state);
+        SetupGraph graph = this.graph();
+        List<SetupConfigItem> deployNow = new ArrayList<>();
+        for (SetupConfigItem item : configs) {
+            if (item.getDeployNow()) deployNow.add(item);
+        }
+        if (isAgentMode()) {
+            this.agentSetup(graph.inOrder(deployNow));
+            return;
+        }
+        if (isBatched()) {
+            this.batchSetup(graph.inOrder(deployNow));
+            return;
+        }
+        if (isGraphed(graph)) {
+            this.graphSetup(graph, deployNow);
+            return;
+        }
         for (SetupConfigItem item : configs) {
             if (!item.getDeployNow()) continue;
             this.singleSetup(item);
@@ -221,54 +310,308 @@ public class Components {
     }
 
     /**
-     * Iterates over all given computers performing the doConfig for each computer
+     * Writes on the slave the fingerprint of the items applying to it once all
+     * of them are installed, so its next connection needs nothing more than
+     * checking it, see SetupFingerprint.
      *
-     * @param activeSlaves List of the conected slaveComputers
-     * @return Boolean telling if all the node execution went ok with true and error
-     *         with false.
-     */
-    public static boolean doConfigSetups(List<Computer> activeSlaves) {
-        boolean succeded = true;
-        for (Computer slave : activeSlaves) {
-            if (slave.isOffline()) {
-                Components.info(slave.getName() + " is offline");
+     * @throws InterruptedException If connection is broken
+     * @throws IOException          IOErrors accessing the slave
+     */
+    private void markUpToDate() throws IOException, InterruptedException {
+        Node node = slave.getNode();
+        if (node == null) return;
+        List<SetupConfigItem> items = LabelMatchIndex.get().getItems(node);
+        for (SetupConfigItem item : items) {
+            if (!state.isInstalled(item.getIdentity(), item.getVersion())) return;
+        }
+        SetupFingerprint.write(remotePath, SetupFingerprint.of(items));
+    }
+
+    private static boolean isBatched() {
+        return SetupConfig.get().getExecutionMode() == SetupPlan.ExecutionMode.BATCHED;
+    }
+
+    private static boolean isAgentMode() {
+        return SetupConfig.get().getExecutionMode() == SetupPlan.ExecutionMode.AGENT;
+    }
+
+    /**
+     * Items are deployed following their dependencies as soon as they are
+     * declared or several items may run at the same time, in list order one at a
+     * time otherwise.
+     */
+    private static boolean isGraphed(SetupGraph graph) {
+        return graph.hasDependencies() || SetupConfig.get().getMaxParallelItems() > 1;
+    }
+
+    /**
+     * @return SetupGraph of the configured items
+     * @throws AbortException if their dependencies can't be followed
+     */
+    private SetupGraph graph() throws AbortException {
+        try {
+            return new SetupGraph(configs);
+        } catch (IllegalArgumentException e) {
+            throw new AbortException(e.getMessage());
+        }
+    }
+
+    /**
+     * Deploys the given items following their dependencies: an item starts once
+     * the items it depends on are deployed or don't apply to the slave, up to
+     * maxParallelItems at the same time. When an item fails, the items depending
+     * on it, directly or not, are skipped and the others still get deployed.
+     *
+     * @param graph SetupGraph of all the configured items
+     * @param items List of SetupConfigItem to deploy if they match the slave
+     *
+     * @throws InterruptedException If connection is broken
+     * @throws IOException          IOErrors accessing the slave
+     * @throws AbortException       a script failed
+     */
+    private void graphSetup(SetupGraph graph, List<SetupConfigItem> items) throws IOException, InterruptedException {
+        List<SetupConfigItem> pending = graph.inOrder(items);
+        if (pending.isEmpty()) return;
+        Set<SetupConfigItem> wanted = Collections.newSetFromMap(new IdentityHashMap<>());
+        wanted.addAll(pending);
+        Set<SetupConfigItem> done = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<SetupConfigItem> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        Throwable failure = null;
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(SetupConfig.get().getMaxParallelItems(), pending.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SetupGraph " + slave.getName()));
+        CompletionService<SetupConfigItem> completion = new ExecutorCompletionService<>(pool);
+        Map<Future<SetupConfigItem>, SetupConfigItem> running = new HashMap<>();
+        try {
+            while (!pending.isEmpty() || !running.isEmpty()) {
+                for (Iterator<SetupConfigItem> it = pending.iterator(); it.hasNext(); ) {
+                    SetupConfigItem item = it.next();
+                    SetupConfigItem failedDependency = null;
+                    boolean ready = true;
+                    for (SetupConfigItem dependency : graph.getDependencies(item)) {
+                        // an item which is not deployed this time is as it is on the slave
+                        if (!wanted.contains(dependency) || done.contains(dependency)) continue;
+                        if (failed.contains(dependency)) failedDependency = dependency;
+                        ready = false;
+                    }
+                    if (failedDependency != null) {
+                        log.info("Skipping %s, %s failed".formatted(item.getName(), failedDependency.getName()));
+                        failed.add(item);
+                        it.remove();
+                    } else if (ready) {
+                        Future<SetupConfigItem> future = completion.submit(() -> {
+                            this.singleSetup(item);
+                            return item;
+                        });
+                        running.put(future, item);
+                        it.remove();
+                    }
+                }
+                if (running.isEmpty()) break;
+
+                Future<SetupConfigItem> next = completion.take();
+                SetupConfigItem item = running.remove(next);
+                try {
+                    done.add(next.get());
+                } catch (ExecutionException e) {
+                    failed.add(item);
+                    if (failure == null) failure = e.getCause();
+                    log.info("Install %s failed: %s".formatted(item.getName(), e.getCause().getMessage()));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof InterruptedException) throw (InterruptedException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure != null) throw new IOException(failure);
+    }
+
+    /**
+     * Deploys the given items in batched mode: prepares and copies every pending
+     * item, then runs all their command lines in a single call to the slave and
+     * writes the state once. As in singleSetup, the first failure stops the
+     * deployment and the items deployed before it stay installed.
+     *
+     * @param items List of SetupConfigItem to deploy if they match the slave
+     *
+     * @throws InterruptedException If connection is broken
+     * @throws IOException          IOErrors accessing the slave
+     * @throws AbortException       a script failed
+     */
+    private void batchSetup(List<SetupConfigItem> items) throws IOException, InterruptedException {
+        EnvVars enviroment = SetupDeployer.createEnvVarsForComputer(this.slave);
+        List<SetupConfigItem> planned = new ArrayList<>();
+        List<SetupPlan.Step> steps = new ArrayList<>();
+        List<Long> preparation = new ArrayList<>();
+        AbortException failure = null;
+        IOException copyFailure = null;
+
+        for (SetupConfigItem item : items) {
+            if (!LabelMatchIndex.get().matches(item, slave)) continue;
+            if (state.isInstalled(item.getIdentity(), item.getVersion())) {
+                log.info("%s slave have last version of %s".formatted(slave.getName(), item.getAssignedLabelString()));
                 continue;
             }
+            log.info("Installing " + item.getAssignedLabelString());
+            long start = System.currentTimeMillis();
+            int result = prepare(item, enviroment);
+            if (result != 0) {
+                log.info("ScriptFailed " + result);
+                this.record(item, System.currentTimeMillis() - start, result);
+                failure = new AbortException("script failed!");
+                break;
+            }
             try {
-                Components manager = new Components(slave);
-                manager.doConfig();
-            } catch (Exception ex) {
-                Components.info("Failed to configure %s%nErr:%s".formatted(slave.getName(), ex.getMessage()));
-                succeded = false;
+                this.copyFiles(item);
+            } catch (IOException e) {
+                // the items planned so far still get deployed
+                copyFailure = e;
+                break;
             }
+            planned.add(item);
+            steps.add(new SetupPlan.Step(item.getIdentity(), Util.fixEmpty(item.getCommandLine())));
+            preparation.add(System.currentTimeMillis() - start);
+        }
+
+        List<SetupPlan.StepResult> results = new SetupPlan(steps, enviroment).execute(remotePath, log.getListener());
+        for (int i = 0; i < results.size(); i++) {
+            SetupConfigItem item = planned.get(i);
+            SetupPlan.StepResult result = results.get(i);
+            long duration = result.getDurationMillis();
+            SetupMetrics.get().record(SetupMetrics.Phase.COMMAND, slave.getName(), item.getIdentity(), duration);
+            this.record(item, preparation.get(i) + duration, result.getExitStatus());
+            if (result.getExitStatus() != 0) {
+                log.info("ScriptFailed " + result.getExitStatus());
+                failure = new AbortException("script failed!");
+            } else log.info("Install " + item.getAssignedLabelString() + " succeded");
         }
-        return succeded;
+        this.closeConfigStream();
+
+        if (copyFailure != null) throw copyFailure;
+        if (failure != null) throw failure;
     }
 
     /**
-     * Iterates over all the given computers list seting up or updating the
-     * installation if required.
+     * Deploys the given items in agent mode: runs the prepare scripts of every
+     * pending item on master, then hands the whole plan to the slave, which copies
+     * the files, runs the command lines and writes its state by itself. As in
+     * singleSetup, the first failure stops the deployment and the items deployed
+     * before it stay installed.
      *
-     * @param activeSlaves List conatining all the instance's slaveComputers
-     * @return Boolean telling if all the executions went ok with true.
+     * @param items List of SetupConfigItem to deploy if they match the slave
+     *
+     * @throws InterruptedException If connection is broken
+     * @throws IOException          IOErrors accessing the slave
+     * @throws AbortException       a script failed
      */
-    public static boolean doSetups(List<Computer> activeSlaves) {
-        boolean succeded = true;
-        for (Computer slave : activeSlaves) {
-            if (slave.isOffline()) {
-                Components.info(slave.getName() + " is offline");
+    private void agentSetup(List<SetupConfigItem> items) throws IOException, InterruptedException {
+        EnvVars enviroment = SetupDeployer.createEnvVarsForComputer(this.slave);
+        List<SetupConfigItem> planned = new ArrayList<>();
+        List<AgentSetup.Step> steps = new ArrayList<>();
+        AbortException failure = null;
+
+        for (SetupConfigItem item : items) {
+            if (!LabelMatchIndex.get().matches(item, slave)) continue;
+            if (state.isInstalled(item.getIdentity(), item.getVersion())) {
+                log.info("%s slave have last version of %s".formatted(slave.getName(), item.getAssignedLabelString()));
                 continue;
             }
-            try {
-                Components manager = new Components(slave);
-                manager.doSetup();
-            } catch (Exception ex) {
-                Components.info("Failed to configure %s%nErr:%s".formatted(slave.getName(), ex.getMessage()));
-                succeded = false;
+            log.info("Installing " + item.getAssignedLabelString());
+            long start = System.currentTimeMillis();
+            int result = prepare(item, enviroment);
+            if (result != 0) {
+                log.info("ScriptFailed " + result);
+                this.record(item, System.currentTimeMillis() - start, result);
+                failure = new AbortException("script failed!");
+                break;
             }
+            File filesDir = item.getFilesDir();
+            boolean hasFiles = filesDir != null && StringUtils.isNotBlank(filesDir.getPath());
+            steps.add(new AgentSetup.Step(
+                    item.getIdentity(),
+                    item.getVersion(),
+                    Util.fixEmpty(item.getCommandLine()),
+                    hasFiles ? filesDir : null,
+                    hasFiles ? FileManifest.of(filesDir) : null));
+            planned.add(item);
+        }
+
+        AgentSetup agentSetup = new AgentSetup(steps, enviroment);
+        long start = System.currentTimeMillis();
+        List<InstallState.Record> records = agentSetup.execute(remotePath, state, log);
+        if (!steps.isEmpty()) {
+            this.timed(SetupMetrics.Phase.AGENT, null, start);
+            SetupMetrics.get().recordBytes(slave.getName(), null, agentSetup.getBytesSent());
         }
+        if (!records.isEmpty()) InstallStateIndex.get().update(slave.getName(), state);
+        for (int i = 0; i < records.size(); i++) {
+            int exitStatus = records.get(i).getExitStatus();
+            if (exitStatus != 0) {
+                log.info("ScriptFailed " + exitStatus);
+                failure = new AbortException("script failed!");
+            } else log.info("Install " + planned.get(i).getAssignedLabelString() + " succeded");
+        }
+        // a prepare script failure is only known by the controller
+        if (records.isEmpty() && failure != null) this.closeConfigStream();
+
+        if (failure != null) throw failure;
+    }
 
-        return succeded;
+    /**
+     * Performs the doConfig for all given computers in parallel, bounded by the
+     * concurrency and the timeout of the global SetupConfig.
+     *
+     * @param activeSlaves List of the conected slaveComputers
+     * @return Map of node name to the result of its execution
+     * @throws InterruptedException if interrupted while waiting for the nodes
+     */
+    public static Map<String, NodeSetupResult> doConfigSetups(List<Computer> activeSlaves)
+            throws InterruptedException {
+        return doConfigSetups(activeSlaves, "config", () -> false);
+    }
+
+    /**
+     * Performs the doConfig for all given computers in parallel, the ones not
+     * started yet being skipped once superseded returns true.
+     *
+     * @param activeSlaves List of the conected slaveComputers
+     * @param run          String naming the logs of the nodes, the id of the rollout
+     * @param superseded   BooleanSupplier telling if a newer rollout replaced this one
+     * @return Map of node name to the result of its execution
+     * @throws InterruptedException if interrupted while waiting for the nodes
+     */
+    public static Map<String, NodeSetupResult> doConfigSetups(
+            List<Computer> activeSlaves, String run, BooleanSupplier superseded) throws InterruptedException {
+        return rollout(activeSlaves, Components::doConfig, run, superseded);
+    }
+
+    /**
+     * Sets up or updates the installation of all the given computers in parallel,
+     * bounded by the concurrency and the timeout of the global SetupConfig.
+     *
+     * @param activeSlaves List conatining all the instance's slaveComputers
+     * @return Map of node name to the result of its execution
+     * @throws InterruptedException if interrupted while waiting for the nodes
+     */
+    public static Map<String, NodeSetupResult> doSetups(List<Computer> activeSlaves) throws InterruptedException {
+        return rollout(activeSlaves, Components::doSetup, "setup", () -> false);
+    }
+
+    private static Map<String, NodeSetupResult> rollout(
+            List<Computer> activeSlaves, SetupRollout.NodeTask task, String run, BooleanSupplier superseded)
+            throws InterruptedException {
+        Map<String, NodeSetupResult> results =
+                SetupRollout.fromConfig(defaultListener, defaultDebugMode).run(activeSlaves, task, run, superseded);
+        for (NodeSetupResult result : results.values()) {
+            if (result.getStatus() == NodeSetupResult.Status.OFFLINE) {
+                Components.info(result.getNodeName() + " is offline");
+            }
+        }
+        return results;
     }
 
     /**
@@ -282,64 +625,134 @@ public class Components {
      */
     private void doDeploy(SetupConfigItem installInfo) throws IOException, InterruptedException {
         EnvVars enviroment = SetupDeployer.createEnvVarsForComputer(this.slave);
+        long start = System.currentTimeMillis();
 
-        if (!StringUtils.isEmpty(installInfo.getPrepareScript())) {
-            // If isn't empty script will execute on master
-            validateResponse(SetupDeployer.executeScriptOnMaster(
-                    Components.listener, installInfo.getPrepareScript(), enviroment));
-            installInfo.setPrepareScriptExecuted(true);
-        }
+        validateResponse(installInfo, start, prepare(installInfo, enviroment));
 
         // Copy files from master to slave (only if option contains some path)
-        SetupDeployer.copyFiles(installInfo.getFilesDir(), remotePath);
+        this.copyFiles(installInfo);
 
         if (!StringUtils.isEmpty(installInfo.getCommandLine())) {
             // If we had slave script, will call now.
-            validateResponse(
-                    Utils.multiOsExecutor(Components.listener, installInfo.getCommandLine(), remotePath, enviroment));
+            long commandStart = System.currentTimeMillis();
+            int result = Utils.multiOsExecutor(log.getListener(), installInfo.getCommandLine(), remotePath, enviroment);
+            this.timed(SetupMetrics.Phase.COMMAND, installInfo, commandStart);
+            validateResponse(installInfo, start, result);
         }
         // Add to cache in order to prevent reinstall this version.
-        this.addCache(installInfo.remoteCache());
+        this.record(installInfo, System.currentTimeMillis() - start, 0);
     }
 
     /**
-     * Validate execution scripts code, in order to throw exception if not
+     * Runs the prepare script of the item on master, if it has one.
      *
-     * @param r int result of launching method cointaining the script ExitCode. 0 =
-     *          OK
+     * @param item       SetupConfigItem to be deployed
+     * @param enviroment EnvVars of the slave
+     * @return int exit code of the script, 0 if there is none
+     * @throws InterruptedException For broken connection.
+     */
+    private int prepare(SetupConfigItem item, EnvVars enviroment) throws InterruptedException {
+        if (StringUtils.isEmpty(item.getPrepareScript())) return 0;
+        // If isn't empty script will execute on master, once per version if asked to
+        long start = System.currentTimeMillis();
+        int result = item.isPrepareScriptOnce()
+                ? PrepareScriptCache.get().run(item, enviroment, log)
+                : SetupDeployer.executeScriptOnMaster(log.getListener(), item.getPrepareScript(), enviroment);
+        this.timed(SetupMetrics.Phase.PREPARE, item, start);
+        if (result == 0) item.setPrepareScriptExecuted(true);
+        return result;
+    }
+
+    /**
+     * Copies the files of the item to the slave, if it has some.
+     *
+     * @param item SetupConfigItem to be deployed
+     * @throws InterruptedException For broken connection.
+     * @throws IOException          Some IOError
+     */
+    private void copyFiles(SetupConfigItem item) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long sent = SetupDeployer.syncFiles(item.getFilesDir(), remotePath, log);
+        if (sent < 0) return;
+        this.timed(SetupMetrics.Phase.FILE_COPY, item, start);
+        SetupMetrics.get().recordBytes(slave.getName(), item.getIdentity(), sent);
+    }
+
+    /**
+     * Records in SetupMetrics a phase of this setup which started at start.
+     *
+     * @param phase SetupMetrics.Phase which ran
+     * @param item  SetupConfigItem it ran for, null if it is for the whole slave
+     * @param start long epoch millis of the start of the phase
+     */
+    private void timed(SetupMetrics.Phase phase, SetupConfigItem item, long start) {
+        String itemName = item == null ? null : item.getIdentity();
+        SetupMetrics.get().record(phase, slave.getName(), itemName, System.currentTimeMillis() - start);
+    }
+
+    private void record(SetupConfigItem item, long durationMillis, int exitStatus) {
+        long now = System.currentTimeMillis();
+        InstallState.Record record =
+                new InstallState.Record(item.getIdentity(), item.getVersion(), now, durationMillis, exitStatus);
+        state.put(record);
+        synchronized (this) {
+            unflushed.add(record);
+        }
+    }
+
+    /**
+     * Validate execution scripts code, in order to throw exception if not. The
+     * failure is kept in the state so it can be told why the item is missing.
+     *
+     * @param item  SetupConfigItem being deployed
+     * @param start long epoch millis of the start of the deployment
+     * @param r     int result of launching method cointaining the script ExitCode. 0 =
+     *              OK
      *
      * @throws AbortException User close/Cancelled
      */
-    private void validateResponse(int r) throws AbortException {
+    private void validateResponse(SetupConfigItem item, long start, int r)
+            throws IOException, InterruptedException {
         if (r != 0) {
-            Components.info("ScriptFailed " + r);
+            log.info("ScriptFailed " + r);
+            this.record(item, System.currentTimeMillis() - start, r);
+            this.closeConfigStream();
             throw new AbortException("script failed!");
         }
     }
 
     /**
-     * Unlink remote file, after writing pending cache
+     * Appends the records added since the last call to the slave journal and
+     * updates the controller copy, see InstallStateIndex.append.
      *
      * @throws InterruptedException Broken pipe.
      * @throws IOException          IO error accessing slave's configFile
      */
-    private void closeConfigStream() throws IOException, InterruptedException {
-        if (getCache().size() > 0) {
-            Components.debug("Updating %s with%n%s".formatted(this.configFile, StringUtils.join(getCache(), "\r\n")));
-            configFile.write(StringUtils.join(cache, this.remoteSeparator).trim(), "UTF-8");
-        } else Components.debug("Nothing to update on slave, stream closed");
+    private synchronized void closeConfigStream() throws IOException, InterruptedException {
+        if (!unflushed.isEmpty()) {
+            log.debug("Appending %d records to the journal of %s".formatted(unflushed.size(), this.configFile));
+            long start = System.currentTimeMillis();
+            InstallStateIndex.get().append(slave.getName(), remotePath, state, unflushed);
+            unflushed.clear();
+            this.timed(SetupMetrics.Phase.CACHE_FLUSH, null, start);
+        } else log.debug("Nothing to update on slave, stream closed");
     }
 
     /**
-     * From slave read cache file, and lock it.
+     * Reads the slave state, from the controller copy when the slave one didn't
+     * change since it was written, migrating the old slave_setup.ini if there is
+     * no state file yet.
      *
-     * @return List<String> Of already installed components from slaveConfigFile
+     * @return InstallState Of already installed components from slaveConfigFile
      *
      * @throws InterruptedException Broken pipe.
      * @throws IOException          IO error accessing remotePath
      */
-    private List<String> createConfigStream() throws IOException, InterruptedException {
-        return new ArrayList<>(Arrays.asList(this.configFile.readToString().split(this.remoteSeparator)));
+    private InstallState createConfigStream() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        InstallState loaded = InstallStateIndex.get().load(slave.getName(), remotePath, log);
+        this.timed(SetupMetrics.Phase.CACHE_READ, null, start);
+        return loaded;
     }
 
     /**
@@ -348,7 +761,7 @@ public class Components {
      * @param message String to print as DEBUG
      */
     public static void debug(String message) {
-        if (Components.debugMode) Components.info(message);
+        if (Components.defaultDebugMode) Components.info(message);
     }
 
     /**
@@ -357,20 +770,27 @@ public class Components {
      * @param message String to print as INFO
      */
     public static void info(String message) {
-        if (Components.listener != null) Components.listener.getLogger().println(message);
+        if (Components.defaultListener != null) Components.defaultListener.getLogger().println(message);
+    }
+
+    /**
+     * @return true if debug mode is enabled for the setups without their own SetupLog
+     */
+    public static boolean isDebugEnabled() {
+        return Components.defaultDebugMode;
     }
 
     /**
      * Just enable debug mode
      */
     public static void enableDebug() {
-        Components.debugMode = true;
+        Components.defaultDebugMode = true;
     }
 
     /**
      * Just disable debug Mode
      */
     public static void disableDebug() {
-        Components.debugMode = false;
+        Components.defaultDebugMode = false;
     }
 }
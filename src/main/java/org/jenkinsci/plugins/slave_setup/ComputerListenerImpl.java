@@ -3,10 +3,13 @@ package org.jenkinsci.plugins.slave_setup;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.Computer;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.remoting.Channel;
 import hudson.slaves.ComputerListener;
+import hudson.util.StreamTaskListener;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -31,16 +34,42 @@ public class ComputerListenerImpl extends ComputerListener {
     public void preOnline(Computer c, Channel channel, FilePath root, TaskListener listener)
             throws IOException, InterruptedException {
 
-        // Componentes printer will print only debug messages.
-        Components.setLogger(listener); // If you remove this line will stop printing info
+        // labels found while connecting (platform, label finders...) may differ from the last time
+        LabelMatchIndex.get().invalidate(c.getName());
+        if (isUpToDate(c, root)) {
+            listener.getLogger().println("Agent setup is up to date");
+            return;
+        }
 
-        // Uncomment this line to get verbose info
-        // Components.enableDebug();
-        Components.debug("Start preOnline Procedures, ");
+        // Every connecting node gets its own log, so parallel connections don't
+        // steal each other's lines. Use Components.enableDebug() to get verbose info
+        SetupLogSink sink = SetupLogStore.get().open(c.getName(), "connect");
+        listener.getLogger().println("Setting up the agent, see its Setup Log for the details");
+        try {
+            SetupLog log =
+                    new SetupLog(new StreamTaskListener(sink, StandardCharsets.UTF_8), Components.isDebugEnabled());
+            log.debug("Start preOnline Procedures, ");
 
-        Components manager = new Components(root, c);
+            Components manager = new Components(root, c, log);
 
-        manager.doSetup();
-        Components.debug("Setup Ended");
+            manager.doSetup();
+            log.debug("Setup Ended");
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * One call to the agent telling whether it has all the items applying to it,
+     * see SetupFingerprint.
+     */
+    private static boolean isUpToDate(Computer c, FilePath root) throws IOException, InterruptedException {
+        Node node = c.getNode();
+        if (node == null) return false;
+        long start = System.currentTimeMillis();
+        boolean upToDate = SetupFingerprint.matches(root, SetupFingerprint.of(LabelMatchIndex.get().getItems(node)));
+        long duration = System.currentTimeMillis() - start;
+        SetupMetrics.get().record(SetupMetrics.Phase.FINGERPRINT, c.getName(), null, duration);
+        return upToDate;
     }
 }
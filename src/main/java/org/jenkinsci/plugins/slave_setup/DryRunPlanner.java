@@ -0,0 +1,374 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.RootAction;
+import hudson.model.labels.LabelAtom;
+import jakarta.servlet.ServletException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+import org.kohsuke.stapler.verb.GET;
+
+/**
+ * What a rollout of a list of items would do, without any call to the agents:
+ * which items would be deployed on which nodes and how many bytes of setup
+ * files would be sent to them.
+ *
+ * The version and files of each item are computed once from the FileTreeIndex,
+ * then every node is checked in parallel against the label of each item and
+ * its state in the InstallStateIndex. Nodes whose state was never recorded get
+ * all their items. The bytes are an upper bound: the whole files directory of
+ * each item, the agents only getting the files they miss.
+ *
+ * Only the files directories of the saved configuration are scanned. The ones
+ * typed in a configuration being edited are looked up in the index as they
+ * are, a directory it doesn't know yet having an unknown size and its item
+ * being deployed everywhere it applies.
+ *
+ * The plan of the saved configuration is published as JSON at
+ * JENKINS_URL/slave-setup-plan/, the one of a configuration being edited is
+ * posted to preview by the configuration page.
+ */
+public class DryRunPlanner {
+
+    private static final Logger LOGGER = Logger.getLogger(DryRunPlanner.class.getName());
+
+    /**
+     * nodes with items to deploy listed in the JSON at most
+     */
+    static final int NODES_SHOWN = 500;
+
+    /**
+     * size of a files directory not indexed yet
+     */
+    static final long UNKNOWN = -1;
+
+    /**
+     * @param items List of SetupConfigItem, saved or not, with their identities assigned
+     * @return Plan of a rollout of the items to all the nodes
+     */
+    public static Plan plan(List<SetupConfigItem> items) {
+        long start = System.nanoTime();
+        Set<File> saved = new HashSet<>();
+        for (SetupConfigItem item : SetupConfig.get().getSetupConfigItems()) {
+            saved.add(item.getFilesDir());
+        }
+        List<ItemPlan> itemPlans = new ArrayList<>();
+        for (SetupConfigItem item : items) {
+            FileManifest manifest = manifestOf(item.getFilesDir(), saved);
+            itemPlans.add(new ItemPlan(
+                    item.getIdentity(),
+                    item.getLegacyIdentity(),
+                    manifest == null ? null : item.getVersion(manifest),
+                    item.getLabel(),
+                    manifest == null ? UNKNOWN : manifest.getTotalSize()));
+        }
+        List<NodePlan> nodePlans = Jenkins.get().getNodes().parallelStream()
+                .map(node -> planNode(node, itemPlans))
+                .filter(Objects::nonNull)
+                .sorted((a, b) -> a.getName().compareTo(b.getName()))
+                .collect(Collectors.toList());
+        return new Plan(
+                Jenkins.get().getNodes().size(),
+                itemPlans,
+                nodePlans,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * @param dir   File files directory of an item
+     * @param saved Set of the files directories of the saved configuration
+     * @return FileManifest of dir, null if it isn't indexed and is only in the form being edited
+     */
+    private static FileManifest manifestOf(File dir, Set<File> saved) {
+        FileManifest known = FileTreeIndex.get().peek(dir);
+        if (known != null || !saved.contains(dir)) return known;
+        try {
+            return FileTreeIndex.get().manifestOf(dir);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read " + dir, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return NodePlan of the items to deploy on node, null if it has none
+     */
+    private static NodePlan planNode(Node node, List<ItemPlan> items) {
+        Set<LabelAtom> labels = node.getAssignedLabels();
+        if (labels == null || items.isEmpty()) return null;
+        InstallState state = InstallStateIndex.get().getState(node.getNodeName());
+        List<String> pending = new ArrayList<>();
+        long bytes = 0;
+        boolean sizeUnknown = false;
+        for (ItemPlan item : items) {
+            if (item.label == null || !item.label.matches(labels)) continue;
+            item.matched.incrementAndGet();
+            // an unknown version is one no agent has
+            if (state != null && item.version != null) {
+                // the items being edited may have been named since the state was recorded
+                state.adopt(item.legacyIdentity, item.identity, item.version);
+                if (state.isInstalled(item.identity, item.version)) continue;
+            }
+            item.pending.incrementAndGet();
+            pending.add(item.identity);
+            if (item.size == UNKNOWN) {
+                sizeUnknown = true;
+            } else {
+                bytes += item.size;
+            }
+        }
+        if (pending.isEmpty()) return null;
+        Computer computer = node.toComputer();
+        return new NodePlan(
+                node.getNodeName(),
+                computer != null && computer.isOnline(),
+                state == null,
+                pending,
+                bytes,
+                sizeUnknown);
+    }
+
+    /**
+     * Result of the planner.
+     */
+    public static class Plan {
+
+        private final int nodeCount;
+        private final List<ItemPlan> items;
+        private final List<NodePlan> nodes;
+        private final long durationMillis;
+
+        Plan(int nodeCount, List<ItemPlan> items, List<NodePlan> nodes, long durationMillis) {
+            this.nodeCount = nodeCount;
+            this.items = items;
+            this.nodes = nodes;
+            this.durationMillis = durationMillis;
+        }
+
+        /**
+         * @return List of the nodes with items to deploy, by name
+         */
+        public List<NodePlan> getNodes() {
+            return Collections.unmodifiableList(nodes);
+        }
+
+        /**
+         * @return long bytes of setup files sent to the nodes at most, the directories of unknown size left out
+         */
+        public long getBytes() {
+            long bytes = 0;
+            for (NodePlan node : nodes) {
+                bytes += node.getBytes();
+            }
+            return bytes;
+        }
+
+        /**
+         * @return true if a node gets the files of a directory not indexed yet
+         */
+        public boolean isSizeUnknown() {
+            for (NodePlan node : nodes) {
+                if (node.isSizeUnknown()) return true;
+            }
+            return false;
+        }
+
+        JSONObject toJSON() {
+            JSONArray itemsJson = new JSONArray();
+            for (ItemPlan item : items) {
+                itemsJson.element(new JSONObject()
+                        .element("item", item.identity)
+                        .element("version", item.version)
+                        .element("nodes", item.matched.get())
+                        .element("redeploy", item.pending.get())
+                        .element("bytes", item.size == UNKNOWN ? 0 : item.size * item.pending.get())
+                        .element("sizeUnknown", item.size == UNKNOWN));
+            }
+            JSONArray nodesJson = new JSONArray();
+            int online = 0;
+            for (NodePlan node : nodes) {
+                if (node.isOnline()) online++;
+                if (nodesJson.size() < NODES_SHOWN) nodesJson.element(node.toJSON());
+            }
+            return new JSONObject()
+                    .element("nodes", nodeCount)
+                    .element("redeploy", nodes.size())
+                    .element("redeployOnline", online)
+                    .element("bytes", getBytes())
+                    .element("sizeUnknown", isSizeUnknown())
+                    .element("durationMillis", durationMillis)
+                    .element("items", itemsJson)
+                    .element("plan", nodesJson)
+                    .element("truncated", nodes.size() > NODES_SHOWN);
+        }
+    }
+
+    /**
+     * One item, with what the planner found so far, updated by the nodes in parallel.
+     */
+    static class ItemPlan {
+
+        final String identity;
+        final String legacyIdentity;
+
+        /**
+         * null if the files directory isn't indexed yet
+         */
+        final String version;
+
+        final Label label;
+
+        /**
+         * bytes of the files directory, UNKNOWN if it isn't indexed yet
+         */
+        final long size;
+
+        final AtomicInteger matched = new AtomicInteger();
+        final AtomicInteger pending = new AtomicInteger();
+
+        ItemPlan(String identity, String legacyIdentity, String version, Label label, long size) {
+            this.identity = identity;
+            this.legacyIdentity = legacyIdentity;
+            this.version = version;
+            this.label = label;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Items one node would get.
+     */
+    public static class NodePlan {
+
+        private final String name;
+        private final boolean online;
+        private final boolean unknown;
+        private final List<String> items;
+        private final long bytes;
+        private final boolean sizeUnknown;
+
+        NodePlan(String name, boolean online, boolean unknown, List<String> items, long bytes, boolean sizeUnknown) {
+            this.name = name;
+            this.online = online;
+            this.unknown = unknown;
+            this.items = items;
+            this.bytes = bytes;
+            this.sizeUnknown = sizeUnknown;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return true if the node is online, offline ones getting their items once connected
+         */
+        public boolean isOnline() {
+            return online;
+        }
+
+        /**
+         * @return true if no state was ever recorded for the node, all its items being then planned
+         */
+        public boolean isUnknown() {
+            return unknown;
+        }
+
+        /**
+         * @return List of the identities of the items to deploy, in config order
+         */
+        public List<String> getItems() {
+            return Collections.unmodifiableList(items);
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return true if one of the items has a files directory not indexed yet, left out of getBytes
+         */
+        public boolean isSizeUnknown() {
+            return sizeUnknown;
+        }
+
+        JSONObject toJSON() {
+            return new JSONObject()
+                    .element("node", name)
+                    .element("online", online)
+                    .element("unknown", unknown)
+                    .element("items", JSONArray.fromObject(items))
+                    .element("bytes", bytes)
+                    .element("sizeUnknown", sizeUnknown);
+        }
+    }
+
+    /**
+     * The plan of the saved configuration as JSON at JENKINS_URL/slave-setup-plan/,
+     * and the one of an edited configuration posted to preview.
+     */
+    @Extension
+    public static class PlanAction implements RootAction {
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Agent setup plan";
+        }
+
+        @Override
+        public String getUrlName() {
+            return "slave-setup-plan";
+        }
+
+        @GET
+        public HttpResponse doIndex() {
+            Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+            return HttpResponses.okJSON(plan(SetupConfig.get().getSetupConfigItems()).toJSON());
+        }
+
+        /**
+         * @param req StaplerRequest2 with the json parameter of a form: the whole
+         *            configuration page, or just its setupConfigItems
+         * @return HttpResponse with the plan of the posted items as JSON
+         * @throws ServletException if there is no json parameter
+         */
+        @RequirePOST
+        public HttpResponse doPreview(StaplerRequest2 req) throws ServletException {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            JSONObject form = req.getSubmittedForm();
+            JSONObject section = form.optJSONObject(SetupConfig.get().getJsonSafeClassName());
+            if (section != null) form = section;
+            Object items = form.get("setupConfigItems");
+            List<SetupConfigItem> proposed =
+                    items == null ? List.of() : req.bindJSONToList(SetupConfigItem.class, items);
+            SetupConfigItem.assignIdentities(proposed);
+            return HttpResponses.okJSON(plan(proposed).toJSON());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Digest of every file of a setup files directory, keyed by its path relative
+ * to the directory. Comparing two manifests tells which files have to be sent
+ * to an agent and which ones have to be removed from it. A manifest never
+ * changes once built, so the digest of the whole tree is computed only once.
+ */
+public class FileManifest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String HEADER = "#slave-setup-manifest v1";
+
+    /**
+     * manifest of a missing directory, the same one every time so what is computed from it is kept
+     */
+    static final FileManifest EMPTY = new FileManifest(Map.of());
+
+    /**
+     * Digest and size of a single file
+     */
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String digest;
+        private final long size;
+
+        public Entry(String digest, long size) {
+            this.digest = digest;
+            this.size = size;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry e && e.size == size && e.digest.equals(digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return digest.hashCode();
+        }
+    }
+
+    private final SortedMap<String, Entry> entries;
+
+    /**
+     * digest(), computed on first use
+     */
+    private transient volatile String digest;
+
+    public FileManifest(Map<String, Entry> entries) {
+        this.entries = new TreeMap<>(entries);
+    }
+
+    /**
+     * Walks the given directory getting the digest of every regular file, only
+     * the files changed since the last walk are read, see FileTreeIndex.
+     *
+     * @param dir File directory to scan
+     * @return FileManifest of the directory, empty if it doesn't exist
+     * @throws IOException if some file can't be read
+     */
+    public static FileManifest of(File dir) throws IOException {
+        return FileTreeIndex.get().scan(dir);
+    }
+
+    static String relativize(Path root, Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @param file Path of a regular file
+     * @return String SHA-256 of the file content as hex
+     * @throws IOException if the file can't be read
+     */
+    public static String digestOf(Path file) throws IOException {
+        MessageDigest md = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    /**
+     * @param text String to digest
+     * @return String SHA-256 of the UTF-8 bytes of text as hex
+     */
+    public static String digestOf(String text) {
+        return HexFormat.of().formatHex(sha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return long sum of the size of all files
+     */
+    public long getTotalSize() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * @param paths relative paths of this manifest
+     * @return long sum of the size of the given files
+     */
+    public long sizeOf(List<String> paths) {
+        long total = 0;
+        for (String path : paths) {
+            Entry entry = entries.get(path);
+            if (entry != null) total += entry.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * Digest of the whole tree, changes whenever a file is added, removed or changed.
+     *
+     * @return String SHA-256 as hex
+     */
+    public String digest() {
+        String cached = this.digest;
+        if (cached == null) {
+            cached = computeDigest();
+            this.digest = cached;
+        }
+        return cached;
+    }
+
+    private String computeDigest() {
+        MessageDigest md = sha256();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            md.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(entry.getValue().getDigest().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    /**
+     * Files of this manifest which are not present with the same content in the
+     * installed manifest, or whose copy under root doesn't look like the installed one.
+     *
+     * @param installed FileManifest stored on the agent after the last sync
+     * @param root      File directory the files were copied into
+     * @return List of relative paths to be sent
+     */
+    public List<String> changedSince(FileManifest installed, File root) {
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry previous = installed.entries.get(entry.getKey());
+            if (!entry.getValue().equals(previous)) {
+                changed.add(entry.getKey());
+                continue;
+            }
+            // the file could have been removed or replaced on the agent meanwhile
+            File copy = new File(root, entry.getKey());
+            if (!copy.isFile() || copy.length() != previous.getSize()) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param previous FileManifest stored on the agent after the last sync
+     * @return List of relative paths which were copied before and are gone now
+     */
+    public List<String> removedSince(FileManifest previous) {
+        List<String> removed = new ArrayList<>();
+        for (String path : previous.entries.keySet()) {
+            if (!entries.containsKey(path)) removed.add(path);
+        }
+        return removed;
+    }
+
+    /**
+     * @return String representation stored on the agents
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            text.append(entry.getValue().getDigest())
+                    .append(' ')
+                    .append(entry.getValue().getSize())
+                    .append(' ')
+                    .append(entry.getKey())
+                    .append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Parses the output of toText, no matter the line endings of the agent. Broken
+     * lines are ignored, which only causes their files to be sent again.
+     *
+     * @param text String as written by toText, may be null
+     * @return FileManifest, empty if text is null or not a manifest
+     */
+    public static FileManifest fromText(String text) {
+        Map<String, Entry> entries = new TreeMap<>();
+        if (text == null) return new FileManifest(entries);
+
+        String[] lines = text.split("\r?\n");
+        if (lines.length == 0 || !lines[0].equals(HEADER)) return new FileManifest(entries);
+        for (int i = 1; i < lines.length; i++) {
+            String[] fields = lines[i].split(" ", 3);
+            if (fields.length != 3) continue;
+            try {
+                entries.put(fields[2], new Entry(fields[0], Long.parseLong(fields[1])));
+            } catch (NumberFormatException e) {
+                // ignored, see javadoc
+            }
+        }
+        return new FileManifest(entries);
+    }
+}
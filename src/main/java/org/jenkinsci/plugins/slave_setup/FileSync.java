@@ -0,0 +1,235 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Copies a setup files directory to an agent sending only the files that were
+ * added or changed since the last copy, and removing the ones that are gone.
+ *
+ * The controller computes a FileManifest of the directory, the agent compares it
+ * with the manifest it stored after the previous sync, and only the differing
+ * files are streamed in a single archive. Agents needing the whole tree get the
+ * archive packed once for all of them by the ArchiveCache.
+ */
+public class FileSync {
+
+    /**
+     * Directory under the agent root path holding the manifests of the synced directories
+     */
+    static final String MANIFEST_DIR = ".slave_setup/manifests";
+
+    /**
+     * Sync localDir into remoteRoot.
+     *
+     * @param localDir   File directory on the controller
+     * @param remoteRoot FilePath of the agent root
+     * @param log        SetupLog of the node setup
+     * @return long number of bytes sent to the agent
+     * @throws IOException          IO error while accessing disk
+     * @throws InterruptedException BrokenPipe
+     */
+    public static long sync(File localDir, FilePath remoteRoot, SetupLog log)
+            throws IOException, InterruptedException {
+        return sync(localDir, FileManifest.of(localDir), remoteRoot, log);
+    }
+
+    /**
+     * Sync localDir into remoteRoot with an already computed manifest of localDir.
+     *
+     * @param localDir   File directory on the controller
+     * @param manifest   FileManifest of localDir
+     * @param remoteRoot FilePath of the agent root
+     * @param log        SetupLog of the node setup
+     * @return long number of bytes sent to the agent
+     * @throws IOException          IO error while accessing disk
+     * @throws InterruptedException BrokenPipe
+     */
+    public static long sync(File localDir, FileManifest manifest, FilePath remoteRoot, SetupLog log)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        String manifestName = manifestName(localDir);
+
+        List<String> changed = remoteRoot.act(new PrepareSync(manifestName, manifest));
+        long bytes = manifest.sizeOf(changed);
+        if (changed.size() == manifest.size() && !changed.isEmpty() && ArchiveCache.isEnabled()) {
+            bytes = ArchiveCache.get().send(localDir, manifest, remoteRoot);
+        } else if (!changed.isEmpty()) {
+            new FilePath(localDir)
+                    .copyRecursiveTo(new ListScanner(changed), remoteRoot, "changed setup files of " + localDir);
+        }
+        remoteRoot.act(new StoreManifest(manifestName, manifest));
+
+        log.info("synced %d of %d files (%d of %d bytes) in %d ms"
+                .formatted(
+                        changed.size(),
+                        manifest.size(),
+                        bytes,
+                        manifest.getTotalSize(),
+                        System.currentTimeMillis() - start));
+        return bytes;
+    }
+
+    /**
+     * @param localDir File directory on the controller
+     * @return String file name of the manifest of localDir on the agents
+     */
+    static String manifestName(File localDir) {
+        String digest = FileManifest.digestOf(localDir.getAbsolutePath());
+        return digest.substring(0, 16) + ".txt";
+    }
+
+    /**
+     * Runs on the agent: removes the files gone from the directory and answers
+     * which files have to be sent.
+     */
+    static class PrepareSync extends MasterToSlaveFileCallable<List<String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String manifestName;
+        private final FileManifest manifest;
+
+        PrepareSync(String manifestName, FileManifest manifest) {
+            this.manifestName = manifestName;
+            this.manifest = manifest;
+        }
+
+        @Override
+        public List<String> invoke(File root, VirtualChannel channel) throws IOException {
+            FileManifest installed = readManifest(root, manifestName);
+            removeGone(root, manifestName, manifest, installed);
+            return manifest.changedSince(installed, root);
+        }
+    }
+
+    /**
+     * Agent side: reads the manifest stored after the previous sync.
+     *
+     * @param root         File agent root
+     * @param manifestName String name given by manifestName(localDir)
+     * @return FileManifest stored, empty if the directory was never synced
+     * @throws IOException if the manifest can't be read
+     */
+    static FileManifest readManifest(File root, String manifestName) throws IOException {
+        File stored = new File(root, MANIFEST_DIR + "/" + manifestName);
+        return stored.isFile()
+                ? FileManifest.fromText(Files.readString(stored.toPath(), StandardCharsets.UTF_8))
+                : new FileManifest(Map.of());
+    }
+
+    /**
+     * Agent side: removes the files which are in installed but not in manifest,
+     * unless another directory synced into the same root still has them.
+     *
+     * @param root         File agent root
+     * @param manifestName String name given by manifestName(localDir)
+     * @param manifest     FileManifest being synced
+     * @param installed    FileManifest of the previous sync
+     * @throws IOException if a file can't be removed
+     */
+    static void removeGone(File root, String manifestName, FileManifest manifest, FileManifest installed)
+            throws IOException {
+        List<String> removed = manifest.removedSince(installed);
+        if (removed.isEmpty()) return;
+        Set<String> shared = pathsOfOthers(root, manifestName);
+        Path rootPath = root.getCanonicalFile().toPath();
+        for (String path : removed) {
+            // the other directory's state says it is installed, it wouldn't be sent again
+            if (shared.contains(path)) continue;
+            Path gone = new File(root, path).getCanonicalFile().toPath();
+            // never trust a stored manifest to point outside of the root
+            if (gone.startsWith(rootPath)) Files.deleteIfExists(gone);
+        }
+    }
+
+    /**
+     * @param root         File agent root
+     * @param manifestName String name of the manifest to leave out
+     * @return Set of the relative paths of the manifests stored for the other directories
+     * @throws IOException if a manifest can't be read
+     */
+    private static Set<String> pathsOfOthers(File root, String manifestName) throws IOException {
+        Set<String> paths = new HashSet<>();
+        File[] stored = new File(root, MANIFEST_DIR).listFiles((dir, name) -> name.endsWith(".txt"));
+        if (stored == null) return paths;
+        for (File other : stored) {
+            if (other.getName().equals(manifestName)) continue;
+            paths.addAll(readManifest(root, other.getName()).getEntries().keySet());
+        }
+        return paths;
+    }
+
+    /**
+     * Agent side: stores the manifest once the files were copied.
+     *
+     * @param root         File agent root
+     * @param manifestName String name given by manifestName(localDir)
+     * @param manifest     FileManifest synced
+     * @throws IOException if the manifest can't be written
+     */
+    static void writeManifest(File root, String manifestName, FileManifest manifest) throws IOException {
+        Path target = new File(root, MANIFEST_DIR + "/" + manifestName).toPath();
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling(manifestName + ".tmp");
+        Files.writeString(tmp, manifest.toText(), StandardCharsets.UTF_8);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Runs on the agent: stores the manifest once the files were copied.
+     */
+    static class StoreManifest extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String manifestName;
+        private final FileManifest manifest;
+
+        StoreManifest(String manifestName, FileManifest manifest) {
+            this.manifestName = manifestName;
+            this.manifest = manifest;
+        }
+
+        @Override
+        public Void invoke(File root, VirtualChannel channel) throws IOException {
+            writeManifest(root, manifestName, manifest);
+            return null;
+        }
+    }
+
+    /**
+     * Visits only the given relative paths of a directory.
+     */
+    static class ListScanner extends DirScanner {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> paths;
+
+        ListScanner(List<String> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        public void scan(File dir, FileVisitor visitor) throws IOException {
+            for (String path : paths) {
+                File file = new File(dir, path);
+                if (file.isFile()) visitor.visit(file, path);
+            }
+        }
+    }
+}
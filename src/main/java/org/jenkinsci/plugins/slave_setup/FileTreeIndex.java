@@ -0,0 +1,480 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Size, modification time and digest of every file of the setup files
+ * directories, so that a FileManifest only reads the files which changed.
+ *
+ * The index of each directory is persisted under JENKINS_HOME. A filesystem
+ * watcher marks the directories and files touched since the last scan, which
+ * are then scanned again in the background so the index is warm by the time a
+ * setup needs it. Files needing a digest are hashed in parallel.
+ *
+ * Watchers see nothing of the changes made from another host to a network
+ * share, so a tree without event is still walked for sizes and modification
+ * times once its last scan is TRUST_MILLIS old.
+ */
+public class FileTreeIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(FileTreeIndex.class.getName());
+
+    private static final FileTreeIndex INSTANCE = new FileTreeIndex();
+
+    private static final String HEADER = "#slave-setup-tree v1";
+
+    private static final String STORE_DIR = "slave-setup/trees";
+
+    /**
+     * a file written this close to a scan may be written again within the same mtime tick
+     */
+    private static final long RACY_MILLIS = 2000;
+
+    /**
+     * delay gathering the events of a burst of writes into one background scan
+     */
+    private static final long REFRESH_DELAY_MILLIS = 1000;
+
+    /**
+     * how long a scan is answered from memory when the watcher saw no change
+     */
+    static final long TRUST_MILLIS = 30_000;
+
+    private final ConcurrentMap<Path, Tree> trees = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<WatchKey, Tree> watched = new ConcurrentHashMap<>();
+
+    private final ExecutorService hashers = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()),
+            new NamingThreadFactory(new DaemonThreadFactory(), "FileTreeIndex"));
+
+    private WatchService watcher;
+
+    private boolean watcherFailed;
+
+    public static FileTreeIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Scans dir, hashing only the files whose size or modification time changed
+     * or which the watcher saw being written.
+     *
+     * @param dir File directory to scan
+     * @return FileManifest of the directory, empty if it doesn't exist
+     * @throws IOException if some file can't be read
+     */
+    public FileManifest scan(File dir) throws IOException {
+        if (dir == null || !dir.isDirectory()) return FileManifest.EMPTY;
+        return tree(dir).scan();
+    }
+
+    /**
+     * Same as scan(dir), but answers from memory when the watcher saw no change
+     * since the last scan, done less than TRUST_MILLIS ago.
+     *
+     * @param dir File directory
+     * @return FileManifest of the directory, empty if it doesn't exist
+     * @throws IOException if some file can't be read
+     */
+    public FileManifest manifestOf(File dir) throws IOException {
+        if (dir == null || !dir.isDirectory()) return FileManifest.EMPTY;
+        Tree tree = tree(dir);
+        FileManifest current = tree.current();
+        return current != null ? current : tree.scan();
+    }
+
+    /**
+     * What the index knows of dir without any side effect: nothing is read,
+     * hashed, watched or stored, so it may be asked about any path.
+     *
+     * @param dir File directory
+     * @return FileManifest of the last scan of dir, maybe older than TRUST_MILLIS; empty if dir doesn't exist,
+     *         null if it wasn't scanned since Jenkins started
+     */
+    public FileManifest peek(File dir) {
+        if (dir == null || !dir.isDirectory()) return FileManifest.EMPTY;
+        Tree tree = trees.get(rootOf(dir));
+        return tree == null ? null : tree.manifest;
+    }
+
+    private Tree tree(File dir) {
+        return trees.computeIfAbsent(rootOf(dir), Tree::new);
+    }
+
+    private static Path rootOf(File dir) {
+        return dir.toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * Forgets the directories not used by the given items anymore: they are no
+     * longer watched and their persisted index is deleted.
+     *
+     * @param items Collection of the configured SetupConfigItem
+     */
+    public void retain(Collection<SetupConfigItem> items) {
+        Set<Path> keep = new HashSet<>();
+        for (SetupConfigItem item : items) {
+            if (item.getFilesDir() != null) keep.add(rootOf(item.getFilesDir()));
+        }
+        for (Tree tree : trees.values()) {
+            if (keep.contains(tree.root) || !trees.remove(tree.root, tree)) continue;
+            for (Map.Entry<WatchKey, Tree> key : watched.entrySet()) {
+                if (key.getValue() != tree) continue;
+                key.getKey().cancel();
+                watched.remove(key.getKey(), tree);
+            }
+        }
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) return;
+        Set<String> kept = new HashSet<>();
+        for (Path root : keep) {
+            kept.add(storeName(root));
+        }
+        // also the ones of directories dropped while Jenkins was stopped
+        File[] stored = new File(jenkins.getRootDir(), STORE_DIR).listFiles((dir, name) -> name.endsWith(".idx"));
+        if (stored == null) return;
+        for (File file : stored) {
+            if (!kept.contains(file.getName())) file.delete();
+        }
+    }
+
+    private static String storeName(Path root) {
+        return FileManifest.digestOf(root.toString()).substring(0, 16) + ".idx";
+    }
+
+    /**
+     * Indexed state of a file
+     */
+    static final class Entry {
+
+        final long size;
+        final long mtime;
+        final String digest;
+
+        Entry(long size, long mtime, String digest) {
+            this.size = size;
+            this.mtime = mtime;
+            this.digest = digest;
+        }
+    }
+
+    private final class Tree {
+
+        final Path root;
+
+        /**
+         * directories registered to the watcher
+         */
+        final Set<Path> dirs = ConcurrentHashMap.newKeySet();
+
+        /**
+         * files the watcher saw being written, hashed again whatever their size and mtime
+         */
+        final Set<String> touched = ConcurrentHashMap.newKeySet();
+
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        /**
+         * true when the watcher may have missed changes or saw some since the last scan
+         */
+        volatile boolean dirty = true;
+
+        private Map<String, Entry> entries;
+
+        /**
+         * result of the last scan, also read without lock by peek
+         */
+        private volatile FileManifest manifest;
+
+        /**
+         * start time of the last scan
+         */
+        private long scanned;
+
+        Tree(Path root) {
+            this.root = root;
+        }
+
+        synchronized FileManifest current() {
+            return dirty || System.currentTimeMillis() - scanned >= TRUST_MILLIS ? null : manifest;
+        }
+
+        synchronized FileManifest scan() throws IOException {
+            if (entries == null) entries = load();
+            // changes seen from now on must trigger the next scan
+            dirty = watcher() == null;
+            Set<String> forced = new HashSet<>(touched);
+            touched.removeAll(forced);
+            try {
+                return walk(forced);
+            } catch (IOException | RuntimeException e) {
+                dirty = true;
+                touched.addAll(forced);
+                throw e;
+            }
+        }
+
+        private FileManifest walk(Set<String> forced) throws IOException {
+            long start = System.currentTimeMillis();
+            Map<String, Entry> next = new TreeMap<>();
+            List<String> toHash = new ArrayList<>();
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    watch(Tree.this, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!Files.isRegularFile(file)) return FileVisitResult.CONTINUE;
+                    BasicFileAttributes target = Files.readAttributes(file, BasicFileAttributes.class);
+                    String path = FileManifest.relativize(root, file);
+                    long mtime = target.lastModifiedTime().toMillis();
+                    Entry known = entries.get(path);
+                    if (known != null
+                            && known.size == target.size()
+                            && known.mtime == mtime
+                            && !forced.contains(path)) {
+                        next.put(path, known);
+                    } else {
+                        next.put(path, new Entry(target.size(), mtime, null));
+                        toHash.add(path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            hash(toHash, next, start);
+
+            boolean changed = !toHash.isEmpty() || !next.keySet().equals(entries.keySet());
+            // files hashed again, racy ones included, may still have the same content
+            boolean modified = manifest == null || !next.keySet().equals(entries.keySet());
+            for (String path : toHash) {
+                Entry known = entries.get(path);
+                if (known == null || !next.get(path).digest.equals(known.digest)) modified = true;
+            }
+            entries = next;
+            // the same instance while nothing changed keeps what was computed from it
+            if (modified) {
+                Map<String, FileManifest.Entry> files = new TreeMap<>();
+                for (Map.Entry<String, Entry> e : next.entrySet()) {
+                    files.put(e.getKey(), new FileManifest.Entry(e.getValue().digest, e.getValue().size));
+                }
+                manifest = new FileManifest(files);
+            }
+            scanned = start;
+            if (changed) {
+                store();
+                LOGGER.log(Level.FINE, "Indexed {0}: hashed {1} of {2} files in {3} ms", new Object[] {
+                    root, toHash.size(), next.size(), System.currentTimeMillis() - start
+                });
+            }
+            return manifest;
+        }
+
+        private void hash(List<String> paths, Map<String, Entry> next, long start) throws IOException {
+            Map<String, Future<String>> digests = new HashMap<>();
+            for (String path : paths) {
+                digests.put(path, hashers.submit(() -> FileManifest.digestOf(root.resolve(path))));
+            }
+            try {
+                for (String path : paths) {
+                    Entry entry = next.get(path);
+                    // a racy file gets no mtime, so it is hashed again next time
+                    long mtime = entry.mtime >= start - RACY_MILLIS ? -1 : entry.mtime;
+                    next.put(path, new Entry(entry.size, mtime, digests.get(path).get()));
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) throw io;
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while hashing " + root, e);
+            } finally {
+                for (Future<String> digest : digests.values()) {
+                    digest.cancel(true);
+                }
+            }
+        }
+
+        void changed(String path) {
+            if (path != null) touched.add(path);
+            dirty = true;
+            if (refreshing.compareAndSet(false, true)) {
+                Timer.get()
+                        .schedule(
+                                () -> {
+                                    refreshing.set(false);
+                                    try {
+                                        if (trees.get(root) == this && Files.isDirectory(root)) scan();
+                                    } catch (IOException e) {
+                                        LOGGER.log(Level.FINE, "Failed to refresh the index of " + root, e);
+                                    }
+                                },
+                                REFRESH_DELAY_MILLIS,
+                                TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private File storeFile() {
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins == null) return null;
+            return new File(jenkins.getRootDir(), STORE_DIR + "/" + storeName(root));
+        }
+
+        private Map<String, Entry> load() {
+            Map<String, Entry> loaded = new HashMap<>();
+            File file = storeFile();
+            if (file == null || !file.isFile()) return loaded;
+            try {
+                String[] lines = Files.readString(file.toPath(), StandardCharsets.UTF_8).split("\r?\n");
+                if (lines.length == 0 || !lines[0].equals(HEADER)) return loaded;
+                for (int i = 1; i < lines.length; i++) {
+                    String[] fields = lines[i].split("\t", -1);
+                    if (fields.length != 4) continue;
+                    try {
+                        loaded.put(
+                                InstallState.unescape(fields[3]),
+                                new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                    } catch (NumberFormatException e) {
+                        // the file is just hashed again
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read the file index of " + root, e);
+            }
+            return loaded;
+        }
+
+        private void store() {
+            File file = storeFile();
+            if (file == null) return;
+            StringBuilder text = new StringBuilder(HEADER).append('\n');
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                text.append(entry.size).append('\t').append(entry.mtime).append('\t');
+                text.append(entry.digest).append('\t').append(InstallState.escape(e.getKey())).append('\n');
+            }
+            try {
+                Files.createDirectories(file.getParentFile().toPath());
+                Path tmp = file.toPath().resolveSibling(file.getName() + ".tmp");
+                Files.writeString(tmp, text, StandardCharsets.UTF_8);
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to persist the file index of " + root, e);
+            }
+        }
+    }
+
+    private void watch(Tree tree, Path dir) {
+        WatchService service = watcher();
+        if (service == null || tree.dirs.contains(dir)) return;
+        try {
+            watched.put(dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), tree);
+            tree.dirs.add(dir);
+        } catch (IOException e) {
+            // without watcher every call scans the tree
+            LOGGER.log(Level.FINE, "Can't watch " + dir, e);
+            tree.dirty = true;
+        }
+    }
+
+    private synchronized WatchService watcher() {
+        if (watcher == null && !watcherFailed) {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                WatchService service = watcher;
+                Thread thread = new Thread(() -> watchLoop(service), "FileTreeIndex watcher");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException | UnsupportedOperationException e) {
+                LOGGER.log(Level.INFO, "No filesystem watcher, setup files directories will be scanned on each use", e);
+                watcherFailed = true;
+            }
+        }
+        return watcher;
+    }
+
+    /**
+     * @param dir Path of a watched directory
+     * @return Tree containing dir, for the events received before its key was recorded
+     */
+    private Tree owner(Path dir) {
+        for (Tree tree : trees.values()) {
+            if (dir.startsWith(tree.root)) return tree;
+        }
+        return null;
+    }
+
+    private void watchLoop(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path dir = (Path) key.watchable();
+                Tree tree = watched.get(key);
+                if (tree == null) tree = owner(dir);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (tree == null) continue;
+                    if (event.kind() == OVERFLOW) {
+                        tree.changed(null);
+                    } else {
+                        tree.changed(FileManifest.relativize(tree.root, dir.resolve((Path) event.context())));
+                    }
+                }
+                if (!key.reset()) {
+                    watched.remove(key);
+                    if (tree != null) tree.dirs.remove(dir);
+                }
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "File watcher stopped, setup files directories will be scanned on each use", e);
+        }
+        synchronized (this) {
+            watcherFailed = true;
+            watcher = null;
+        }
+        for (Tree tree : trees.values()) {
+            tree.dirty = true;
+        }
+    }
+}
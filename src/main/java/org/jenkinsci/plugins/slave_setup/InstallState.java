@@ -0,0 +1,365 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * What is installed on an agent: one record per setup item, keyed by the item
+ * identity, telling which version was deployed, when, how long it took and how
+ * it ended.
+ *
+ * It is stored on the agent as a versioned, tab separated text file which is
+ * parsed the same way whatever line endings the agent uses.
+ *
+ * Deployments are then appended to a journal next to it, one checksummed line
+ * per record, so recording one is a small append whatever the size of the
+ * state. A line torn by a crash or a lost connection fails its checksum and is
+ * skipped, losing only that record. The journal is folded into the state file
+ * once it grows past InstallStateIndex.COMPACTION_THRESHOLD.
+ */
+public class InstallState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * file under the agent root path holding the state
+     */
+    public static final String FILENAME = "slave_setup.state";
+
+    /**
+     * file used before the state was structured, migrated on first read
+     */
+    public static final String LEGACY_FILENAME = "slave_setup.ini";
+
+    /**
+     * file under the agent root path holding the records written since the state file
+     */
+    public static final String JOURNAL_FILENAME = "slave_setup.journal";
+
+    static final String HEADER = "#slave-setup-state v1";
+
+    static final String GENERATION = "#generation ";
+
+    /**
+     * Installation of one setup item on the agent
+     */
+    public static class Record implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String identity;
+        private final String digest;
+        private final long timestamp;
+        private final long durationMillis;
+        private final int exitStatus;
+
+        public Record(String identity, String digest, long timestamp, long durationMillis, int exitStatus) {
+            this.identity = identity;
+            this.digest = digest;
+            this.timestamp = timestamp;
+            this.durationMillis = durationMillis;
+            this.exitStatus = exitStatus;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        /**
+         * @return String version of the setup item that was deployed
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return long epoch millis of the end of the deployment
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @return int exit code of the deployment, 0 if it succeeded
+         */
+        public int getExitStatus() {
+            return exitStatus;
+        }
+
+        public boolean isSuccess() {
+            return exitStatus == 0;
+        }
+
+        String toLine() {
+            return escape(identity) + '\t' + digest + '\t' + timestamp + '\t' + durationMillis + '\t' + exitStatus;
+        }
+
+        static Record fromLine(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 5) return null;
+            try {
+                return new Record(
+                        unescape(fields[0]),
+                        fields[1],
+                        Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]),
+                        Integer.parseInt(fields[4]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final Map<String, Record> records = new LinkedHashMap<>();
+
+    /**
+     * changes on every write of the state, tells the controller whether its copy is still the agent one
+     */
+    private long generation;
+
+    /**
+     * @param identity String identity of a setup item
+     * @return Record of the item, null if it was never deployed
+     */
+    public synchronized Record get(String identity) {
+        return records.get(identity);
+    }
+
+    /**
+     * @param identity String identity of a setup item
+     * @param digest   String current version of the item
+     * @return true if this exact version was deployed successfully
+     */
+    public synchronized boolean isInstalled(String identity, String digest) {
+        Record record = records.get(identity);
+        return record != null && record.isSuccess() && record.getDigest().equals(digest);
+    }
+
+    /**
+     * Adds or replaces the record of an item
+     *
+     * @param record Record to store
+     */
+    public synchronized void put(Record record) {
+        records.put(record.getIdentity(), record);
+    }
+
+    /**
+     * Copies the record an item got when items were keyed by their label
+     * expression to its own identity, if the item has no record yet and that
+     * one is of its current version. Items sharing a label shared one record,
+     * the other items are deployed again.
+     *
+     * @param legacyIdentity String label expression the record was written under
+     * @param identity       String identity of the item
+     * @param digest         String current version of the item
+     * @return true if the record was copied
+     */
+    public synchronized boolean adopt(String legacyIdentity, String identity, String digest) {
+        if (legacyIdentity.equals(identity) || records.containsKey(identity)) return false;
+        Record legacy = records.get(legacyIdentity);
+        if (legacy == null || !legacy.getDigest().equals(digest)) return false;
+        records.put(
+                identity,
+                new Record(
+                        identity,
+                        legacy.getDigest(),
+                        legacy.getTimestamp(),
+                        legacy.getDurationMillis(),
+                        legacy.getExitStatus()));
+        return true;
+    }
+
+    public synchronized boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    public synchronized Collection<Record> getRecords() {
+        return Collections.unmodifiableCollection(new ArrayList<>(records.values()));
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Moves to a new generation, to be called right before writing the state.
+     *
+     * @return long the new generation
+     */
+    public synchronized long nextGeneration() {
+        // time based so that a state restored from an old copy never looks current
+        generation = Math.max(generation + 1, System.currentTimeMillis());
+        return generation;
+    }
+
+    /**
+     * @return InstallState independent copy of this one
+     */
+    public synchronized InstallState copy() {
+        InstallState copy = new InstallState();
+        copy.records.putAll(records);
+        copy.generation = generation;
+        return copy;
+    }
+
+    /**
+     * @return String content of the state file
+     */
+    public synchronized String toText() {
+        StringBuilder text = new StringBuilder(HEADER).append('\n');
+        text.append(GENERATION).append(generation).append('\n');
+        for (Record record : records.values()) {
+            text.append(record.toLine()).append('\n');
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+
+    /**
+     * Parses a state file. Lines that can't be parsed are skipped, which only
+     * causes their items to be deployed again.
+     *
+     * @param text String content of the state file, may be null
+     * @return InstallState, empty if text is null or of an unknown version
+     */
+    public static InstallState fromText(String text) {
+        InstallState state = new InstallState();
+        if (text == null) return state;
+
+        String[] lines = text.split("\r?\n");
+        if (lines.length == 0 || !lines[0].equals(HEADER)) return state;
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].startsWith(GENERATION)) {
+                state.generation = parseGeneration(lines[i]);
+                continue;
+            }
+            Record record = Record.fromLine(lines[i]);
+            if (record != null) state.records.put(record.getIdentity(), record);
+        }
+        return state;
+    }
+
+    /**
+     * @param generation long generation of the state once the record is added
+     * @param record     Record to append
+     * @return String line of the journal, CRC32 of the rest then generation and record
+     */
+    static String journalLine(long generation, Record record) {
+        String body = generation + "\t" + record.toLine();
+        return checksum(body) + '\t' + body + '\n';
+    }
+
+    /**
+     * Adds the records of a journal on top of this state, the generation
+     * becoming the one of the last record if it is newer. Lines whose checksum
+     * doesn't match, as a torn last write, are skipped.
+     *
+     * @param journal String content of the journal file, may be null
+     * @return int number of lines skipped
+     */
+    public synchronized int replay(String journal) {
+        if (journal == null) return 0;
+        int skipped = 0;
+        for (String line : journal.split("\r?\n")) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t", 3);
+            Record record = null;
+            long lineGeneration = 0;
+            if (fields.length == 3 && fields[0].equals(checksum(fields[1] + '\t' + fields[2]))) {
+                lineGeneration = parseGeneration(GENERATION + fields[1]);
+                record = Record.fromLine(fields[2]);
+            }
+            if (record == null) {
+                skipped++;
+                continue;
+            }
+            records.put(record.getIdentity(), record);
+            generation = Math.max(generation, lineGeneration);
+        }
+        return skipped;
+    }
+
+    private static String checksum(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return "%08x".formatted(crc.getValue());
+    }
+
+    /**
+     * Reads the old slave_setup.ini format: one "label¼hashCode" line per
+     * installed item.
+     *
+     * @param text String content of the ini file, may be null
+     * @return InstallState holding the same installations
+     */
+    public static InstallState fromLegacyIni(String text) {
+        InstallState state = new InstallState();
+        if (text == null) return state;
+
+        for (String line : text.split("\r?\n")) {
+            line = line.trim();
+            int delimiter = line.lastIndexOf(SetupConfigItem.DELIMITER);
+            if (delimiter < 0) continue;
+            String label = line.substring(0, delimiter);
+            // items without label were written as "null"
+            String identity = label.equals("null") ? "" : label;
+            String digest = line.substring(delimiter + SetupConfigItem.DELIMITER.length());
+            state.records.put(identity, new Record(identity, digest, 0, 0, 0));
+        }
+        return state;
+    }
+
+    /**
+     * @param line String generation line of a state file
+     * @return long generation, 0 if it can't be parsed
+     */
+    static long parseGeneration(String line) {
+        try {
+            return Long.parseLong(line.substring(GENERATION.length()).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    static String unescape(String value) {
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't' -> out.append('\t');
+                    case 'n' -> out.append('\n');
+                    case 'r' -> out.append('\r');
+                    default -> out.append(next);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
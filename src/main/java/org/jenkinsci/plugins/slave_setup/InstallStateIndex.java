@@ -0,0 +1,423 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Controller side copy of the InstallState of every node.
+ *
+ * It is updated whenever a node state is written and persisted under
+ * JENKINS_HOME, so what a node has installed is known without asking it. The
+ * agent file is only read again when its generation tells it was changed behind
+ * the controller back (agent wiped, restored, set up by another controller...).
+ *
+ * Deployments are appended to the journal of the agent, see InstallState,
+ * which is folded into the state file by a write to a temporary file and an
+ * atomic rename once it passes COMPACTION_THRESHOLD, or when torn lines were
+ * found in it.
+ *
+ * Other plugins can read it through get().getState(nodeName).
+ */
+public class InstallStateIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(InstallStateIndex.class.getName());
+
+    private static final InstallStateIndex INSTANCE = new InstallStateIndex();
+
+    /**
+     * bytes of journal above which it is folded into the state file
+     */
+    static final long COMPACTION_THRESHOLD = 64 * 1024;
+
+    private final ConcurrentMap<String, InstallState> states = new ConcurrentHashMap<>();
+
+    public static InstallStateIndex get() {
+        return INSTANCE;
+    }
+
+    private File getDirectory() {
+        return new File(Jenkins.get().getRootDir(), "slave-setup/state");
+    }
+
+    private File fileOf(String nodeName) {
+        return new File(getDirectory(), Util.rawEncode(nodeName) + ".state");
+    }
+
+    /**
+     * Last known state of the node, without any call to the agent.
+     *
+     * @param nodeName String name of the node
+     * @return InstallState copy, null if nothing was ever recorded for the node
+     */
+    public InstallState getState(String nodeName) {
+        InstallState state = states.computeIfAbsent(nodeName, this::readLocal);
+        return state == null ? null : adopt(state.copy(), SetupConfig.get().getSetupConfigItems());
+    }
+
+    /**
+     * Gives the items the records written under their label expression, before
+     * every item had its own identity. They are kept in the state once it is
+     * written again.
+     *
+     * @param state InstallState to update
+     * @param items List of SetupConfigItem with their identities assigned
+     * @return InstallState state
+     */
+    static InstallState adopt(InstallState state, List<SetupConfigItem> items) {
+        for (SetupConfigItem item : items) {
+            String legacy = item.getLegacyIdentity();
+            String identity = item.getIdentity();
+            // the version is only computed for the items which may adopt a record
+            if (legacy.equals(identity) || state.get(legacy) == null || state.get(identity) != null) continue;
+            state.adopt(legacy, identity, item.getVersion());
+        }
+        return state;
+    }
+
+    /**
+     * Items applying to the node whose current version is not known to be
+     * installed on it, answered from memory.
+     *
+     * @param node Node to check
+     * @return List of SetupConfigItem to be deployed
+     */
+    public List<SetupConfigItem> getPendingItems(Node node) {
+        InstallState state = getState(node.getNodeName());
+        List<SetupConfigItem> pending = new ArrayList<>();
+        for (SetupConfigItem item : LabelMatchIndex.get().getItems(node)) {
+            if (state == null || !state.isInstalled(item.getIdentity(), item.getVersion())) {
+                pending.add(item);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @param node Node to check
+     * @return true if, as far as the controller knows, the node has every item it needs
+     */
+    public boolean isUpToDate(Node node) {
+        return getPendingItems(node).isEmpty();
+    }
+
+    /**
+     * Reads the state of a node, asking the agent only for what changed: a single
+     * call answers either that the controller copy is current or the agent state.
+     *
+     * @param nodeName String name of the node
+     * @param root     FilePath of the agent root
+     * @param log      SetupLog of the node setup
+     * @return InstallState to be used and updated by the setup
+     * @throws IOException          IO error accessing the agent
+     * @throws InterruptedException Broken pipe
+     */
+    public InstallState load(String nodeName, FilePath root, SetupLog log) throws IOException, InterruptedException {
+        InstallState known = getState(nodeName);
+        Snapshot snapshot = root.act(new ReadState(known == null ? -1 : known.getGeneration()));
+        if (snapshot.current) {
+            log.debug("Controller copy of the state is current, generation " + known.getGeneration());
+            return known;
+        }
+        if (known != null) log.info("State of " + nodeName + " changed outside of this controller, reloading it");
+
+        InstallState state;
+        if (snapshot.legacy) {
+            log.debug("Migrating " + InstallState.LEGACY_FILENAME + " to " + InstallState.FILENAME);
+            state = InstallState.fromLegacyIni(snapshot.text);
+        } else {
+            state = InstallState.fromText(snapshot.text);
+        }
+        int skipped = state.replay(snapshot.journal);
+        if (skipped > 0) log.info("Skipped " + skipped + " torn lines of the setup journal of " + nodeName);
+        adopt(state, SetupConfig.get().getSetupConfigItems());
+        if ((snapshot.legacy || skipped > 0) && !state.isEmpty()) {
+            store(nodeName, root, state);
+        } else {
+            remember(nodeName, state);
+        }
+        return state;
+    }
+
+    /**
+     * Writes the state on the agent and records it as the controller copy.
+     *
+     * @param nodeName String name of the node
+     * @param root     FilePath of the agent root
+     * @param state    InstallState to write
+     * @throws IOException          IO error accessing the agent
+     * @throws InterruptedException Broken pipe
+     */
+    public void store(String nodeName, FilePath root, InstallState state) throws IOException, InterruptedException {
+        state.nextGeneration();
+        root.act(new WriteState(state.toText()));
+        remember(nodeName, state);
+    }
+
+    /**
+     * Appends the given records of the state to the journal of the agent, and
+     * records the state as the controller copy. The whole state is written
+     * instead when the agent has no state file yet, and the journal folded into
+     * it once past COMPACTION_THRESHOLD.
+     *
+     * @param nodeName String name of the node
+     * @param root     FilePath of the agent root
+     * @param state    InstallState holding the records
+     * @param records  List of the records added to the state since it was last written
+     * @throws IOException          IO error accessing the agent
+     * @throws InterruptedException Broken pipe
+     */
+    public void append(String nodeName, FilePath root, InstallState state, List<InstallState.Record> records)
+            throws IOException, InterruptedException {
+        long generation = state.nextGeneration();
+        StringBuilder lines = new StringBuilder();
+        for (InstallState.Record record : records) {
+            lines.append(InstallState.journalLine(generation, record));
+        }
+        long size = root.act(new AppendJournal(lines.toString()));
+        if (size < 0 || size > COMPACTION_THRESHOLD) root.act(new WriteState(state.toText()));
+        remember(nodeName, state);
+    }
+
+    /**
+     * Records a state the agent wrote by itself as the controller copy.
+     *
+     * @param nodeName String name of the node
+     * @param state    InstallState as written on the agent
+     */
+    void update(String nodeName, InstallState state) {
+        remember(nodeName, state);
+    }
+
+    /**
+     * Forgets everything about a node
+     *
+     * @param nodeName String name of the node
+     */
+    public void remove(String nodeName) {
+        states.remove(nodeName);
+        try {
+            Files.deleteIfExists(fileOf(nodeName).toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove the setup state of " + nodeName, e);
+        }
+    }
+
+    private void remember(String nodeName, InstallState state) {
+        InstallState copy = state.copy();
+        states.put(nodeName, copy);
+        try {
+            Path file = fileOf(nodeName).toPath();
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tmp, copy.toText(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // the agent file stays the reference, it will just be read again
+            LOGGER.log(Level.WARNING, "Failed to persist the setup state of " + nodeName, e);
+        }
+    }
+
+    private InstallState readLocal(String nodeName) {
+        File file = fileOf(nodeName);
+        if (!file.isFile()) return null;
+        try {
+            return InstallState.fromText(Files.readString(file.toPath(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the setup state of " + nodeName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Answer of the agent to ReadState
+     */
+    static class Snapshot implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final boolean current;
+        final boolean legacy;
+        final String text;
+
+        /**
+         * content of the journal, null if there is none
+         */
+        final String journal;
+
+        Snapshot(boolean current, boolean legacy, String text, String journal) {
+            this.current = current;
+            this.legacy = legacy;
+            this.text = text;
+            this.journal = journal;
+        }
+    }
+
+    /**
+     * Runs on the agent: only reads the whole state if its generation, the one of
+     * the journal when it has records, isn't the known one.
+     */
+    static class ReadState extends MasterToSlaveFileCallable<Snapshot> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long knownGeneration;
+
+        ReadState(long knownGeneration) {
+            this.knownGeneration = knownGeneration;
+        }
+
+        @Override
+        public Snapshot invoke(File root, VirtualChannel channel) throws IOException {
+            File file = new File(root, InstallState.FILENAME);
+            File journalFile = new File(root, InstallState.JOURNAL_FILENAME);
+            String journal =
+                    journalFile.isFile() ? Files.readString(journalFile.toPath(), StandardCharsets.UTF_8) : null;
+            long generation = -1;
+            if (journal != null) {
+                InstallState journaled = new InstallState();
+                journaled.replay(journal);
+                if (!journaled.isEmpty()) generation = journaled.getGeneration();
+            }
+            if (file.isFile()) {
+                try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    String header = reader.readLine();
+                    String line = reader.readLine();
+                    if (InstallState.HEADER.equals(header)
+                            && line != null
+                            && line.startsWith(InstallState.GENERATION)) {
+                        generation = Math.max(generation, InstallState.parseGeneration(line));
+                    }
+                }
+                if (knownGeneration >= 0 && generation == knownGeneration) return new Snapshot(true, false, null, null);
+                return new Snapshot(false, false, Files.readString(file.toPath(), StandardCharsets.UTF_8), journal);
+            }
+            File legacy = new File(root, InstallState.LEGACY_FILENAME);
+            if (legacy.isFile()) {
+                return new Snapshot(false, true, Files.readString(legacy.toPath(), StandardCharsets.UTF_8), journal);
+            }
+            return new Snapshot(false, false, null, journal);
+        }
+    }
+
+    /**
+     * Runs on the agent: appends lines to the journal, a torn last line of the
+     * journal being ended first so it only loses its own record. Nothing is
+     * written if there is no state file yet.
+     */
+    static class AppendJournal extends MasterToSlaveFileCallable<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String lines;
+
+        AppendJournal(String lines) {
+            this.lines = lines;
+        }
+
+        /**
+         * @return Long size of the journal, -1 if the whole state has to be written instead
+         */
+        @Override
+        public Long invoke(File root, VirtualChannel channel) throws IOException {
+            if (!new File(root, InstallState.FILENAME).isFile()) return -1L;
+            Path journal = new File(root, InstallState.JOURNAL_FILENAME).toPath();
+            try (FileChannel out = FileChannel.open(
+                    journal, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = out.size();
+                String text = lines;
+                if (size > 0) {
+                    ByteBuffer last = ByteBuffer.allocate(1);
+                    out.read(last, size - 1);
+                    if (last.get(0) != '\n') text = '\n' + text;
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) {
+                    size += out.write(bytes, size);
+                }
+                out.force(false);
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Runs on the agent: replaces the state file, and drops the migrated legacy one.
+     */
+    static class WriteState extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+
+        WriteState(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public Void invoke(File root, VirtualChannel channel) throws IOException {
+            writeAgentState(root, text);
+            return null;
+        }
+    }
+
+    /**
+     * Agent side: replaces the state file, and drops the journal it now holds
+     * and the migrated legacy file.
+     *
+     * @param root File agent root
+     * @param text String content of the state file
+     * @throws IOException if the state can't be written
+     */
+    static void writeAgentState(File root, String text) throws IOException {
+        Path file = new File(root, InstallState.FILENAME).toPath();
+        Path tmp = file.resolveSibling(InstallState.FILENAME + ".tmp");
+        try (FileChannel out = FileChannel.open(
+                tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            // on disk before the rename, so a crash leaves the old state or the new one
+            out.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // a journal left by a crash at this point only repeats records of the state file
+        Files.deleteIfExists(new File(root, InstallState.JOURNAL_FILENAME).toPath());
+        Files.deleteIfExists(new File(root, InstallState.LEGACY_FILENAME).toPath());
+    }
+
+    /**
+     * Drops the copy of removed nodes.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+
+        @Override
+        protected void onDeleted(Node node) {
+            InstallStateIndex.get().remove(node.getNodeName());
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.ComputerListener;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Which setup item applies to which node, computed once instead of evaluating
+ * every label expression against every node at every setup.
+ *
+ * The matrix has one row per node, a bit per item, computed when the node is
+ * first asked for. It is dropped when the setup config is saved or when nodes
+ * change, and a row alone when only its node changed.
+ */
+public class LabelMatchIndex {
+
+    private static final LabelMatchIndex INSTANCE = new LabelMatchIndex();
+
+    private volatile Matrix matrix;
+
+    public static LabelMatchIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Matching of one list of items, replaced as a whole when the items change
+     */
+    private static final class Matrix {
+
+        final List<SetupConfigItem> items;
+
+        /**
+         * items define hashCode but not equals, identity is what tells them apart
+         */
+        final Map<SetupConfigItem, Integer> indexes = new IdentityHashMap<>();
+
+        /**
+         * node name to the indexes of the items it matches
+         */
+        final ConcurrentMap<String, BitSet> rows = new ConcurrentHashMap<>();
+
+        /**
+         * item index to the names of the nodes it matches, computed on demand
+         */
+        volatile List<List<String>> columns;
+
+        Matrix(List<SetupConfigItem> items) {
+            this.items = items;
+            for (int i = 0; i < items.size(); i++) {
+                indexes.putIfAbsent(items.get(i), i);
+            }
+        }
+    }
+
+    private Matrix current() {
+        List<SetupConfigItem> items = SetupConfig.get().getSetupConfigItems();
+        Matrix m = this.matrix;
+        // saving the config binds a new list, so this also catches saves done behind our back
+        if (m == null || m.items != items) {
+            m = new Matrix(items);
+            this.matrix = m;
+        }
+        return m;
+    }
+
+    private static BitSet row(Matrix m, Node node) {
+        return m.rows.computeIfAbsent(node.getNodeName(), name -> compute(m.items, node));
+    }
+
+    private static BitSet compute(List<SetupConfigItem> items, Node node) {
+        BitSet row = new BitSet(items.size());
+        Set<LabelAtom> labels = node.getAssignedLabels();
+        if (labels == null) return row;
+        for (int i = 0; i < items.size(); i++) {
+            Label label = items.get(i).getLabel();
+            if (label != null && label.matches(labels)) row.set(i);
+        }
+        return row;
+    }
+
+    /**
+     * @param item SetupConfigItem of the global config
+     * @param node Node to check, may be null
+     * @return true if item applies to node, same as Utils.labelMatches
+     */
+    public boolean matches(SetupConfigItem item, Node node) {
+        if (node == null) return false;
+        Matrix m = current();
+        int index = indexOf(m, item);
+        if (index < 0) return Utils.labelMatches(item.getAssignedLabelString(), node);
+        return row(m, node).get(index);
+    }
+
+    /**
+     * @param item SetupConfigItem of the global config
+     * @param computer Computer to check
+     * @return true if item applies to the node of computer
+     */
+    public boolean matches(SetupConfigItem item, Computer computer) {
+        return matches(item, computer.getNode());
+    }
+
+    /**
+     * @param node Node to check
+     * @return List of the items applying to node, in config order
+     */
+    public List<SetupConfigItem> getItems(Node node) {
+        Matrix m = current();
+        BitSet row = row(m, node);
+        List<SetupConfigItem> items = new ArrayList<>(row.cardinality());
+        for (int i = row.nextSetBit(0); i >= 0; i = row.nextSetBit(i + 1)) {
+            items.add(m.items.get(i));
+        }
+        return items;
+    }
+
+    /**
+     * @param item SetupConfigItem of the global config
+     * @return List of the names of the nodes item applies to
+     */
+    public List<String> getNodeNames(SetupConfigItem item) {
+        Matrix m = current();
+        int index = indexOf(m, item);
+        if (index < 0) return Collections.emptyList();
+
+        List<List<String>> columns = m.columns;
+        if (columns == null) {
+            columns = new ArrayList<>(m.items.size());
+            for (int i = 0; i < m.items.size(); i++) {
+                columns.add(new ArrayList<>());
+            }
+            for (Node node : Jenkins.get().getNodes()) {
+                BitSet row = row(m, node);
+                for (int i = row.nextSetBit(0); i >= 0; i = row.nextSetBit(i + 1)) {
+                    columns.get(i).add(node.getNodeName());
+                }
+            }
+            m.columns = columns;
+        }
+        return Collections.unmodifiableList(columns.get(index));
+    }
+
+    private static int indexOf(Matrix m, SetupConfigItem item) {
+        Integer index = m.indexes.get(item);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Drops the whole matrix, to be called when items or many nodes changed
+     */
+    public void invalidate() {
+        this.matrix = null;
+    }
+
+    /**
+     * Drops the row of one node, to be called when its labels may have changed
+     *
+     * @param nodeName String name of the node
+     */
+    public void invalidate(String nodeName) {
+        Matrix m = this.matrix;
+        if (m == null) return;
+        m.rows.remove(nodeName);
+        m.columns = null;
+    }
+
+    /**
+     * Keeps rows in line with the nodes.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+
+        @Override
+        protected void onCreated(Node node) {
+            LabelMatchIndex.get().invalidate(node.getNodeName());
+        }
+
+        @Override
+        protected void onUpdated(Node oldOne, Node newOne) {
+            LabelMatchIndex.get().invalidate(oldOne.getNodeName());
+            LabelMatchIndex.get().invalidate(newOne.getNodeName());
+        }
+
+        @Override
+        protected void onDeleted(Node node) {
+            LabelMatchIndex.get().invalidate(node.getNodeName());
+        }
+    }
+
+    /**
+     * Labels may also change through the node configuration or label finders.
+     */
+    @Extension
+    public static class ConfigurationListener extends ComputerListener {
+
+        @Override
+        public void onConfigurationChange() {
+            LabelMatchIndex.get().invalidate();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import java.util.Collection;
+
+/**
+ * Outcome of the setup of one node during a rollout.
+ */
+public class NodeSetupResult {
+
+    public enum Status {
+        SUCCESS,
+        FAILED,
+        TIMED_OUT,
+        OFFLINE,
+        /**
+         * not started because a rollout of a newer configuration replaced the one it belonged to
+         */
+        SUPERSEDED
+    }
+
+    private final String nodeName;
+    private final Status status;
+    private final String message;
+    private final long durationMillis;
+
+    public NodeSetupResult(String nodeName, Status status, String message, long durationMillis) {
+        this.nodeName = nodeName;
+        this.status = status;
+        this.message = message;
+        this.durationMillis = durationMillis;
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return String error message of a failed setup, null when succeeded
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Offline nodes are skipped, they will be set up once they connect;
+     * superseded ones are set up by the newer rollout.
+     *
+     * @return true if the node is not left in a failed state
+     */
+    public boolean isSuccess() {
+        return status == Status.SUCCESS || status == Status.OFFLINE || status == Status.SUPERSEDED;
+    }
+
+    /**
+     * @param results results of a rollout
+     * @return true if every node of the rollout went ok
+     */
+    public static boolean allSucceeded(Collection<NodeSetupResult> results) {
+        for (NodeSetupResult result : results) {
+            if (!result.isSuccess()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return nodeName + ": " + status + (message == null ? "" : " (" + message + ")");
+    }
+}
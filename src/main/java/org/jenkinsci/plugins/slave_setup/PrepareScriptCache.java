@@ -0,0 +1,180 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.EnvVars;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Runs the prepare script of the items asking for it once per version instead
+ * of once per agent.
+ *
+ * Deploys of the same version at the same time wait for the run in progress and
+ * share its result. A successful run is remembered under JENKINS_HOME until the
+ * script, the files directory of the item or the content of that directory
+ * change. The content the script itself leaves in the directory is remembered
+ * too, so a script writing there doesn't run again on the next deploy.
+ */
+public class PrepareScriptCache {
+
+    private static final Logger LOGGER = Logger.getLogger(PrepareScriptCache.class.getName());
+
+    private static final PrepareScriptCache INSTANCE = new PrepareScriptCache();
+
+    /**
+     * exit code given to waiters when the run they waited for ended abnormally
+     */
+    static final int FAILED = 0xffffff0A;
+
+    private final ConcurrentMap<String, CompletableFuture<Integer>> running = new ConcurrentHashMap<>();
+
+    /**
+     * versions which ran successfully, read from disk on first use
+     */
+    private volatile Set<String> succeeded;
+
+    public static PrepareScriptCache get() {
+        return INSTANCE;
+    }
+
+    private File getDirectory() {
+        return new File(Jenkins.get().getRootDir(), "slave-setup/prepared");
+    }
+
+    /**
+     * @param item SetupConfigItem having a prepare script
+     * @return String version of the prepare script and of what it works on
+     */
+    static String keyOf(SetupConfigItem item) {
+        return keyOf(item, false);
+    }
+
+    /**
+     * @param rescan true to scan the files directory again, seeing the files
+     *               just written without waiting for the watcher
+     */
+    private static String keyOf(SetupConfigItem item, boolean rescan) {
+        File dir = item.getFilesDir();
+        String files;
+        try {
+            files = (rescan ? FileTreeIndex.get().scan(dir) : FileTreeIndex.get().manifestOf(dir)).digest();
+        } catch (IOException e) {
+            // the copy will fail telling why
+            LOGGER.log(Level.FINE, "Failed to read " + dir, e);
+            files = "unreadable";
+        }
+        return FileManifest.digestOf(item.getPrepareScript() + '\n' + dir + '\n' + files);
+    }
+
+    /**
+     * Runs the prepare script of item unless this version already ran
+     * successfully or is running for another agent, in which case its result is
+     * used.
+     *
+     * @param item       SetupConfigItem having a prepare script
+     * @param enviroment EnvVars of the agent being deployed, used only if the script runs
+     * @param log        SetupLog of the agent being deployed
+     * @return int exit code of the script, 0 if it succeeded now or before
+     * @throws InterruptedException interrupted while waiting for another run
+     */
+    public int run(SetupConfigItem item, EnvVars enviroment, SetupLog log) throws InterruptedException {
+        String key = keyOf(item);
+        if (isDone(key)) {
+            log.info("Prepare script of " + item.getAssignedLabelString() + " already ran for this version");
+            return 0;
+        }
+
+        CompletableFuture<Integer> mine = new CompletableFuture<>();
+        CompletableFuture<Integer> shared = running.putIfAbsent(key, mine);
+        if (shared != null) {
+            log.info("Waiting for the prepare script of " + item.getAssignedLabelString() + " run by another deploy");
+            try {
+                return shared.get();
+            } catch (ExecutionException e) {
+                return FAILED;
+            }
+        }
+
+        int result = FAILED;
+        try {
+            // it may have ended between the check and taking the slot
+            if (isDone(key)) {
+                result = 0;
+            } else {
+                result = SetupDeployer.executeScriptOnMaster(log.getListener(), item.getPrepareScript(), enviroment);
+                if (result == 0) {
+                    markDone(key);
+                    // what the script wrote in the directory is part of this version
+                    markDone(keyOf(item, true));
+                }
+            }
+        } finally {
+            running.remove(key, mine);
+            mine.complete(result);
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the versions not used by the given items anymore, so they run again
+     * if they come back.
+     *
+     * @param items Collection of the configured SetupConfigItem
+     */
+    public void retain(Collection<SetupConfigItem> items) {
+        Set<String> keep = new HashSet<>();
+        for (SetupConfigItem item : items) {
+            if (item.getPrepareScript() != null) keep.add(keyOf(item));
+        }
+        Set<String> done = succeeded();
+        for (String key : done.toArray(new String[0])) {
+            if (keep.contains(key)) continue;
+            done.remove(key);
+            new File(getDirectory(), key).delete();
+        }
+    }
+
+    private boolean isDone(String key) {
+        return succeeded().contains(key);
+    }
+
+    private void markDone(String key) {
+        succeeded().add(key);
+        File marker = new File(getDirectory(), key);
+        try {
+            Files.createDirectories(marker.getParentFile().toPath());
+            Files.writeString(marker.toPath(), Long.toString(System.currentTimeMillis()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // only costs a run after the next restart
+            LOGGER.log(Level.WARNING, "Failed to remember the prepare script run " + key, e);
+        }
+    }
+
+    private Set<String> succeeded() {
+        Set<String> done = this.succeeded;
+        if (done == null) {
+            synchronized (this) {
+                done = this.succeeded;
+                if (done == null) {
+                    done = ConcurrentHashMap.newKeySet();
+                    String[] markers = getDirectory().list();
+                    if (markers != null) done.addAll(Arrays.asList(markers));
+                    this.succeeded = done;
+                }
+            }
+        }
+        return done;
+    }
+}
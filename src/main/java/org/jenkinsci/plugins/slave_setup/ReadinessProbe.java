@@ -0,0 +1,183 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.FilePath;
+import hudson.Proc;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Tells from the controller whether an on-demand agent started by the start
+ * script of its SetupSlaveLauncher can be connected to, so the connection
+ * begins without waiting for the script to exit. Probes are polled with a
+ * growing delay between two polls, and must return quickly.
+ */
+public abstract class ReadinessProbe extends AbstractDescribableImpl<ReadinessProbe> implements ExtensionPoint {
+
+    /**
+     * @param listener TaskListener of the launch
+     * @return true if the agent can now be connected to
+     * @throws IOException          if the probe failed to run, the agent being then not ready
+     * @throws InterruptedException if the launch was cancelled
+     */
+    public abstract boolean isReady(TaskListener listener) throws IOException, InterruptedException;
+
+    public abstract static class ReadinessProbeDescriptor extends Descriptor<ReadinessProbe> {}
+
+    /**
+     * No probe: the agent is ready once the start script exited successfully.
+     */
+    public static class ScriptExit extends ReadinessProbe {
+
+        @DataBoundConstructor
+        public ScriptExit() {}
+
+        @Override
+        public boolean isReady(TaskListener listener) {
+            return false;
+        }
+
+        @Extension(ordinal = 100)
+        public static class DescriptorImpl extends ReadinessProbeDescriptor {
+            @Override
+            public String getDisplayName() {
+                return "When the start script exits";
+            }
+        }
+    }
+
+    /**
+     * Ready once a TCP port accepts connections, the SSH port of the agent for instance.
+     */
+    public static class Port extends ReadinessProbe {
+
+        /**
+         * milliseconds given to each connection attempt
+         */
+        static final int CONNECT_TIMEOUT = 2000;
+
+        private final String host;
+        private final int port;
+
+        @DataBoundConstructor
+        public Port(String host, int port) {
+            this.host = Util.fixEmptyAndTrim(host);
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public boolean isReady(TaskListener listener) {
+            if (host == null || port <= 0) return false;
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Extension
+        public static class DescriptorImpl extends ReadinessProbeDescriptor {
+            @Override
+            public String getDisplayName() {
+                return "When a port accepts connections";
+            }
+        }
+    }
+
+    /**
+     * Ready once a file exists on the controller, one the start script creates
+     * when the agent is up for instance. A relative path is in JENKINS_HOME.
+     */
+    public static class FileExists extends ReadinessProbe {
+
+        private final String path;
+
+        @DataBoundConstructor
+        public FileExists(String path) {
+            this.path = Util.fixEmptyAndTrim(path);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public boolean isReady(TaskListener listener) {
+            if (path == null) return false;
+            File file = new File(path);
+            if (!file.isAbsolute()) file = new File(Jenkins.get().getRootDir(), path);
+            return file.exists();
+        }
+
+        @Extension
+        public static class DescriptorImpl extends ReadinessProbeDescriptor {
+            @Override
+            public String getDisplayName() {
+                return "When a file exists";
+            }
+        }
+    }
+
+    /**
+     * Ready once a script run on the controller exits with 0.
+     */
+    public static class Command extends ReadinessProbe {
+
+        /**
+         * seconds a probe script may run before it is killed
+         */
+        static final int COMMAND_TIMEOUT = 30;
+
+        private final String command;
+
+        @DataBoundConstructor
+        public Command(String command) {
+            this.command = Util.fixEmptyAndTrim(command);
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        @Override
+        public boolean isReady(TaskListener listener) throws IOException, InterruptedException {
+            if (command == null) return false;
+            // polled many times per launch, its script files must not pile up in JENKINS_HOME
+            FilePath scripts = new FilePath(Files.createTempDirectory("slave-setup-probe").toFile());
+            try {
+                Proc proc = Utils.multiOsStart(TaskListener.NULL, command, Jenkins.get().getRootPath(), null, scripts);
+                return proc.joinWithTimeout(COMMAND_TIMEOUT, TimeUnit.SECONDS, TaskListener.NULL) == 0;
+            } finally {
+                scripts.deleteRecursive();
+            }
+        }
+
+        @Extension
+        public static class DescriptorImpl extends ReadinessProbeDescriptor {
+            @Override
+            public String getDisplayName() {
+                return "When a script succeeds";
+            }
+        }
+    }
+}
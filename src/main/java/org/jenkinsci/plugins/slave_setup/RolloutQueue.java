@@ -0,0 +1,251 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.Extension;
+import hudson.model.AdministrativeMonitor;
+import hudson.model.Computer;
+import hudson.model.RootAction;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+import org.kohsuke.stapler.verb.GET;
+
+/**
+ * Runs the rollouts in the background, one at a time in the order they were
+ * submitted, so saving the configuration returns as soon as its rollout is
+ * queued. The last rollouts are kept in memory to show their progress at
+ * JENKINS_URL/slave-setup-rollout/.
+ *
+ * A rollout waits rolloutDebounceSeconds before it is run: the saves made in
+ * the meantime supersede it, and only the rollout of the last one runs, once
+ * the window opened by the first one is over. Every new rollout supersedes the
+ * older ones still queued, running or waiting to be resumed.
+ */
+public class RolloutQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(RolloutQueue.class.getName());
+
+    private static final RolloutQueue INSTANCE = new RolloutQueue();
+
+    /**
+     * number of finished rollouts kept to be shown
+     */
+    static final int HISTORY = 10;
+
+    /**
+     * @return RolloutQueue of this controller
+     */
+    public static RolloutQueue get() {
+        return INSTANCE;
+    }
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "SetupRolloutQueue"));
+
+    /**
+     * rollouts queued, running and last finished, newest first
+     */
+    private final Deque<WaveRollout> rollouts = new ArrayDeque<>();
+
+    /**
+     * number of the last configuration snapshot submitted
+     */
+    private long snapshot;
+
+    /**
+     * rollout waiting for the end of the debounce window, null if none is
+     */
+    private WaveRollout debounced;
+
+    /**
+     * Queues a rollout of the deployNow items to the given agents, for a new
+     * snapshot of the configuration superseding the previous ones.
+     *
+     * @param computers List of the online agents
+     * @return WaveRollout queued
+     */
+    public synchronized WaveRollout submit(List<Computer> computers) {
+        WaveRollout current = WaveRollout.getCurrent();
+        snapshot = Math.max(snapshot, current == null ? 0 : current.getSnapshot()) + 1;
+        WaveRollout rollout = WaveRollout.of(computers, snapshot);
+        for (WaveRollout older : getRollouts()) {
+            if (older.supersede(rollout)) {
+                LOGGER.log(Level.INFO, "Agent setup rollout {0} superseded by {1}", new Object[] {
+                    older.getId(), rollout.getId()
+                });
+            }
+        }
+        remember(rollout);
+        if (debounced == null) {
+            Timer.get().schedule(this::startDebounced, SetupConfig.get().getRolloutDebounceSeconds(), TimeUnit.SECONDS);
+        }
+        debounced = rollout;
+        return rollout;
+    }
+
+    private synchronized void startDebounced() {
+        WaveRollout rollout = debounced;
+        debounced = null;
+        if (rollout != null) worker.submit(() -> run(rollout));
+    }
+
+    /**
+     * Queues a halted or interrupted rollout to run its next waves.
+     *
+     * @param rollout WaveRollout to resume
+     * @return true if it was queued, false if it can't be resumed or already was
+     */
+    public boolean resume(WaveRollout rollout) {
+        if (!rollout.markResumed()) return false;
+        remember(rollout);
+        worker.submit(() -> run(rollout));
+        return true;
+    }
+
+    private void run(WaveRollout rollout) {
+        try {
+            rollout.run();
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.INFO, "Agent setup rollout {0} interrupted", rollout.getId());
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Agent setup rollout " + rollout.getId() + " failed", e);
+        }
+    }
+
+    private synchronized void remember(WaveRollout rollout) {
+        rollouts.remove(rollout);
+        rollouts.addFirst(rollout);
+        int finished = 0;
+        for (WaveRollout known : new ArrayList<>(rollouts)) {
+            if (!isActive(known) && ++finished > HISTORY) rollouts.remove(known);
+        }
+    }
+
+    /**
+     * @return List of the rollouts queued, running and last finished, newest first,
+     *         with the one resumable after a restart
+     */
+    public synchronized List<WaveRollout> getRollouts() {
+        List<WaveRollout> known = new ArrayList<>(rollouts);
+        WaveRollout current = WaveRollout.getCurrent();
+        if (current != null && !known.contains(current)) known.add(current);
+        return known;
+    }
+
+    /**
+     * @param id String id of a rollout
+     * @return WaveRollout known with this id, null if none is
+     */
+    public WaveRollout getRollout(String id) {
+        for (WaveRollout rollout : getRollouts()) {
+            if (rollout.getId().equals(id)) return rollout;
+        }
+        return null;
+    }
+
+    private static boolean isActive(WaveRollout rollout) {
+        WaveRollout.Status status = rollout.getStatus();
+        return status == WaveRollout.Status.QUEUED || status == WaveRollout.Status.RUNNING;
+    }
+
+    /**
+     * @return WaveRollout newest queued or running, else the last one run if it
+     *         needs to be resumed, null if there is none
+     */
+    public WaveRollout getPending() {
+        for (WaveRollout rollout : getRollouts()) {
+            if (isActive(rollout)) return rollout;
+        }
+        WaveRollout current = WaveRollout.getCurrent();
+        return current != null && current.isResumable() ? current : null;
+    }
+
+    /**
+     * Progress of the rollouts at JENKINS_URL/slave-setup-rollout/, as JSON at
+     * status, resumed by a POST to resume.
+     */
+    @Extension
+    public static class RolloutAction implements RootAction {
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Agent setup rollouts";
+        }
+
+        @Override
+        public String getUrlName() {
+            return "slave-setup-rollout";
+        }
+
+        public List<WaveRollout> getRollouts() {
+            return RolloutQueue.get().getRollouts();
+        }
+
+        @GET
+        public HttpResponse doStatus(@QueryParameter String id) {
+            Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+            if (id != null) {
+                WaveRollout rollout = RolloutQueue.get().getRollout(id);
+                return rollout == null ? HttpResponses.notFound() : HttpResponses.okJSON(rollout.toJSON());
+            }
+            JSONArray json = new JSONArray();
+            for (WaveRollout rollout : getRollouts()) {
+                json.element(rollout.toJSON());
+            }
+            return HttpResponses.okJSON(json);
+        }
+
+        @RequirePOST
+        public HttpResponse doResume(@QueryParameter String id) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            WaveRollout rollout = id == null ? WaveRollout.getCurrent() : RolloutQueue.get().getRollout(id);
+            if (rollout == null) return HttpResponses.notFound();
+            if (!RolloutQueue.get().resume(rollout)) return HttpResponses.errorJSON("Nothing to resume");
+            return HttpResponses.redirectToDot();
+        }
+    }
+
+    /**
+     * Tells the administrators a rollout is in progress or needs to be resumed.
+     */
+    @Extension
+    public static class RolloutMonitor extends AdministrativeMonitor {
+
+        @Override
+        public String getDisplayName() {
+            return "Agent setup rollouts";
+        }
+
+        @Override
+        public boolean isActivated() {
+            return getRollout() != null;
+        }
+
+        /**
+         * @return WaveRollout to be shown, see RolloutQueue.getPending()
+         */
+        public WaveRollout getRollout() {
+            return RolloutQueue.get().getPending();
+        }
+    }
+}
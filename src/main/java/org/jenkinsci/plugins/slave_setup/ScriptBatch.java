@@ -0,0 +1,308 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.EnvVars;
+import hudson.Proc;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * One run of the start script of SetupSlaveLauncher for all the agents
+ * launched with this script during scriptBatchWindowSeconds of SetupConfig.
+ * The script gets the names of the agents in SETUP_NODES, separated by
+ * spaces, and in the file SETUP_NODES_FILE, one per line. It tells an agent is
+ * ready by creating a file named as the agent in SETUP_READY_DIR, its launch
+ * then going on. Once the script exits with 0 all its agents are ready,
+ * otherwise the ones not reported ready fail.
+ *
+ * The output of the script goes to the log of every launch of the batch, and
+ * the timeout of the launch which opened the batch applies to it. Stop scripts
+ * are batched by the StopScriptQueue, with the same variables.
+ */
+public class ScriptBatch {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptBatch.class.getName());
+
+    /**
+     * names of the agents of the batch, separated by spaces
+     */
+    public static final String NODES = "SETUP_NODES";
+
+    /**
+     * file listing the names of the agents of the batch, one per line
+     */
+    public static final String NODES_FILE = "SETUP_NODES_FILE";
+
+    /**
+     * directory where the script creates a file named as each agent ready
+     */
+    public static final String READY_DIR = "SETUP_READY_DIR";
+
+    public enum State {
+        RUNNING,
+        READY,
+        FAILED
+    }
+
+    /**
+     * batches collecting launches, by start script
+     */
+    private static final Map<String, ScriptBatch> OPEN = new HashMap<>();
+
+    private static final ExecutorService WAITER =
+            Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "SetupScriptBatch"));
+
+    private final String script;
+    private final int timeoutSeconds;
+    private final List<String> nodes = new ArrayList<>();
+
+    /**
+     * logs of the launches still waiting for the script, the ones given up leaving it
+     */
+    private final List<OutputStream> outputs = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<Void> started = new CompletableFuture<>();
+
+    private File dir;
+    private Proc proc;
+
+    /**
+     * exit code of the script, null while it runs
+     */
+    private Integer exitCode;
+
+    /**
+     * agents reported ready when the script exited
+     */
+    private Set<String> reported;
+
+    private ScriptBatch(String script, int timeoutSeconds) {
+        this.script = script;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Adds an agent to the batch collecting launches with this script, opening
+     * one started after the window if there is none.
+     *
+     * @param script         String start script
+     * @param node           String name of the agent launched
+     * @param listener       TaskListener of the launch, getting the output of the script
+     * @param timeoutSeconds int seconds the script may run if a batch is opened, 0 for no limit
+     * @return ScriptBatch the agent is in
+     */
+    static ScriptBatch join(String script, String node, TaskListener listener, int timeoutSeconds) {
+        synchronized (OPEN) {
+            ScriptBatch batch = OPEN.get(script);
+            if (batch == null) {
+                ScriptBatch opened = new ScriptBatch(script, timeoutSeconds);
+                OPEN.put(script, opened);
+                Timer.get()
+                        .schedule(opened::start, SetupConfig.get().getScriptBatchWindowSeconds(), TimeUnit.SECONDS);
+                batch = opened;
+            }
+            batch.nodes.add(node);
+            batch.outputs.add(listener.getLogger());
+            return batch;
+        }
+    }
+
+    /**
+     * Takes an agent whose launch failed or was cancelled out of the batch. Its
+     * log stops getting the output of the script, and if the script wasn't
+     * started yet it won't be told about the agent.
+     *
+     * @param node     String name of the agent
+     * @param listener TaskListener given to join
+     * @return true if the script never ran for the agent, false if it may have started its machine
+     */
+    boolean leave(String node, TaskListener listener) {
+        outputs.remove(listener.getLogger());
+        synchronized (OPEN) {
+            if (OPEN.get(script) == this) {
+                nodes.remove(node);
+                return true;
+            }
+        }
+        return started.isCompletedExceptionally();
+    }
+
+    /**
+     * Writes the list of the agents in dir.
+     *
+     * @param nodes List of the names of the agents
+     * @param dir   File directory for the files of the script
+     * @return EnvVars telling the script its agents
+     * @throws IOException if the list can't be written
+     */
+    static EnvVars environment(List<String> nodes, File dir) throws IOException {
+        File list = new File(dir, "nodes");
+        Files.write(list.toPath(), nodes, StandardCharsets.UTF_8);
+        return new EnvVars(NODES, String.join(" ", nodes), NODES_FILE, list.getPath());
+    }
+
+    private void start() {
+        List<String> members;
+        synchronized (OPEN) {
+            OPEN.remove(script, this);
+            members = new ArrayList<>(nodes);
+        }
+        if (members.isEmpty()) {
+            // every launch gave up during the window
+            started.complete(null);
+            return;
+        }
+        try {
+            dir = Files.createTempDirectory("slave-setup-batch").toFile();
+            File ready = new File(dir, "ready");
+            if (!ready.mkdir()) throw new IOException("Failed to create " + ready);
+            EnvVars env = environment(members, dir);
+            env.put(READY_DIR, ready.getPath());
+            TaskListener listener = new StreamTaskListener(new FanOut(outputs), StandardCharsets.UTF_8);
+            listener.getLogger().println("Start script run for " + members.size() + " agents: " + env.get(NODES));
+            synchronized (this) {
+                proc = Utils.multiOsStart(listener, script, Jenkins.get().getRootPath(), env);
+            }
+            WAITER.execute(this::await);
+            if (timeoutSeconds > 0) Timer.get().schedule(this::kill, timeoutSeconds, TimeUnit.SECONDS);
+            started.complete(null);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to start the batched start script of " + members, e);
+            cleanUp();
+            started.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Waits for the script to exit, then keeps which agents it reported ready.
+     */
+    private void await() {
+        int r;
+        try {
+            r = proc.join();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Batched start script of " + nodes + " failed", e);
+            r = -1;
+        } catch (InterruptedException e) {
+            r = -1;
+            Thread.currentThread().interrupt();
+        }
+        String[] ready = new File(dir, "ready").list();
+        synchronized (this) {
+            reported = new HashSet<>(List.of(ready == null ? new String[0] : ready));
+            exitCode = r;
+        }
+        cleanUp();
+    }
+
+    private void kill() {
+        try {
+            if (proc.isAlive()) proc.kill();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to kill the batched start script of " + nodes, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void cleanUp() {
+        if (dir == null) return;
+        try {
+            Util.deleteRecursive(dir);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to delete " + dir, e);
+        }
+    }
+
+    /**
+     * Waits for the end of the window, when the script is started.
+     *
+     * @throws IOException          if the script couldn't be started
+     * @throws InterruptedException if the launch was cancelled
+     */
+    void awaitStarted() throws IOException, InterruptedException {
+        try {
+            started.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to start the batched start script", e.getCause());
+        }
+    }
+
+    /**
+     * @param node String name of an agent of the batch
+     * @return State of the agent: ready once reported or the script succeeded,
+     *         failed if the script failed without reporting it
+     */
+    synchronized State getState(String node) {
+        if (exitCode == null) return new File(dir, "ready/" + node).exists() ? State.READY : State.RUNNING;
+        return exitCode == 0 || reported.contains(node) ? State.READY : State.FAILED;
+    }
+
+    /**
+     * @return Integer exit code of the script, null while it runs
+     */
+    synchronized Integer getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Copies the output of a script to all the logs of its batch.
+     */
+    static class FanOut extends OutputStream {
+
+        private final List<? extends OutputStream> outputs;
+
+        FanOut(List<? extends OutputStream> outputs) {
+            this.outputs = outputs;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (OutputStream out : outputs) {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    // a launch log closed since, the others still get the output
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            for (OutputStream out : outputs) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    // same as write
+                }
+            }
+        }
+    }
+}
@@ -6,7 +6,6 @@ import hudson.Util;
 import hudson.model.*;
 import hudson.model.labels.LabelAtom;
 import hudson.util.FormValidation;
-import hudson.util.LogTaskListener;
 import java.io.File;
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -32,8 +31,109 @@ public class SetupConfig extends GlobalConfiguration {
 
     private List<SetupConfigItem> setupConfigItems = new ArrayList<SetupConfigItem>();
 
+    /**
+     * maximum number of nodes set up at the same time on save
+     */
+    private int maxConcurrentSetups = 8;
+
+    /**
+     * minutes given to each node to finish its setup, 0 for no limit
+     */
+    private int setupTimeoutMinutes = 30;
+
+    /**
+     * size in MB of the controller side cache of packed setup files, 0 to disable it
+     */
+    private int archiveCacheSizeMB = 1024;
+
+    /**
+     * compression of the packed setup files
+     */
+    private ArchiveCache.Codec archiveCompression = ArchiveCache.Codec.GZIP;
+
+    /**
+     * compression level of the packed setup files, 1 (fastest) to 9 (smallest)
+     */
+    private int archiveCompressionLevel = 6;
+
+    /**
+     * how the items of a node are deployed
+     */
+    private SetupPlan.ExecutionMode executionMode = SetupPlan.ExecutionMode.STEPWISE;
+
+    /**
+     * maximum number of items deployed at the same time on one node
+     */
+    private int maxParallelItems = 1;
+
+    /**
+     * percentage of the agents in the first wave of a rollout, 100 to set them all up at once
+     */
+    private int rolloutCanaryPercent = 100;
+
+    /**
+     * factor between the number of agents of two waves of a rollout
+     */
+    private int rolloutWaveGrowth = 2;
+
+    /**
+     * percentage of the agents of a wave allowed to fail before the rollout halts
+     */
+    private int rolloutFailureBudgetPercent = 100;
+
+    /**
+     * seconds a rollout waits for more saves to be merged into it
+     */
+    private int rolloutDebounceSeconds = 10;
+
+    /**
+     * on-demand agents of a label kept started at least, see WarmPool
+     */
+    private int warmPoolMinSize = 0;
+
+    /**
+     * on-demand agents of a label kept started at most, 0 to disable the warm pool
+     */
+    private int warmPoolMaxSize = 0;
+
+    /**
+     * minutes an idle agent started by the warm pool is kept before it is stopped
+     */
+    private int warmPoolIdleMinutes = 30;
+
+    /**
+     * maximum number of stop scripts of on-demand agents run at the same time
+     */
+    private int maxConcurrentStopScripts = 8;
+
+    /**
+     * seconds a stop script may run before it is killed, 0 for no limit
+     */
+    private int stopScriptTimeoutSeconds = 300;
+
+    /**
+     * times a failed stop script is run again
+     */
+    private int stopScriptRetries = 2;
+
+    /**
+     * seconds the shutdown of Jenkins waits for the stop scripts left
+     */
+    private int shutdownStopWaitSeconds = 60;
+
+    /**
+     * seconds the start and stop scripts of on-demand agents are collected to run once for all, 0 to disable it
+     */
+    private int scriptBatchWindowSeconds = 0;
+
+    /**
+     * seconds a disconnected on-demand agent is kept running in case it is launched again, 0 to stop it right away
+     */
+    private int stopGraceSeconds = 0;
+
     public SetupConfig() {
         load();
+        if (setupConfigItems != null) SetupConfigItem.assignIdentities(setupConfigItems);
     }
 
     public List<SetupConfigItem> getSetupConfigItems() {
@@ -41,27 +141,202 @@ public class SetupConfig extends GlobalConfiguration {
     }
 
     public void setSetupConfigItems(List<SetupConfigItem> setupConfigItems) {
+        if (setupConfigItems != null) SetupConfigItem.assignIdentities(setupConfigItems);
         this.setupConfigItems = setupConfigItems;
     }
 
+    public int getMaxConcurrentSetups() {
+        return maxConcurrentSetups;
+    }
+
+    public void setMaxConcurrentSetups(int maxConcurrentSetups) {
+        this.maxConcurrentSetups = Math.max(1, maxConcurrentSetups);
+    }
+
+    public int getSetupTimeoutMinutes() {
+        return setupTimeoutMinutes;
+    }
+
+    public void setSetupTimeoutMinutes(int setupTimeoutMinutes) {
+        this.setupTimeoutMinutes = Math.max(0, setupTimeoutMinutes);
+    }
+
+    public int getArchiveCacheSizeMB() {
+        return archiveCacheSizeMB;
+    }
+
+    public void setArchiveCacheSizeMB(int archiveCacheSizeMB) {
+        this.archiveCacheSizeMB = Math.max(0, archiveCacheSizeMB);
+    }
+
+    public ArchiveCache.Codec getArchiveCompression() {
+        return archiveCompression == null ? ArchiveCache.Codec.GZIP : archiveCompression;
+    }
+
+    public void setArchiveCompression(ArchiveCache.Codec archiveCompression) {
+        this.archiveCompression = archiveCompression;
+    }
+
+    public int getArchiveCompressionLevel() {
+        return archiveCompressionLevel;
+    }
+
+    public void setArchiveCompressionLevel(int archiveCompressionLevel) {
+        this.archiveCompressionLevel = Math.max(1, Math.min(9, archiveCompressionLevel));
+    }
+
+    public SetupPlan.ExecutionMode getExecutionMode() {
+        return executionMode == null ? SetupPlan.ExecutionMode.STEPWISE : executionMode;
+    }
+
+    public void setExecutionMode(SetupPlan.ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    public int getMaxParallelItems() {
+        return Math.max(1, maxParallelItems);
+    }
+
+    public void setMaxParallelItems(int maxParallelItems) {
+        this.maxParallelItems = Math.max(1, maxParallelItems);
+    }
+
+    public int getRolloutCanaryPercent() {
+        return rolloutCanaryPercent;
+    }
+
+    public void setRolloutCanaryPercent(int rolloutCanaryPercent) {
+        this.rolloutCanaryPercent = Math.max(1, Math.min(100, rolloutCanaryPercent));
+    }
+
+    public int getRolloutWaveGrowth() {
+        return rolloutWaveGrowth;
+    }
+
+    public void setRolloutWaveGrowth(int rolloutWaveGrowth) {
+        this.rolloutWaveGrowth = Math.max(1, rolloutWaveGrowth);
+    }
+
+    public int getRolloutFailureBudgetPercent() {
+        return rolloutFailureBudgetPercent;
+    }
+
+    public void setRolloutFailureBudgetPercent(int rolloutFailureBudgetPercent) {
+        this.rolloutFailureBudgetPercent = Math.max(0, Math.min(100, rolloutFailureBudgetPercent));
+    }
+
+    public int getRolloutDebounceSeconds() {
+        return rolloutDebounceSeconds;
+    }
+
+    public void setRolloutDebounceSeconds(int rolloutDebounceSeconds) {
+        this.rolloutDebounceSeconds = Math.max(0, rolloutDebounceSeconds);
+    }
+
+    public int getWarmPoolMinSize() {
+        return warmPoolMinSize;
+    }
+
+    public void setWarmPoolMinSize(int warmPoolMinSize) {
+        this.warmPoolMinSize = Math.max(0, warmPoolMinSize);
+    }
+
+    public int getWarmPoolMaxSize() {
+        return warmPoolMaxSize;
+    }
+
+    public void setWarmPoolMaxSize(int warmPoolMaxSize) {
+        this.warmPoolMaxSize = Math.max(0, warmPoolMaxSize);
+    }
+
+    public int getWarmPoolIdleMinutes() {
+        return warmPoolIdleMinutes;
+    }
+
+    public void setWarmPoolIdleMinutes(int warmPoolIdleMinutes) {
+        this.warmPoolIdleMinutes = Math.max(1, warmPoolIdleMinutes);
+    }
+
+    public int getMaxConcurrentStopScripts() {
+        return Math.max(1, maxConcurrentStopScripts);
+    }
+
+    public void setMaxConcurrentStopScripts(int maxConcurrentStopScripts) {
+        this.maxConcurrentStopScripts = Math.max(1, maxConcurrentStopScripts);
+    }
+
+    public int getStopScriptTimeoutSeconds() {
+        return stopScriptTimeoutSeconds;
+    }
+
+    public void setStopScriptTimeoutSeconds(int stopScriptTimeoutSeconds) {
+        this.stopScriptTimeoutSeconds = Math.max(0, stopScriptTimeoutSeconds);
+    }
+
+    public int getStopScriptRetries() {
+        return stopScriptRetries;
+    }
+
+    public void setStopScriptRetries(int stopScriptRetries) {
+        this.stopScriptRetries = Math.max(0, stopScriptRetries);
+    }
+
+    public int getShutdownStopWaitSeconds() {
+        return shutdownStopWaitSeconds;
+    }
+
+    public void setShutdownStopWaitSeconds(int shutdownStopWaitSeconds) {
+        this.shutdownStopWaitSeconds = Math.max(0, shutdownStopWaitSeconds);
+    }
+
+    public int getScriptBatchWindowSeconds() {
+        return scriptBatchWindowSeconds;
+    }
+
+    public void setScriptBatchWindowSeconds(int scriptBatchWindowSeconds) {
+        this.scriptBatchWindowSeconds = Math.max(0, scriptBatchWindowSeconds);
+    }
+
+    public int getStopGraceSeconds() {
+        return stopGraceSeconds;
+    }
+
+    public void setStopGraceSeconds(int stopGraceSeconds) {
+        this.stopGraceSeconds = Math.max(0, stopGraceSeconds);
+    }
+
     /**
      * GlobalConfiguration override.
-     * Begin this SetupConfig initialization binding configJson, seting up Listener and performing
-     * this config execution on all activeSlaves.
+     * Begin this SetupConfig initialization binding configJson and queuing
+     * this config execution on all activeSlaves, done in the background by the RolloutQueue.
      *
      * @param req StaplerRequest2 from jenkins classes
      * @param json JSONObject from jenkins classes
      *
-     * @return Boolean if the config setup for all the slaves went correctly if true.
+     * @return Boolean true once the configuration is saved and its rollout queued
      */
     @Override
     public boolean configure(StaplerRequest2 req, JSONObject json) throws FormException {
+        // checked before binding, a rejected form must not replace the items in use
+        Object submitted = json.get("setupConfigItems");
+        List<SetupConfigItem> items =
+                submitted == null ? new ArrayList<>() : req.bindJSONToList(SetupConfigItem.class, submitted);
+        SetupConfigItem.assignIdentities(items);
+        try {
+            new SetupGraph(items);
+        } catch (IllegalArgumentException e) {
+            throw new FormException(e.getMessage(), "setupConfigItems");
+        }
         req.bindJSON(this, json);
         save();
+        LabelMatchIndex.get().invalidate();
+        FileTreeIndex.get().retain(getSetupConfigItems());
+        PrepareScriptCache.get().retain(getSetupConfigItems());
+        SetupMetrics.get().retain(getSetupConfigItems());
 
-        Components.setLogger(new LogTaskListener(LOGGER, Level.ALL));
-
-        return Components.doConfigSetups(Utils.getAllActiveSlaves());
+        WaveRollout rollout = RolloutQueue.get().submit(Utils.getAllActiveSlaves());
+        LOGGER.log(Level.INFO, "Queued agent setup rollout {0}", rollout.getId());
+        return true;
     }
 
     /**
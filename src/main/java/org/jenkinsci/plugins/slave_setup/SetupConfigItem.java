@@ -5,17 +5,31 @@ import hudson.Extension;
 import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
+import hudson.model.Label;
 import hudson.model.labels.LabelAtom;
 import hudson.model.labels.LabelExpression;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * Represents a setup config for one set of labels. It may have its own prepare script, files to copy and command line.
  */
 public class SetupConfigItem extends AbstractDescribableImpl<SetupConfigItem> {
 
+    private static final Logger LOGGER = Logger.getLogger(SetupConfigItem.class.getName());
+
     public static final String DELIMITER = "¼";
 
     /**
@@ -48,6 +62,41 @@ public class SetupConfigItem extends AbstractDescribableImpl<SetupConfigItem> {
      */
     private boolean prepareScriptExecuted = false;
 
+    /**
+     * set to true to run the prepare script once per version instead of once per agent
+     */
+    private boolean prepareScriptOnce;
+
+    /**
+     * name other items refer to in their dependsOn, the label expression if empty
+     */
+    private String name;
+
+    /**
+     * names of the items to be deployed before this one, separated by commas
+     */
+    private String dependsOn;
+
+    /**
+     * getAssignedLabelString() result, the expression being parsed only once
+     */
+    private transient String labelString;
+
+    /**
+     * compiled label, see getLabel()
+     */
+    private transient Label label;
+
+    /**
+     * key in the InstallState given by assignIdentities, null until then
+     */
+    private transient String identity;
+
+    /**
+     * getVersion() result and the manifest of filesDir it was computed from
+     */
+    private transient volatile Version version;
+
     /**
      * Constructor uesd to create the setup config instance
      *
@@ -83,6 +132,7 @@ public class SetupConfigItem extends AbstractDescribableImpl<SetupConfigItem> {
      */
     public void setPrepareScript(String prepareScript) {
         this.prepareScript = prepareScript;
+        this.version = null;
     }
 
     /**
@@ -123,6 +173,7 @@ public class SetupConfigItem extends AbstractDescribableImpl<SetupConfigItem> {
         } else {
             this.filesDir = filesDir;
         }
+        this.version = null;
     }
 
     /**
@@ -132,6 +183,7 @@ public class SetupConfigItem extends AbstractDescribableImpl<SetupConfigItem> {
      */
     public void setCommandLine(String commandLine) {
         this.commandLine = Util.fixEmpty(commandLine);
+        this.version = null;
     }
 
     /**
@@ -143,6 +195,79 @@ public class SetupConfigItem extends AbstractDescribableImpl<SetupConfigItem> {
         this.deployNow = deployNow;
     }
 
+    /**
+     * Returns true if the prepare script runs once per version and not for every agent.
+     *
+     * @return true if the prepare script runs once per version
+     */
+    public boolean isPrepareScriptOnce() {
+        return this.prepareScriptOnce;
+    }
+
+    /**
+     * sets whether the prepare script runs once per version.
+     *
+     * @param prepareScriptOnce true to run it once per version, false to run it for every agent
+     */
+    @DataBoundSetter
+    public void setPrepareScriptOnce(boolean prepareScriptOnce) {
+        this.prepareScriptOnce = prepareScriptOnce;
+    }
+
+    /**
+     * Returns the name other items use to depend on this one.
+     *
+     * @return the name given to this item, its label expression if none was
+     */
+    public String getName() {
+        return StringUtils.isBlank(this.name) ? getLegacyIdentity() : this.name.trim();
+    }
+
+    /**
+     * sets the name of this item.
+     *
+     * @param name the name other items use in their dependencies, empty to use the label expression
+     */
+    @DataBoundSetter
+    public void setName(String name) {
+        this.name = Util.fixEmptyAndTrim(name);
+        this.identity = null;
+    }
+
+    /**
+     * Returns the names of the items this one depends on, as entered by the user.
+     *
+     * @return the dependencies separated by commas, null if there are none
+     */
+    public String getDependsOn() {
+        return this.dependsOn;
+    }
+
+    /**
+     * sets the items to be deployed before this one.
+     *
+     * @param dependsOn names of the items separated by commas
+     */
+    @DataBoundSetter
+    public void setDependsOn(String dependsOn) {
+        this.dependsOn = Util.fixEmptyAndTrim(dependsOn);
+    }
+
+    /**
+     * Returns the names of the items this one depends on.
+     *
+     * @return List of the names, empty if there are none
+     */
+    public List<String> getDependencies() {
+        if (this.dependsOn == null) return Collections.emptyList();
+        List<String> names = new ArrayList<>();
+        for (String dependency : this.dependsOn.split(",")) {
+            dependency = dependency.trim();
+            if (!dependency.isEmpty() && !names.contains(dependency)) names.add(dependency);
+        }
+        return names;
+    }
+
     /**
      * Returns the prepare script executed status.
      * @return the prepare script executed status
@@ -165,17 +290,41 @@ public class SetupConfigItem extends AbstractDescribableImpl<SetupConfigItem> {
      * @return assigned label as string
      */
     public String getAssignedLabelString() {
-        if (StringUtils.isEmpty(this.assignedLabelString)) {
+        String cached = this.labelString;
+        if (cached == null) {
+            cached = parseLabelString(this.assignedLabelString);
+            this.labelString = cached;
+        }
+        return cached;
+    }
+
+    private static String parseLabelString(String assignedLabelString) {
+        if (StringUtils.isEmpty(assignedLabelString)) {
             return "";
         }
 
         try {
-            LabelExpression.parseExpression(this.assignedLabelString);
-            return this.assignedLabelString;
+            LabelExpression.parseExpression(assignedLabelString);
+            return assignedLabelString;
         } catch (ANTLRException e) {
             // must be old label or host name that includes whitespace or other unsafe chars
-            return LabelAtom.escape(this.assignedLabelString);
+            return LabelAtom.escape(assignedLabelString);
+        }
+    }
+
+    /**
+     * Returns the label the nodes must match to get this setup, as used by
+     * Utils.labelMatches. It is compiled once and kept until the label changes.
+     *
+     * @return the compiled label, null if Jenkins can't make one of the expression
+     */
+    public Label getLabel() {
+        Label cached = this.label;
+        if (cached == null) {
+            cached = Label.get(getAssignedLabelString().toLowerCase());
+            this.label = cached;
         }
+        return cached;
     }
 
     /**
@@ -185,6 +334,9 @@ public class SetupConfigItem extends AbstractDescribableImpl<SetupConfigItem> {
      */
     public void setAssignedLabelString(String assignedLabelString) {
         this.assignedLabelString = assignedLabelString;
+        this.labelString = null;
+        this.label = null;
+        this.identity = null;
     }
 
     @Extension
@@ -205,8 +357,114 @@ public class SetupConfigItem extends AbstractDescribableImpl<SetupConfigItem> {
         return (prepareScript + filesDir + commandLine).hashCode();
     }
 
+    /**
+     * Key of this item in the agents InstallState. Two items are the same
+     * installation if and only if their identities are equal, so every item of
+     * the configuration has its own, see assignIdentities.
+     *
+     * @return String identity, the name of the item, else its label expression
+     */
+    public String getIdentity() {
+        String assigned = this.identity;
+        if (assigned != null) return assigned;
+        return StringUtils.isBlank(this.name) ? getLegacyIdentity() : this.name.trim();
+    }
+
+    /**
+     * @return String key of this item in the InstallState written before items had their own identity: the label
+     *         expression as entered by the user
+     */
+    String getLegacyIdentity() {
+        return this.assignedLabelString == null ? "" : this.assignedLabelString;
+    }
+
+    /**
+     * Gives every item of a configuration its identity: its name, or its label
+     * expression when no other item is named so or has the same label
+     * expression. The items sharing a label expression without a name are told
+     * apart by their rank among them, "linux#2" for the second one, so they keep
+     * their identity as long as they stay in the same order. Two items given the
+     * same name keep it and are rejected by SetupGraph.
+     *
+     * @param items List of all the SetupConfigItem of a configuration
+     */
+    public static void assignIdentities(List<SetupConfigItem> items) {
+        Set<String> names = new HashSet<>();
+        Map<String, Integer> unnamed = new HashMap<>();
+        for (SetupConfigItem item : items) {
+            if (StringUtils.isBlank(item.name)) {
+                unnamed.merge(item.getLegacyIdentity(), 1, Integer::sum);
+            } else {
+                names.add(item.name.trim());
+            }
+        }
+        Map<String, Integer> rank = new HashMap<>();
+        for (SetupConfigItem item : items) {
+            if (!StringUtils.isBlank(item.name)) {
+                item.identity = item.name.trim();
+                continue;
+            }
+            String label = item.getLegacyIdentity();
+            int index = rank.merge(label, 1, Integer::sum);
+            item.identity = unnamed.get(label) == 1 && !names.contains(label) ? label : label + "#" + index;
+        }
+    }
+
+    /**
+     * Version of this item, an agent having another version installed gets it
+     * redeployed. It is the SHA-256 of the scripts and of the content of filesDir,
+     * computed again only when the manifest of filesDir or the scripts change.
+     *
+     * @return String version of the scripts and files
+     */
+    public String getVersion() {
+        FileManifest manifest;
+        try {
+            manifest = FileTreeIndex.get().manifestOf(this.filesDir);
+        } catch (IOException e) {
+            // the copy will fail telling why, until then the item can't be up to date
+            LOGGER.log(Level.WARNING, "Failed to read " + this.filesDir, e);
+            return versionOf("unreadable");
+        }
+        return getVersion(manifest);
+    }
+
+    /**
+     * @param manifest FileManifest of filesDir, as given by the FileTreeIndex
+     * @return String version of this item with filesDir having this content
+     */
+    String getVersion(FileManifest manifest) {
+        Version cached = this.version;
+        if (cached == null || cached.manifest != manifest) {
+            cached = new Version(manifest, versionOf(manifest.digest()));
+            this.version = cached;
+        }
+        return cached.value;
+    }
+
+    private String versionOf(String files) {
+        return FileManifest.digestOf(Util.fixNull(this.prepareScript) + '\0' + Util.fixNull(this.commandLine) + '\0'
+                + this.filesDir + '\0' + files);
+    }
+
+    /**
+     * Version of the item for one manifest of its filesDir, the FileTreeIndex
+     * returning the same manifest as long as the directory doesn't change.
+     */
+    private static final class Version {
+
+        final FileManifest manifest;
+        final String value;
+
+        Version(FileManifest manifest, String value) {
+            this.manifest = manifest;
+            this.value = value;
+        }
+    }
+
     /**
      * Useful function to get same name as needs to be under slave cache.
+     * Only describes the format of the legacy slave_setup.ini, see InstallState.
      *
      * @return String containing tag + DELIMITER +  hashCode()
      */
@@ -39,11 +39,36 @@ public class SetupDeployer {
      * @throws IOException IO error while accesing disk
      */
     public static boolean copyFiles(File localPath, FilePath remotePath) throws IOException, InterruptedException {
+        return copyFiles(localPath, remotePath, Components.defaultLog());
+    }
+
+    /**
+     * Copy localPath into remotePath logging into the given node setup log. Only the
+     * files changed since the last copy to this agent are sent, see FileSync.
+     *
+     * @return Boolean , true if everything went OK
+     *
+     * @throws InterruptedException BrokenPipe
+     * @throws IOException IO error while accesing disk
+     */
+    public static boolean copyFiles(File localPath, FilePath remotePath, SetupLog log)
+            throws IOException, InterruptedException {
+        return syncFiles(localPath, remotePath, log) >= 0;
+    }
+
+    /**
+     * Same as copyFiles(localPath, remotePath, log) telling how much was sent.
+     *
+     * @return long number of bytes sent, -1 if there is no localPath
+     *
+     * @throws InterruptedException BrokenPipe
+     * @throws IOException IO error while accesing disk
+     */
+    static long syncFiles(File localPath, FilePath remotePath, SetupLog log) throws IOException, InterruptedException {
         if (localPath != null && StringUtils.isNotBlank(localPath.getPath())) {
-            Components.info("copying files from " + localPath);
-            int tmp = new FilePath(localPath).copyRecursiveTo(remotePath);
-            return tmp == 0;
-        } else return false;
+            log.info("copying files from " + localPath);
+            return FileSync.sync(localPath, remotePath, log);
+        } else return -1;
     }
 
     /**
@@ -55,7 +80,7 @@ public class SetupDeployer {
     public static boolean checkLabelsForComputerOrNull(Computer c, SetupConfigItem item) {
         return c == null
                 || item.getAssignedLabelString().equals("")
-                || Utils.labelMatches(item.getAssignedLabelString(), c);
+                || LabelMatchIndex.get().matches(item, c);
     }
 
     /**
@@ -91,7 +116,7 @@ public class SetupDeployer {
             return Utils.multiOsExecutor(listener, script, filePath, enviroment);
 
         } catch (Exception e) {
-            Components.info("script failed with exception: " + e.getMessage());
+            listener.getLogger().println("script failed with exception: " + e.getMessage());
             return 0xffffff0A;
         }
     }
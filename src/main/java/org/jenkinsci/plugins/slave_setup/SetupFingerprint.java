@@ -0,0 +1,110 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Digest of the identity and version of every item applying to a node, written
+ * on the agent once all of them are installed there. When it still matches on
+ * connect, the agent is up to date and goes online after this single call,
+ * without reading its state nor walking the items.
+ */
+public class SetupFingerprint {
+
+    /**
+     * file under the agent root path holding the fingerprint
+     */
+    public static final String FILENAME = "slave_setup.fingerprint";
+
+    /**
+     * @param items List of SetupConfigItem applying to a node, in the configured order
+     * @return String fingerprint of the items and their current versions
+     */
+    public static String of(List<SetupConfigItem> items) {
+        StringBuilder text = new StringBuilder();
+        for (SetupConfigItem item : items) {
+            text.append(InstallState.escape(item.getIdentity()))
+                    .append('\t')
+                    .append(item.getVersion())
+                    .append('\n');
+        }
+        return FileManifest.digestOf(text.toString());
+    }
+
+    /**
+     * @param root        FilePath of the agent root
+     * @param fingerprint String expected fingerprint
+     * @return true if the agent holds this fingerprint
+     * @throws IOException          IO error accessing the agent
+     * @throws InterruptedException Broken pipe
+     */
+    public static boolean matches(FilePath root, String fingerprint) throws IOException, InterruptedException {
+        return root.act(new Check(fingerprint));
+    }
+
+    /**
+     * @param root        FilePath of the agent root
+     * @param fingerprint String fingerprint of the items now all installed on the agent
+     * @throws IOException          IO error accessing the agent
+     * @throws InterruptedException Broken pipe
+     */
+    public static void write(FilePath root, String fingerprint) throws IOException, InterruptedException {
+        root.act(new Write(fingerprint));
+    }
+
+    private static String read(File root) throws IOException {
+        Path file = new File(root, FILENAME).toPath();
+        return Files.isRegularFile(file) ? Files.readString(file, StandardCharsets.UTF_8).trim() : null;
+    }
+
+    /**
+     * Runs on the agent: compares the fingerprint with the one it holds.
+     */
+    static class Check extends MasterToSlaveFileCallable<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String fingerprint;
+
+        Check(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public Boolean invoke(File root, VirtualChannel channel) throws IOException {
+            return fingerprint.equals(read(root));
+        }
+    }
+
+    /**
+     * Runs on the agent: replaces the fingerprint unless it is already the given one.
+     */
+    static class Write extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String fingerprint;
+
+        Write(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public Void invoke(File root, VirtualChannel channel) throws IOException {
+            if (fingerprint.equals(read(root))) return null;
+            Path file = new File(root, FILENAME).toPath();
+            Path tmp = file.resolveSibling(FILENAME + ".tmp");
+            Files.writeString(tmp, fingerprint + '\n', StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Dependencies between the setup items, as declared by their dependsOn. An
+ * item is deployed on a node once all the items it depends on are deployed
+ * there, or don't apply to it; when one of them fails the item is skipped.
+ * Items deployed at the same time on a node record their installation under
+ * their identity, which must then be their own.
+ */
+public class SetupGraph {
+
+    private final List<SetupConfigItem> items;
+
+    /**
+     * items each item depends on
+     */
+    private final Map<SetupConfigItem, List<SetupConfigItem>> dependencies = new IdentityHashMap<>();
+
+    /**
+     * items depending on each item
+     */
+    private final Map<SetupConfigItem, List<SetupConfigItem>> dependents = new IdentityHashMap<>();
+
+    private boolean hasDependencies;
+
+    private final List<SetupConfigItem> order;
+
+    /**
+     * @param items List of SetupConfigItem in the configured order, with their identities assigned
+     * @throws IllegalArgumentException if two items have the same identity, an item depends on an unknown
+     *                                  name or on a name shared by several items, or the dependencies have a cycle
+     */
+    public SetupGraph(List<SetupConfigItem> items) {
+        this.items = new ArrayList<>(items);
+        Map<String, SetupConfigItem> byName = new HashMap<>();
+        Set<String> shared = new HashSet<>();
+        Set<String> identities = new HashSet<>();
+        for (SetupConfigItem item : items) {
+            if (!identities.add(item.getIdentity())) {
+                throw new IllegalArgumentException(
+                        "Several setups are named '" + item.getIdentity() + "', each setup needs its own name");
+            }
+            if (byName.put(item.getName(), item) != null) shared.add(item.getName());
+            dependencies.put(item, new ArrayList<>());
+            dependents.put(item, new ArrayList<>());
+        }
+        for (SetupConfigItem item : items) {
+            for (String name : item.getDependencies()) {
+                if (shared.contains(name)) {
+                    throw new IllegalArgumentException(
+                            "Setup '" + item.getName() + "' depends on '" + name + "', the name of several setups");
+                }
+                SetupConfigItem dependency = byName.get(name);
+                if (dependency == null) {
+                    throw new IllegalArgumentException(
+                            "Setup '" + item.getName() + "' depends on the unknown setup '" + name + "'");
+                }
+                dependencies.get(item).add(dependency);
+                dependents.get(dependency).add(item);
+                hasDependencies = true;
+            }
+        }
+        this.order = sort();
+    }
+
+    /**
+     * @return true if at least one item depends on another one
+     */
+    public boolean hasDependencies() {
+        return hasDependencies;
+    }
+
+    /**
+     * @param item SetupConfigItem of the graph
+     * @return List of the items it directly depends on
+     */
+    public List<SetupConfigItem> getDependencies(SetupConfigItem item) {
+        return dependencies.get(item);
+    }
+
+    /**
+     * @param item SetupConfigItem of the graph
+     * @return List of the items directly depending on it
+     */
+    public List<SetupConfigItem> getDependents(SetupConfigItem item) {
+        return dependents.get(item);
+    }
+
+    /**
+     * Items in an order where every item comes after its dependencies, the
+     * configured order being kept as much as possible.
+     *
+     * @return List of all the items
+     */
+    public List<SetupConfigItem> getOrder() {
+        return order;
+    }
+
+    private List<SetupConfigItem> sort() {
+        Map<SetupConfigItem, Integer> index = new IdentityHashMap<>();
+        Map<SetupConfigItem, Integer> waiting = new IdentityHashMap<>();
+        PriorityQueue<Integer> ready = new PriorityQueue<>();
+        for (int i = 0; i < items.size(); i++) {
+            SetupConfigItem item = items.get(i);
+            index.put(item, i);
+            waiting.put(item, dependencies.get(item).size());
+            if (dependencies.get(item).isEmpty()) ready.add(i);
+        }
+        List<SetupConfigItem> sorted = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            SetupConfigItem item = items.get(ready.poll());
+            sorted.add(item);
+            for (SetupConfigItem dependent : dependents.get(item)) {
+                if (waiting.merge(dependent, -1, Integer::sum) == 0) ready.add(index.get(dependent));
+            }
+        }
+        if (sorted.size() < items.size()) {
+            List<String> cycle = new ArrayList<>();
+            for (SetupConfigItem item : items) {
+                if (waiting.get(item) > 0) cycle.add(item.getName());
+            }
+            throw new IllegalArgumentException("The dependencies of the setups " + cycle + " have a cycle");
+        }
+        return sorted;
+    }
+
+    /**
+     * @param items List of SetupConfigItem, all in this graph
+     * @return List of the given items in the order of getOrder()
+     */
+    public List<SetupConfigItem> inOrder(List<SetupConfigItem> items) {
+        Map<SetupConfigItem, Boolean> wanted = new IdentityHashMap<>();
+        items.forEach(item -> wanted.put(item, true));
+        List<SetupConfigItem> order = new ArrayList<>();
+        for (SetupConfigItem item : getOrder()) {
+            if (wanted.containsKey(item)) order.add(item);
+        }
+        return order;
+    }
+}
@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.model.TaskListener;
+
+/**
+ * Logger bound to a single node setup. Every Components instance owns one, so
+ * setups running at the same time never write into each other's listener.
+ */
+public class SetupLog {
+
+    private final TaskListener listener;
+    private final boolean debugMode;
+    private final String prefix;
+
+    /**
+     * @param listener  TaskListener receiving the lines, may be null to discard them
+     * @param debugMode true to print debug lines too
+     * @param prefix    String put in front of every line, may be null
+     */
+    public SetupLog(TaskListener listener, boolean debugMode, String prefix) {
+        this.listener = listener;
+        this.debugMode = debugMode;
+        this.prefix = prefix == null ? "" : prefix;
+    }
+
+    public SetupLog(TaskListener listener, boolean debugMode) {
+        this(listener, debugMode, null);
+    }
+
+    /**
+     * Listener to be given to launchers and script executions of this setup
+     *
+     * @return TaskListener, never null
+     */
+    public TaskListener getListener() {
+        return listener == null ? TaskListener.NULL : listener;
+    }
+
+    public boolean isDebugMode() {
+        return debugMode;
+    }
+
+    /**
+     * Print only if debug enabled (debug purposes)
+     *
+     * @param message String to print as DEBUG
+     */
+    public void debug(String message) {
+        if (debugMode) info(message);
+    }
+
+    /**
+     * Print the message on this setup's listener
+     *
+     * @param message String to print as INFO
+     */
+    public void info(String message) {
+        if (listener != null) listener.getLogger().println(prefix + message);
+    }
+}
@@ -0,0 +1,212 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output of one setup of one node. Writing only copies the bytes in memory: the
+ * last TAIL_SIZE bytes are kept in a ring buffer to be shown while the setup
+ * runs, and full chunks are handed to SetupLogStore which gzips them to the
+ * spill file in the background.
+ *
+ * When the chunks waiting to be written are over the budget of SetupLogStore,
+ * or the spill file reached SPILL_LIMIT, the next chunks are dropped and a line
+ * telling how many bytes were lost is written instead.
+ */
+public class SetupLogSink extends OutputStream {
+
+    private static final Logger LOGGER = Logger.getLogger(SetupLogSink.class.getName());
+
+    /**
+     * bytes of the end of the log kept in memory
+     */
+    static final int TAIL_SIZE = 64 * 1024;
+
+    /**
+     * bytes buffered before being handed to the writer thread
+     */
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * uncompressed bytes written to the spill file at most
+     */
+    static final long SPILL_LIMIT = 256L * 1024 * 1024;
+
+    private final SetupLogStore store;
+    private final String node;
+    private final File file;
+
+    private final byte[] tail = new byte[TAIL_SIZE];
+    private long written;
+
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength;
+    private long dropped;
+    private boolean closed;
+
+    /**
+     * bytes handed to the writer thread
+     */
+    private long spilled;
+
+    /**
+     * only used by the writer thread
+     */
+    private OutputStream out;
+
+    SetupLogSink(SetupLogStore store, String node, File file) {
+        this.store = store;
+        this.node = node;
+        this.file = file;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * @return File the log is spilled to, complete once the sink is closed
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) return;
+        toTail(b, off, len);
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_SIZE - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, n);
+            chunkLength += n;
+            off += n;
+            len -= n;
+            if (chunkLength == CHUNK_SIZE) handOver();
+        }
+    }
+
+    private void toTail(byte[] b, int off, int len) {
+        if (len > TAIL_SIZE) {
+            off += len - TAIL_SIZE;
+            written += len - TAIL_SIZE;
+            len = TAIL_SIZE;
+        }
+        int at = (int) (written % TAIL_SIZE);
+        int first = Math.min(len, TAIL_SIZE - at);
+        System.arraycopy(b, off, tail, at, first);
+        System.arraycopy(b, off + first, tail, 0, len - first);
+        written += len;
+    }
+
+    /**
+     * Hands the current chunk to the writer thread, or drops it when over budget.
+     */
+    private void handOver() {
+        if (chunkLength == 0) return;
+        byte[] data = Arrays.copyOf(chunk, chunkLength);
+        chunkLength = 0;
+        if (spilled + data.length > SPILL_LIMIT || !store.reserve(data.length)) {
+            dropped += data.length;
+            return;
+        }
+        if (dropped > 0) spillDropped();
+        spilled += data.length;
+        spill(data, true);
+    }
+
+    /**
+     * Tells in the spill file how many bytes were dropped since the last chunk.
+     */
+    private void spillDropped() {
+        spill("%n[... %d bytes of log dropped ...]%n".formatted(dropped).getBytes(StandardCharsets.UTF_8), false);
+        dropped = 0;
+    }
+
+    private void spill(byte[] data, boolean reserved) {
+        store.submit(() -> {
+            try {
+                writeOut(data);
+            } finally {
+                if (reserved) store.release(data.length);
+            }
+        });
+    }
+
+    /**
+     * Runs on the writer thread of SetupLogStore only.
+     */
+    private void writeOut(byte[] data) {
+        try {
+            if (out == null) {
+                file.getParentFile().mkdirs();
+                out = new GZIPOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+            }
+            out.write(data);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to spill the setup log of " + node + " to " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        handOver();
+    }
+
+    /**
+     * Hands the last bytes to the writer thread, which then finishes the spill
+     * file. Writing to a closed sink does nothing.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        handOver();
+        if (dropped > 0) spillDropped();
+        closed = true;
+        store.submit(() -> {
+            try {
+                if (out == null) writeOut(new byte[0]);
+                if (out != null) out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the setup log " + file, e);
+            } finally {
+                store.closed(this);
+            }
+        });
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return String last TAIL_SIZE bytes written, decoded as UTF-8
+     */
+    public synchronized String getTail() {
+        int length = (int) Math.min(written, TAIL_SIZE);
+        byte[] copy = new byte[length];
+        int start = (int) ((written - length) % TAIL_SIZE);
+        int first = Math.min(length, TAIL_SIZE - start);
+        System.arraycopy(tail, start, copy, 0, first);
+        System.arraycopy(tail, 0, copy, first, length - first);
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return long bytes written to the sink
+     */
+    public synchronized long getSize() {
+        return written;
+    }
+}
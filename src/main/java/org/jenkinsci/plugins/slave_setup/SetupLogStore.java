@@ -0,0 +1,338 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TransientComputerActionFactory;
+import hudson.slaves.SlaveComputer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.GET;
+
+/**
+ * Logs of the node setups, one per setup of a node, kept in
+ * JENKINS_HOME/slave-setup/logs/NODE/ as gzipped files written by a single
+ * background thread. The last RUNS_KEPT logs of every node are kept and shown
+ * on its Setup Log page.
+ *
+ * The memory used is bounded: each running setup keeps the tail of its log, and
+ * the chunks waiting to be written never go over PENDING_BUDGET, see SetupLogSink.
+ */
+public class SetupLogStore {
+
+    private static final Logger LOGGER = Logger.getLogger(SetupLogStore.class.getName());
+
+    private static final SetupLogStore INSTANCE = new SetupLogStore();
+
+    /**
+     * logs kept for each node
+     */
+    static final int RUNS_KEPT = 10;
+
+    /**
+     * bytes of all logs waiting to be written
+     */
+    static final long PENDING_BUDGET = 8L * 1024 * 1024;
+
+    /**
+     * name of a log file, the time the setup started then what ran
+     */
+    private static final Pattern LOG_NAME = Pattern.compile("(\\d+)-([A-Za-z0-9._-]+)\\.log\\.gz");
+
+    /**
+     * @return SetupLogStore of this controller
+     */
+    public static SetupLogStore get() {
+        return INSTANCE;
+    }
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "SetupLogWriter"));
+
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * start time of the last log opened, so two logs never get the same name
+     */
+    private final AtomicLong lastStarted = new AtomicLong();
+
+    /**
+     * sinks not closed yet by their file
+     */
+    private final ConcurrentMap<File, SetupLogSink> open = new ConcurrentHashMap<>();
+
+    /**
+     * @param node String name of the node
+     * @return File directory of the logs of the node
+     */
+    File getDirectory(String node) {
+        return new File(Jenkins.get().getRootDir(), "slave-setup/logs/" + Util.rawEncode(node));
+    }
+
+    /**
+     * Starts the log of a setup of a node, the oldest logs of the node past
+     * RUNS_KEPT being deleted.
+     *
+     * @param node String name of the node
+     * @param run  String what is running: connect, the id of a rollout...
+     * @return SetupLogSink to be closed once the setup is done
+     */
+    public SetupLogSink open(String node, String run) {
+        File dir = getDirectory(node);
+        long started = lastStarted.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+        String name = started + "-" + run.replaceAll("[^A-Za-z0-9._-]", "_") + ".log.gz";
+        SetupLogSink sink = new SetupLogSink(this, node, new File(dir, name));
+        open.put(sink.getFile(), sink);
+        submit(() -> prune(dir));
+        return sink;
+    }
+
+    /**
+     * @param bytes int size of a chunk to be written
+     * @return true if it fits in PENDING_BUDGET, and must then be released once written
+     */
+    boolean reserve(int bytes) {
+        while (true) {
+            long current = pending.get();
+            if (current + bytes > PENDING_BUDGET) return false;
+            if (pending.compareAndSet(current, current + bytes)) return true;
+        }
+    }
+
+    void release(int bytes) {
+        pending.addAndGet(-bytes);
+    }
+
+    void submit(Runnable task) {
+        writer.execute(task);
+    }
+
+    void closed(SetupLogSink sink) {
+        open.remove(sink.getFile());
+    }
+
+    /**
+     * @param node String name of the node
+     * @return List of the logs of the node, newest first
+     */
+    public List<Entry> getEntries(String node) {
+        File[] files = getDirectory(node).listFiles();
+        List<Entry> entries = new ArrayList<>();
+        for (File file : files == null ? new File[0] : files) {
+            Entry entry = Entry.of(file, open.get(file));
+            if (entry != null) entries.add(entry);
+        }
+        for (SetupLogSink sink : open.values()) {
+            // nothing spilled yet
+            if (sink.getNode().equals(node) && !sink.getFile().exists()) {
+                Entry entry = Entry.of(sink.getFile(), sink);
+                if (entry != null) entries.add(entry);
+            }
+        }
+        entries.sort((a, b) -> b.getName().compareTo(a.getName()));
+        return entries;
+    }
+
+    private void prune(File dir) {
+        File[] files = dir.listFiles((d, name) -> LOG_NAME.matcher(name).matches());
+        if (files == null || files.length <= RUNS_KEPT) return;
+        Arrays.sort(files, (a, b) -> b.getName().compareTo(a.getName()));
+        for (int i = RUNS_KEPT; i < files.length; i++) {
+            if (!open.containsKey(files[i]) && !files[i].delete()) {
+                LOGGER.log(Level.FINE, "Failed to delete the old setup log {0}", files[i]);
+            }
+        }
+    }
+
+    /**
+     * Deletes the logs of a removed node.
+     *
+     * @param node String name of the node
+     */
+    void removeNode(String node) {
+        File dir = getDirectory(node);
+        submit(() -> {
+            try {
+                Util.deleteRecursive(dir);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to delete the setup logs of " + node, e);
+            }
+        });
+    }
+
+    /**
+     * One log of a node, written by a setup running or done.
+     */
+    public static class Entry {
+
+        private final File file;
+        private final long started;
+        private final String run;
+        private final SetupLogSink sink;
+
+        Entry(File file, long started, String run, SetupLogSink sink) {
+            this.file = file;
+            this.started = started;
+            this.run = run;
+            this.sink = sink;
+        }
+
+        /**
+         * @return Entry of the file, null if it isn't named as a log
+         */
+        static Entry of(File file, SetupLogSink sink) {
+            Matcher m = LOG_NAME.matcher(file.getName());
+            return m.matches() ? new Entry(file, Long.parseLong(m.group(1)), m.group(2), sink) : null;
+        }
+
+        public String getName() {
+            return file.getName();
+        }
+
+        public Date getStarted() {
+            return new Date(started);
+        }
+
+        /**
+         * @return String what ran: connect, the id of a rollout...
+         */
+        public String getRun() {
+            return run;
+        }
+
+        /**
+         * @return true while the setup is writing the log
+         */
+        public boolean isRunning() {
+            return sink != null;
+        }
+
+        /**
+         * @return long bytes of the log, compressed once the setup is done
+         */
+        public long getSize() {
+            return sink != null ? sink.getSize() : file.length();
+        }
+
+        /**
+         * Copies the log to out: only its tail while the setup is running.
+         */
+        void writeTo(OutputStream out) throws IOException {
+            if (sink != null) {
+                out.write(("[still running, last %d KB]%n".formatted(SetupLogSink.TAIL_SIZE / 1024) + sink.getTail())
+                        .getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+                in.transferTo(out);
+            }
+        }
+    }
+
+    /**
+     * Setup Log page of an agent, at JENKINS_URL/computer/NAME/slave-setup-log/
+     */
+    public static class LogAction implements Action {
+
+        private final Computer computer;
+
+        public LogAction(Computer computer) {
+            this.computer = computer;
+        }
+
+        public Computer getComputer() {
+            return computer;
+        }
+
+        @Override
+        public String getIconFileName() {
+            return computer.hasPermission(Computer.EXTENDED_READ) ? "clipboard.png" : null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Setup Log";
+        }
+
+        @Override
+        public String getUrlName() {
+            return "slave-setup-log";
+        }
+
+        public List<Entry> getEntries() {
+            computer.checkPermission(Computer.EXTENDED_READ);
+            return SetupLogStore.get().getEntries(computer.getName());
+        }
+
+        /**
+         * @param name String name of the log, see Entry.getName()
+         * @return HttpResponse sending the log as plain text
+         */
+        @GET
+        public HttpResponse doLog(@QueryParameter String name) {
+            for (Entry entry : getEntries()) {
+                if (entry.getName().equals(name)) {
+                    return (req, rsp, node) -> {
+                        rsp.setContentType("text/plain;charset=UTF-8");
+                        entry.writeTo(rsp.getOutputStream());
+                    };
+                }
+            }
+            return HttpResponses.notFound();
+        }
+    }
+
+    /**
+     * Adds the Setup Log page to the agents.
+     */
+    @Extension
+    public static class LogActionFactory extends TransientComputerActionFactory {
+
+        @Override
+        public Collection<? extends Action> createFor(Computer target) {
+            if (!(target instanceof SlaveComputer)) return Collections.emptyList();
+            return Collections.singletonList(new LogAction(target));
+        }
+    }
+
+    /**
+     * Deletes the logs of removed nodes.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+
+        @Override
+        protected void onDeleted(Node node) {
+            SetupLogStore.get().removeNode(node.getNodeName());
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.model.RootAction;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.verb.GET;
+
+/**
+ * Durations of the phases of the node setups and bytes sent to the agents,
+ * overall, by node and by item, kept in memory since the controller started,
+ * with the launches of the on-demand agents.
+ *
+ * Durations go in histograms of fixed exponential buckets, four per power of
+ * two, so recording is a few atomic increments and percentiles are known within
+ * 25%. They are published as JSON at JENKINS_URL/slave-setup-metrics/ to the
+ * users allowed to read the configuration.
+ */
+public class SetupMetrics {
+
+    private static final SetupMetrics INSTANCE = new SetupMetrics();
+
+    /**
+     * @return SetupMetrics of this controller
+     */
+    public static SetupMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * What a node setup spends its time on
+     */
+    public enum Phase {
+        /**
+         * checking the fingerprint of a connecting agent, the whole setup of an up to date one
+         */
+        FINGERPRINT,
+        /**
+         * reading the install state of the agent
+         */
+        CACHE_READ,
+        /**
+         * running the prepare script of an item on the controller
+         */
+        PREPARE,
+        /**
+         * copying the files of an item to the agent
+         */
+        FILE_COPY,
+        /**
+         * running the command line of an item on the agent, all of them in batched mode
+         */
+        COMMAND,
+        /**
+         * running the whole plan on the agent in agent mode, files included
+         */
+        AGENT,
+        /**
+         * writing the install state of the agent
+         */
+        CACHE_FLUSH,
+        /**
+         * the whole setup of a node, from doSetup or doConfig
+         */
+        SETUP
+    }
+
+    /**
+     * What happened to an on-demand agent, see StopScriptQueue
+     */
+    public enum LaunchEvent {
+        /**
+         * launched with its start script
+         */
+        COLD_START,
+        /**
+         * launched again within its grace period, its stop being cancelled
+         */
+        REUSED,
+        /**
+         * stopped by its stop script once its grace period was over
+         */
+        STOPPED
+    }
+
+    /**
+     * Durations in milliseconds of one phase, overall and by node and item
+     */
+    private static class PhaseMetrics {
+        final Histogram all = new Histogram();
+        final ConcurrentMap<String, Histogram> byNode = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, Histogram> byItem = new ConcurrentHashMap<>();
+    }
+
+    private final Map<Phase, PhaseMetrics> phases = new EnumMap<>(Phase.class);
+
+    private final LongAdder bytes = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> bytesByNode = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> bytesByItem = new ConcurrentHashMap<>();
+
+    private final Map<LaunchEvent, LongAdder> launches = new EnumMap<>(LaunchEvent.class);
+
+    /**
+     * milliseconds between the disconnection of an on-demand agent and its next launch
+     */
+    private final Histogram reconnectGaps = new Histogram();
+
+    SetupMetrics() {
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new PhaseMetrics());
+        }
+        for (LaunchEvent event : LaunchEvent.values()) {
+            launches.put(event, new LongAdder());
+        }
+    }
+
+    /**
+     * @param phase    Phase which ran
+     * @param node     String name of the node
+     * @param item     String identity of the item, null for the phases of the whole node
+     * @param duration long milliseconds it took
+     */
+    public void record(Phase phase, String node, String item, long duration) {
+        PhaseMetrics metrics = phases.get(phase);
+        metrics.all.record(duration);
+        metrics.byNode.computeIfAbsent(node, k -> new Histogram()).record(duration);
+        if (item != null) metrics.byItem.computeIfAbsent(item, k -> new Histogram()).record(duration);
+    }
+
+    /**
+     * @param node  String name of the node
+     * @param item  String identity of the item, null if it is for several items
+     * @param count long bytes sent to the node
+     */
+    public void recordBytes(String node, String item, long count) {
+        if (count <= 0) return;
+        bytes.add(count);
+        bytesByNode.computeIfAbsent(node, k -> new LongAdder()).add(count);
+        if (item != null) bytesByItem.computeIfAbsent(item, k -> new LongAdder()).add(count);
+    }
+
+    /**
+     * @param event LaunchEvent of an on-demand agent
+     */
+    public void recordLaunch(LaunchEvent event) {
+        launches.get(event).increment();
+    }
+
+    /**
+     * @param duration long milliseconds between the disconnection of an on-demand agent and its next launch
+     */
+    public void recordReconnectGap(long duration) {
+        reconnectGaps.record(duration);
+    }
+
+    /**
+     * @param event LaunchEvent of the on-demand agents
+     * @return long times it happened since the controller started
+     */
+    public long getLaunchCount(LaunchEvent event) {
+        return launches.get(event).sum();
+    }
+
+    /**
+     * @param phase Phase to look at
+     * @param node  String name of the node, null for all of them
+     * @return Histogram of the durations, null if nothing was recorded
+     */
+    Histogram getHistogram(Phase phase, String node) {
+        PhaseMetrics metrics = phases.get(phase);
+        return node == null ? metrics.all : metrics.byNode.get(node);
+    }
+
+    /**
+     * @return long bytes sent to the agents since the controller started
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Forgets a removed node.
+     *
+     * @param node String name of the node
+     */
+    void removeNode(String node) {
+        for (PhaseMetrics metrics : phases.values()) {
+            metrics.byNode.remove(node);
+        }
+        bytesByNode.remove(node);
+    }
+
+    /**
+     * Forgets the items which are no longer configured.
+     *
+     * @param items List of SetupConfigItem configured
+     */
+    void retain(List<SetupConfigItem> items) {
+        Set<String> identities = items.stream().map(SetupConfigItem::getIdentity).collect(Collectors.toSet());
+        for (PhaseMetrics metrics : phases.values()) {
+            metrics.byItem.keySet().retainAll(identities);
+        }
+        bytesByItem.keySet().retainAll(identities);
+    }
+
+    /**
+     * @return JSONObject with the histograms of every phase and the bytes sent
+     */
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        JSONObject phasesJson = new JSONObject();
+        for (Map.Entry<Phase, PhaseMetrics> e : phases.entrySet()) {
+            PhaseMetrics metrics = e.getValue();
+            phasesJson.element(
+                    e.getKey().name(),
+                    metrics.all
+                            .toJSON()
+                            .element("nodes", toJSON(metrics.byNode))
+                            .element("items", toJSON(metrics.byItem)));
+        }
+        json.element("phases", phasesJson);
+
+        JSONObject bytesJson = new JSONObject();
+        bytesJson.element("total", bytes.sum());
+        bytesJson.element("nodes", sums(bytesByNode));
+        bytesJson.element("items", sums(bytesByItem));
+        json.element("bytes", bytesJson);
+
+        JSONObject launchesJson = new JSONObject();
+        launches.forEach((k, v) -> launchesJson.element(k.name(), v.sum()));
+        launchesJson.element("reconnectGap", reconnectGaps.toJSON());
+        json.element("launches", launchesJson);
+        return json;
+    }
+
+    private static JSONObject toJSON(Map<String, Histogram> histograms) {
+        JSONObject json = new JSONObject();
+        new TreeMap<>(histograms).forEach((k, v) -> json.element(k, v.toJSON()));
+        return json;
+    }
+
+    private static JSONObject sums(Map<String, LongAdder> adders) {
+        JSONObject json = new JSONObject();
+        new TreeMap<>(adders).forEach((k, v) -> json.element(k, v.sum()));
+        return json;
+    }
+
+    /**
+     * Histogram of positive long values with four buckets per power of two.
+     */
+    static class Histogram {
+
+        private static final int SUB_BUCKETS = 4;
+
+        /**
+         * enough for the whole range of long
+         */
+        private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            long v = Math.max(0, value);
+            counts.incrementAndGet(bucketOf(v));
+            count.increment();
+            sum.add(v);
+            max.accumulate(v);
+        }
+
+        /**
+         * Values 0 to 3 have their own bucket, then each power of two is split in
+         * four buckets on the two bits after the highest one.
+         */
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int high = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (high - 2)) & (SUB_BUCKETS - 1);
+            return (high - 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return long highest value falling in the bucket
+         */
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int high = bucket / SUB_BUCKETS + 1;
+            long sub = bucket % SUB_BUCKETS;
+            if (high >= 62) return Long.MAX_VALUE;
+            return ((SUB_BUCKETS + sub + 1) << (high - 2)) - 1;
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param quantile double between 0 and 1
+         * @return long upper bound of the bucket holding the quantile, never above the max
+         */
+        long percentile(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return Math.min(upperBoundOf(i), getMax());
+            }
+            return getMax();
+        }
+
+        JSONObject toJSON() {
+            long n = count.sum();
+            return new JSONObject()
+                    .element("count", n)
+                    .element("mean", n == 0 ? 0 : sum.sum() / n)
+                    .element("p50", percentile(0.5))
+                    .element("p90", percentile(0.9))
+                    .element("p95", percentile(0.95))
+                    .element("p99", percentile(0.99))
+                    .element("max", getMax());
+        }
+    }
+
+    /**
+     * The metrics as JSON, at JENKINS_URL/slave-setup-metrics/
+     */
+    @Extension
+    public static class MetricsAction implements RootAction {
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Agent setup metrics";
+        }
+
+        @Override
+        public String getUrlName() {
+            return "slave-setup-metrics";
+        }
+
+        @GET
+        public HttpResponse doIndex() {
+            Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+            return HttpResponses.okJSON(SetupMetrics.get().toJSON());
+        }
+    }
+
+    /**
+     * Drops the metrics of removed nodes.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+
+        @Override
+        protected void onDeleted(Node node) {
+            SetupMetrics.get().removeNode(node.getNodeName());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Shell;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+
+/**
+ * Command lines of all the pending items of a node, sent in a single call and
+ * run one after the other by the agent, which stops at the first failure and
+ * reports the exit code and duration of each of them.
+ */
+public class SetupPlan implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How the items of a node are deployed
+     */
+    public enum ExecutionMode {
+        /**
+         * each item is copied, run and recorded before going to the next one
+         */
+        STEPWISE,
+        /**
+         * the files of all the pending items are copied, then their command lines run in a single call
+         */
+        BATCHED,
+        /**
+         * the whole setup of the node, files included, is sent to the agent which runs it by itself
+         */
+        AGENT
+    }
+
+    /**
+     * Command line of one item, null if the item has none
+     */
+    public static class Step implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String identity;
+        private final String script;
+
+        public Step(String identity, String script) {
+            this.identity = identity;
+            this.script = script;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public String getScript() {
+            return script;
+        }
+    }
+
+    /**
+     * How a Step ended on the agent
+     */
+    public static class StepResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String identity;
+        private final int exitStatus;
+        private final long durationMillis;
+
+        public StepResult(String identity, int exitStatus, long durationMillis) {
+            this.identity = identity;
+            this.exitStatus = exitStatus;
+            this.durationMillis = durationMillis;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public int getExitStatus() {
+            return exitStatus;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+
+    private final List<Step> steps;
+
+    private final EnvVars environment;
+
+    /**
+     * shell configured on the controller, null for the agent default
+     */
+    private final String shell;
+
+    public SetupPlan(List<Step> steps, EnvVars environment) {
+        this.steps = new ArrayList<>(steps);
+        this.environment = environment == null ? new EnvVars() : environment;
+        this.shell = configuredShell();
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Runs the plan on the agent.
+     *
+     * @param root     FilePath of the agent root, where the command lines run
+     * @param listener TaskListener getting the output of the command lines
+     * @return List of the results of the steps which ran, shorter than the plan if one failed
+     * @throws IOException          IO error accessing the agent
+     * @throws InterruptedException Broken pipe
+     */
+    public List<StepResult> execute(FilePath root, TaskListener listener) throws IOException, InterruptedException {
+        if (steps.isEmpty()) return new ArrayList<>();
+        return root.act(new Execute(this, new RemoteOutputStream(listener.getLogger())));
+    }
+
+    /**
+     * Runs on the agent: every step in order, stopping at the first failure.
+     */
+    static class Execute extends MasterToSlaveFileCallable<List<StepResult>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SetupPlan plan;
+        private final OutputStream out;
+
+        Execute(SetupPlan plan, OutputStream out) {
+            this.plan = plan;
+            this.out = out;
+        }
+
+        @Override
+        public List<StepResult> invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+            TaskListener listener = new StreamTaskListener(out, StandardCharsets.UTF_8);
+            Launcher launcher = new Launcher.LocalLauncher(listener);
+
+            List<StepResult> results = new ArrayList<>();
+            for (Step step : plan.steps) {
+                long start = System.currentTimeMillis();
+                int exitStatus = 0;
+                if (step.getScript() != null) {
+                    exitStatus = runScript(launcher, listener, root, step.getScript(), plan.environment, plan.shell);
+                }
+                results.add(new StepResult(step.getIdentity(), exitStatus, System.currentTimeMillis() - start));
+                if (exitStatus != 0) break;
+            }
+            listener.getLogger().flush();
+            return results;
+        }
+
+    }
+
+    /**
+     * Shell configured on the controller, to be sent to the agents.
+     *
+     * @return String shell, null for the agent default
+     */
+    static String configuredShell() {
+        Shell.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(Shell.DescriptorImpl.class);
+        return descriptor == null ? null : descriptor.getShell();
+    }
+
+    /**
+     * Agent side: runs a command line the way Shell and BatchFile do, in root.
+     *
+     * @param launcher    Launcher local to the agent
+     * @param listener    TaskListener getting the output
+     * @param root        File directory to run in, where the script file is written
+     * @param script      String command line
+     * @param environment EnvVars added to the agent environment
+     * @param shell       String shell configured on the controller, null for the default
+     * @return int exit code of the script
+     * @throws IOException          if the script file can't be written
+     * @throws InterruptedException if interrupted while running
+     */
+    static int runScript(
+            Launcher launcher, TaskListener listener, File root, String script, EnvVars environment, String shell)
+            throws IOException, InterruptedException {
+        boolean unix = File.pathSeparatorChar == ':';
+        // same script files and command lines as Shell and BatchFile
+        String contents = unix
+                ? script.replace("\r\n", "\n")
+                : script.replaceAll("\r?\n", "\r\n") + "\r\nexit %ERRORLEVEL%";
+        Path file = Files.createTempFile(root.toPath(), "jenkins", unix ? ".sh" : ".bat");
+        try {
+            Files.writeString(file, contents, unix ? StandardCharsets.UTF_8 : Charset.defaultCharset());
+            return launcher.launch()
+                    .cmds(commandLine(file.toString(), contents, unix, shell))
+                    .pwd(root)
+                    .envs(environment)
+                    .stdout(listener)
+                    .join();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static List<String> commandLine(String file, String contents, boolean unix, String shell) {
+        List<String> cmds = new ArrayList<>();
+        if (!unix) {
+            cmds.addAll(Arrays.asList("cmd", "/c", "call", file));
+        } else if (contents.startsWith("#!")) {
+            int end = contents.indexOf('\n');
+            String interpreter = contents.substring(2, end < 0 ? contents.length() : end).trim();
+            cmds.addAll(Arrays.asList(interpreter.split("\\s+")));
+            cmds.add(file);
+        } else {
+            String sh = shell != null ? shell : new File("/bin/sh").exists() ? "/bin/sh" : "sh";
+            cmds.addAll(Arrays.asList(sh, "-xe", file));
+        }
+        return cmds;
+    }
+}
@@ -0,0 +1,183 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import jenkins.util.Timer;
+
+/**
+ * Runs the setup of many nodes in parallel, with at most maxConcurrency nodes
+ * at the same time and a timeout for each one of them. Every node logs to its
+ * own SetupLogSink, only the outcome of its setup goes to the shared listener.
+ */
+public class SetupRollout {
+
+    /**
+     * Work to be done on one node with its own Components manager.
+     */
+    public interface NodeTask {
+        void run(Components manager) throws IOException, InterruptedException;
+    }
+
+    private final TaskListener listener;
+    private final boolean debugMode;
+    private final int maxConcurrency;
+    private final long nodeTimeoutMillis;
+
+    /**
+     * @param listener          TaskListener shared by all nodes for their outcome, prefixed with the node name
+     * @param debugMode         true to print debug lines
+     * @param maxConcurrency    maximum number of nodes being set up at the same time
+     * @param nodeTimeoutMillis maximum time for a single node, 0 or less for no timeout
+     */
+    public SetupRollout(TaskListener listener, boolean debugMode, int maxConcurrency, long nodeTimeoutMillis) {
+        this.listener = listener;
+        this.debugMode = debugMode;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.nodeTimeoutMillis = nodeTimeoutMillis;
+    }
+
+    /**
+     * Creates a rollout using the concurrency and timeout of the global SetupConfig
+     *
+     * @param listener  TaskListener shared by all nodes
+     * @param debugMode true to print debug lines
+     * @return SetupRollout ready to run
+     */
+    public static SetupRollout fromConfig(TaskListener listener, boolean debugMode) {
+        SetupConfig config = SetupConfig.get();
+        return new SetupRollout(
+                listener,
+                debugMode,
+                config.getMaxConcurrentSetups(),
+                TimeUnit.MINUTES.toMillis(config.getSetupTimeoutMinutes()));
+    }
+
+    /**
+     * Performs the task on every given computer and waits until all of them are done.
+     *
+     * @param computers List of computers to set up
+     * @param task      NodeTask to run on each computer
+     * @return Map of node name to its result, in the order of the given computers
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public Map<String, NodeSetupResult> run(List<Computer> computers, NodeTask task) throws InterruptedException {
+        return run(computers, task, "rollout", () -> false);
+    }
+
+    /**
+     * Performs the task on every given computer and waits until all of them are
+     * done. Once superseded returns true, the computers not started yet are left
+     * alone while the ones being set up are let finish.
+     *
+     * @param computers  List of computers to set up
+     * @param task       NodeTask to run on each computer
+     * @param run        String naming the logs of the nodes, see SetupLogStore.open
+     * @param superseded BooleanSupplier telling if the rest of the work is no longer wanted
+     * @return Map of node name to its result, in the order of the given computers
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public Map<String, NodeSetupResult> run(
+            List<Computer> computers, NodeTask task, String run, BooleanSupplier superseded)
+            throws InterruptedException {
+        Map<String, NodeSetupResult> results = new LinkedHashMap<>();
+        List<Callable<NodeSetupResult>> jobs = new ArrayList<>();
+        for (Computer computer : computers) {
+            // keeps the order of the computers whenever their results come
+            results.put(computer.getName(), null);
+            if (computer.isOffline()) {
+                results.put(
+                        computer.getName(),
+                        new NodeSetupResult(computer.getName(), NodeSetupResult.Status.OFFLINE, null, 0));
+                continue;
+            }
+            jobs.add(() -> superseded.getAsBoolean()
+                    ? new NodeSetupResult(computer.getName(), NodeSetupResult.Status.SUPERSEDED, null, 0)
+                    : runOne(computer, task, run));
+        }
+        if (jobs.isEmpty()) return results;
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(maxConcurrency, jobs.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SetupRollout"));
+        try {
+            for (Future<NodeSetupResult> future : pool.invokeAll(jobs)) {
+                NodeSetupResult result = future.get();
+                results.put(result.getNodeName(), result);
+            }
+        } catch (ExecutionException e) {
+            // runOne never throws
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private NodeSetupResult runOne(Computer computer, NodeTask task, String run) {
+        String name = computer.getName();
+        SetupLog outcome = new SetupLog(listener, debugMode, "[" + name + "] ");
+        SetupLogSink sink = SetupLogStore.get().open(name, run);
+        SetupLog log = new SetupLog(new StreamTaskListener(sink, StandardCharsets.UTF_8), debugMode);
+        long start = System.currentTimeMillis();
+
+        Thread worker = Thread.currentThread();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> watchdog = nodeTimeoutMillis > 0
+                ? Timer.get()
+                        .schedule(
+                                () -> {
+                                    synchronized (running) {
+                                        if (running.get()) {
+                                            timedOut.set(true);
+                                            worker.interrupt();
+                                        }
+                                    }
+                                },
+                                nodeTimeoutMillis,
+                                TimeUnit.MILLISECONDS)
+                : null;
+        try {
+            task.run(new Components(computer, log));
+            return new NodeSetupResult(name, NodeSetupResult.Status.SUCCESS, null, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            // an interrupted remoting call may surface as IOException too, so ask the watchdog
+            if (timedOut.get()) {
+                log.info("Setup timed out after " + nodeTimeoutMillis + " ms");
+                outcome.info("Setup timed out after " + nodeTimeoutMillis + " ms");
+                return new NodeSetupResult(
+                        name, NodeSetupResult.Status.TIMED_OUT, e.getMessage(), System.currentTimeMillis() - start);
+            }
+            log.info("Failed to configure %s%nErr:%s".formatted(name, e.getMessage()));
+            outcome.info("Failed to configure %s: %s".formatted(name, e.getMessage()));
+            return new NodeSetupResult(
+                    name, NodeSetupResult.Status.FAILED, e.getMessage(), System.currentTimeMillis() - start);
+        } finally {
+            synchronized (running) {
+                running.set(false);
+            }
+            if (watchdog != null) watchdog.cancel(false);
+            sink.close();
+            // the watchdog may have fired right after the task ended, don't leak it into the next node
+            Thread.interrupted();
+        }
+    }
+}
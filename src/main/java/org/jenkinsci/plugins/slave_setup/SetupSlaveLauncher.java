@@ -3,24 +3,56 @@ package org.jenkinsci.plugins.slave_setup;
 import com.google.common.base.Strings;
 import hudson.AbortException;
 import hudson.Extension;
-import hudson.FilePath;
+import hudson.Proc;
 import hudson.model.Descriptor;
 import hudson.model.TaskListener;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.DelegatingComputerLauncher;
 import hudson.slaves.SlaveComputer;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * Implements the custom logic for an on-demand slave, executing scripts before connecting and after disconnecting
+ *
+ * The start script runs in the background: the delegate launcher connects once it exited successfully, or as
+ * soon as the readiness probe tells the agent is reachable. A start script running longer than
+ * startTimeoutSeconds, or when the launch is cancelled, is killed.
  */
 public class SetupSlaveLauncher extends DelegatingComputerLauncher {
 
+    /**
+     * milliseconds between the first two polls of the start script and the probe, doubled at each poll
+     */
+    static final long POLL_DELAY_MILLIS = 250;
+
+    /**
+     * milliseconds between two polls of the readiness probe at most
+     */
+    static final long PROBE_MAX_DELAY_MILLIS = 5000;
+
+    /**
+     * milliseconds between two polls of the start script at most, without a probe
+     */
+    static final long SCRIPT_MAX_DELAY_MILLIS = 1000;
+
     private final String startScript;
     private final String stopScript;
 
+    /**
+     * seconds the start script may run, 0 for no limit
+     */
+    private int startTimeoutSeconds;
+
+    /**
+     * probe telling the agent is reachable before the start script exits, null to wait for it
+     */
+    private ReadinessProbe readinessProbe;
+
     @DataBoundConstructor
     public SetupSlaveLauncher(ComputerLauncher launcher, String startScript, String stopScript) {
         super(launcher);
@@ -29,40 +61,169 @@ public class SetupSlaveLauncher extends DelegatingComputerLauncher {
     }
 
     /**
-     * Executes a script on the master node, with a bit of tracing.
-     * @param script String script to execute.
-     * @param listener TaskListener of the job.
+     * Getters for Jelly
+     * @return Object startScript
+     *
      */
-    private void execute(String script, TaskListener listener) throws IOException, InterruptedException {
-        Jenkins jenkins = Jenkins.getInstance();
-        if (Strings.isNullOrEmpty(script)) {
+    public String getStartScript() {
+        return startScript;
+    }
+
+    /**
+     * @return Object stopScript
+     */
+    public String getStopScript() {
+        return stopScript;
+    }
+
+    public int getStartTimeoutSeconds() {
+        return startTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setStartTimeoutSeconds(int startTimeoutSeconds) {
+        this.startTimeoutSeconds = Math.max(0, startTimeoutSeconds);
+    }
+
+    /**
+     * @return ReadinessProbe of the agent, null to wait for the start script to exit
+     */
+    public ReadinessProbe getReadinessProbe() {
+        return readinessProbe;
+    }
+
+    @DataBoundSetter
+    public void setReadinessProbe(ReadinessProbe readinessProbe) {
+        this.readinessProbe = readinessProbe instanceof ReadinessProbe.ScriptExit ? null : readinessProbe;
+    }
+
+    /**
+     * Runs the start script until the agent is ready: the script exited
+     * successfully, or the probe tells the agent is reachable while it still
+     * runs. It is then left running until its timeout.
+     *
+     * @param node     String name of the agent
+     * @param listener TaskListener of the launch
+     * @throws AbortException       if the script failed or timed out
+     * @throws InterruptedException if the launch was cancelled, the script being killed
+     */
+    private void start(String node, TaskListener listener) throws IOException, InterruptedException {
+        if (Strings.isNullOrEmpty(startScript)) {
             listener.getLogger().println("No script to be executed for this on-demand slave.");
             return;
         }
+        long deadline = startTimeoutSeconds > 0
+                ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(startTimeoutSeconds)
+                : Long.MAX_VALUE;
+        int window = SetupConfig.get().getScriptBatchWindowSeconds();
+        if (window > 0) {
+            listener.getLogger()
+                    .println("Script batched with the agents launched in the next " + window + " seconds.");
+            ScriptBatch batch = ScriptBatch.join(startScript, node, listener, startTimeoutSeconds);
+            boolean ready = false;
+            try {
+                batch.awaitStarted();
+                awaitReady(batch, node, deadline, listener);
+                ready = true;
+            } finally {
+                if (!ready && !batch.leave(node, listener)) stopGivenUp(node, listener);
+            }
+            return;
+        }
+        Proc proc = Utils.multiOsStart(listener, startScript, Jenkins.get().getRootPath(), null);
+        boolean ready = false;
+        try {
+            awaitReady(proc, deadline, listener);
+            ready = true;
+        } finally {
+            if (!ready) kill(proc, listener);
+        }
+        if (proc.isAlive() && deadline != Long.MAX_VALUE) {
+            long left = Math.max(0, deadline - System.currentTimeMillis());
+            Timer.get().schedule(() -> kill(proc, listener), left, TimeUnit.MILLISECONDS);
+        }
+    }
 
-        FilePath root = jenkins.getRootPath();
-        int r = Utils.multiOsExecutor(listener, script, root, null);
-
-        if (r != 0) {
-            throw new AbortException("Script failed with return code " + Integer.toString(r) + ".");
+    private void awaitReady(Proc proc, long deadline, TaskListener listener) throws IOException, InterruptedException {
+        long delay = POLL_DELAY_MILLIS;
+        long maxDelay = readinessProbe == null ? SCRIPT_MAX_DELAY_MILLIS : PROBE_MAX_DELAY_MILLIS;
+        while (true) {
+            if (!proc.isAlive()) {
+                int r = proc.join();
+                if (r != 0) {
+                    throw new AbortException("Script failed with return code " + Integer.toString(r) + ".");
+                }
+                listener.getLogger().println("Script executed successfully.");
+                return;
+            }
+            if (readinessProbe != null && readinessProbe.isReady(listener)) {
+                listener.getLogger().println("Agent is reachable, connecting while the script runs.");
+                return;
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new AbortException("Script still running after " + startTimeoutSeconds + " seconds.");
+            }
+            Thread.sleep(Math.min(delay, left));
+            delay = Math.min(delay * 2, maxDelay);
         }
-        listener.getLogger().println("Script executed successfully.");
     }
 
     /**
-     * Getters for Jelly
-     * @return Object startScript
-     *
+     * Same as awaitReady for a script run by a batch, shared with other agents
+     * and thus never killed here.
      */
-    public String getStartScript() {
-        return startScript;
+    private void awaitReady(ScriptBatch batch, String node, long deadline, TaskListener listener)
+            throws IOException, InterruptedException {
+        long delay = POLL_DELAY_MILLIS;
+        long maxDelay = readinessProbe == null ? SCRIPT_MAX_DELAY_MILLIS : PROBE_MAX_DELAY_MILLIS;
+        while (true) {
+            ScriptBatch.State state = batch.getState(node);
+            if (state == ScriptBatch.State.READY) {
+                listener.getLogger().println("Agent reported ready by the script.");
+                return;
+            }
+            if (state == ScriptBatch.State.FAILED) {
+                throw new AbortException("Script failed with return code " + batch.getExitCode() + ".");
+            }
+            if (readinessProbe != null && readinessProbe.isReady(listener)) {
+                listener.getLogger().println("Agent is reachable, connecting while the script runs.");
+                return;
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new AbortException("Agent not ready after " + startTimeoutSeconds + " seconds.");
+            }
+            Thread.sleep(Math.min(delay, left));
+            delay = Math.min(delay * 2, maxDelay);
+        }
     }
 
     /**
-     * @return Object stopScript
+     * Queues the stop script of an agent whose launch was given up while the
+     * batched start script may have started its machine, which is never killed
+     * as it is shared.
      */
-    public String getStopScript() {
-        return stopScript;
+    private void stopGivenUp(String node, TaskListener listener) {
+        if (Strings.isNullOrEmpty(stopScript)) return;
+        listener.getLogger().println("Stop script queued, the batched start script may have started the agent.");
+        try {
+            StopScriptQueue.get().submit(node, stopScript);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void kill(Proc proc, TaskListener listener) {
+        try {
+            if (!proc.isAlive()) return;
+            listener.getLogger().println("Killing the start script.");
+            proc.kill();
+        } catch (IOException e) {
+            e.printStackTrace(listener.getLogger());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -74,20 +235,36 @@ public class SetupSlaveLauncher extends DelegatingComputerLauncher {
      */
     @Override
     public void launch(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
-        execute(startScript, listener);
-        listener.getLogger().println("Pre-Launch HERE Pls Print it " + String.valueOf(computer.isUnix()));
+        if (StopScriptQueue.get().cancelStop(computer.getName())) {
+            listener.getLogger().println("Stop script cancelled, the agent is still running.");
+        } else {
+            StopScriptQueue.get().awaitStopped(computer.getName(), listener);
+            start(computer.getName(), listener);
+        }
         super.launch(computer, listener);
     }
 
+    /**
+     * Queues the stop script in the StopScriptQueue, after the grace period of SetupConfig, its output going to the
+     * Setup Log of the agent.
+     */
     @Override
     public void afterDisconnect(SlaveComputer computer, TaskListener listener) {
         super.afterDisconnect(computer, listener);
 
+        if (Strings.isNullOrEmpty(stopScript)) {
+            listener.getLogger().println("No script to be executed for this on-demand slave.");
+            return;
+        }
+        int grace = SetupConfig.get().getStopGraceSeconds();
+        if (grace > 0) {
+            listener.getLogger().println("Stop script run in " + grace + " seconds unless the agent launches again.");
+        }
+        listener.getLogger().println("Stop script queued, see the Setup Log of the agent for its output.");
         try {
-            execute(stopScript, listener);
-        } catch (Exception e) {
-            listener.getLogger().println("Failed executing script '" + stopScript + "'.");
-            e.printStackTrace(listener.getLogger());
+            StopScriptQueue.get().submit(computer.getName(), stopScript);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
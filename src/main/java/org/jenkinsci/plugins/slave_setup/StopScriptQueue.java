@@ -0,0 +1,417 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Proc;
+import hudson.Util;
+import hudson.init.Terminator;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import jenkins.util.Timer;
+
+/**
+ * Runs the stop scripts of the on-demand agents in the background, at most
+ * maxConcurrentStopScripts of SetupConfig at the same time, so disconnecting
+ * many agents doesn't hold up the threads disconnecting them. A script is
+ * killed after stopScriptTimeoutSeconds, and run again stopScriptRetries times
+ * if it failed. Its output goes to the Setup Log of the agent.
+ *
+ * The script of an agent only runs after a grace period: when the agent is
+ * launched again before, its stop is cancelled and its machine reused.
+ *
+ * While Jenkins shuts down, scripts are no longer retried and the disconnect
+ * waits for its script, until shutdownStopWaitSeconds after the first one: the
+ * scripts still running are then killed and the queued ones never run.
+ */
+public class StopScriptQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(StopScriptQueue.class.getName());
+
+    private static final StopScriptQueue INSTANCE = new StopScriptQueue();
+
+    /**
+     * seconds before the first retry of a failed script, the next ones waiting longer
+     */
+    static final int RETRY_DELAY_SECONDS = 10;
+
+    /**
+     * @return StopScriptQueue of this controller
+     */
+    public static StopScriptQueue get() {
+        return INSTANCE;
+    }
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1,
+            1,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "SetupStopScript"));
+
+    /**
+     * stop of each agent not done yet, retries included
+     */
+    private final ConcurrentMap<String, CompletableFuture<Void>> stopping = new ConcurrentHashMap<>();
+
+    /**
+     * stops waiting for the end of their grace period, by agent
+     */
+    private final ConcurrentMap<String, Graced> graced = new ConcurrentHashMap<>();
+
+    /**
+     * time each agent stopped by a script was last disconnected, until it launches again or is removed
+     */
+    private final ConcurrentMap<String, Long> disconnected = new ConcurrentHashMap<>();
+
+    /**
+     * agents collected for a batched stop, by stop script
+     */
+    private final Map<String, Job> batches = new HashMap<>();
+
+    /**
+     * time the shutdown stops waiting for the scripts, 0 until Jenkins shuts down
+     */
+    private long drainDeadline;
+
+    StopScriptQueue() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules the stop script of an agent just disconnected, run once its
+     * grace period of stopGraceSeconds is over unless it is launched again
+     * before, see cancelStop. While Jenkins shuts down it is queued right away.
+     *
+     * @param node   String name of the agent
+     * @param script String stop script, run on the controller
+     * @throws InterruptedException if interrupted while waiting for the shutdown
+     */
+    public void submit(String node, String script) throws InterruptedException {
+        disconnected.put(node, System.currentTimeMillis());
+        int grace = SetupConfig.get().getStopGraceSeconds();
+        if (grace <= 0 || isTerminating()) {
+            enqueue(node, script);
+            return;
+        }
+        Graced pending = new Graced(script);
+        graced.put(node, pending);
+        Timer.get().schedule(() -> stopGraced(node, pending), grace, TimeUnit.SECONDS);
+    }
+
+    private void stopGraced(String node, Graced pending) {
+        if (!graced.remove(node, pending)) return;
+        SetupMetrics.get().recordLaunch(SetupMetrics.LaunchEvent.STOPPED);
+        try {
+            enqueue(node, pending.script);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called when an agent is launched: cancels its stop if it is still in its
+     * grace period, the machine of the agent being then still running.
+     *
+     * @param node String name of the agent
+     * @return true if the stop was cancelled, false if the agent is to be started
+     */
+    public boolean cancelStop(String node) {
+        Long since = disconnected.remove(node);
+        if (since != null) SetupMetrics.get().recordReconnectGap(System.currentTimeMillis() - since);
+        boolean cancelled = graced.remove(node) != null;
+        SetupMetrics.get()
+                .recordLaunch(cancelled ? SetupMetrics.LaunchEvent.REUSED : SetupMetrics.LaunchEvent.COLD_START);
+        return cancelled;
+    }
+
+    /**
+     * Forgets an agent removed from Jenkins. Its stop, if any, still runs as its
+     * machine may be up.
+     *
+     * @param node String name of the agent
+     */
+    void removeNode(String node) {
+        disconnected.remove(node);
+    }
+
+    /**
+     * Queues the stops still in their grace period when Jenkins shuts down,
+     * as the timer running them is stopped.
+     */
+    @Terminator
+    public static void stopAllGraced() {
+        get().flushGraced();
+    }
+
+    void flushGraced() {
+        for (Map.Entry<String, Graced> pending : graced.entrySet()) {
+            stopGraced(pending.getKey(), pending.getValue());
+        }
+    }
+
+    /**
+     * Queues the stop script of an agent, in a batch run
+     * once for the agents stopped with the same script during
+     * scriptBatchWindowSeconds if it isn't 0, see ScriptBatch. While Jenkins
+     * shuts down, the script is not batched and this waits for it until the
+     * drain deadline.
+     *
+     * @param node   String name of the agent
+     * @param script String stop script, run on the controller
+     * @throws InterruptedException if interrupted while waiting for the shutdown
+     */
+    private void enqueue(String node, String script) throws InterruptedException {
+        int window = SetupConfig.get().getScriptBatchWindowSeconds();
+        if (window > 0 && !isTerminating()) {
+            synchronized (batches) {
+                Job batch = batches.get(script);
+                if (batch == null) {
+                    Job opened = new Job(script, true);
+                    batches.put(script, opened);
+                    Timer.get().schedule(() -> flush(opened), window, TimeUnit.SECONDS);
+                    batch = opened;
+                }
+                batch.add(node);
+            }
+            return;
+        }
+        Job job = new Job(script, window > 0);
+        job.add(node);
+        execute(job);
+        if (isTerminating()) {
+            // the timer flushing the batches left is stopped by the shutdown
+            List<Job> left;
+            synchronized (batches) {
+                left = new ArrayList<>(batches.values());
+            }
+            left.forEach(this::flush);
+            drain(job);
+        }
+    }
+
+    private void flush(Job batch) {
+        synchronized (batches) {
+            if (!batches.remove(batch.script, batch)) return;
+        }
+        execute(batch);
+    }
+
+    /**
+     * Waits for the stop script of an agent before it is started again, so it
+     * can't stop the agent once started.
+     *
+     * @param node     String name of the agent
+     * @param listener TaskListener of the launch
+     * @throws InterruptedException if the launch was cancelled
+     */
+    public void awaitStopped(String node, TaskListener listener) throws InterruptedException {
+        CompletableFuture<Void> done = stopping.get(node);
+        if (done == null || done.isDone()) return;
+        listener.getLogger().println("Waiting for the stop script of the last disconnection.");
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            // failures are in the Setup Log of the agent
+        }
+    }
+
+    private synchronized void execute(Job job) {
+        int size = SetupConfig.get().getMaxConcurrentStopScripts();
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else if (size < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            job.listener.getLogger().println("Jenkins is shutting down, the stop script is not run.");
+            job.finish();
+        }
+    }
+
+    /**
+     * Waits for the job until the drain deadline, past which the scripts left are killed.
+     */
+    private void drain(Job job) throws InterruptedException {
+        long deadline;
+        synchronized (this) {
+            if (drainDeadline == 0) {
+                drainDeadline = System.currentTimeMillis()
+                        + TimeUnit.SECONDS.toMillis(SetupConfig.get().getShutdownStopWaitSeconds());
+            }
+            deadline = drainDeadline;
+        }
+        try {
+            job.done.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // failures are in the Setup Log of the agent
+        } catch (TimeoutException e) {
+            List<Runnable> dropped = executor.shutdownNow();
+            if (!dropped.isEmpty()) {
+                LOGGER.log(Level.WARNING, "{0} stop scripts of on-demand agents not run on shutdown", dropped.size());
+            }
+            for (Runnable left : dropped) {
+                ((Job) left).finish();
+            }
+        }
+    }
+
+    /**
+     * @return true while Jenkins shuts down
+     */
+    boolean isTerminating() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return jenkins == null || jenkins.isTerminating();
+    }
+
+    /**
+     * Drops the disconnection time of removed agents.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+
+        @Override
+        protected void onDeleted(Node node) {
+            StopScriptQueue.get().removeNode(node.getNodeName());
+        }
+    }
+
+    /**
+     * Stop of an agent in its grace period.
+     */
+    private static class Graced {
+
+        private final String script;
+
+        Graced(String script) {
+            this.script = script;
+        }
+    }
+
+    /**
+     * One run of a stop script for one or more agents, with its attempts so far.
+     */
+    private class Job implements Runnable {
+
+        private final String script;
+
+        /**
+         * true to tell the script its agents, see ScriptBatch
+         */
+        private final boolean batched;
+
+        private final List<String> nodes = new ArrayList<>();
+        private final List<SetupLogSink> sinks = new ArrayList<>();
+        private final TaskListener listener;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private int attempt;
+
+        Job(String script, boolean batched) {
+            this.script = script;
+            this.batched = batched;
+            this.listener = new StreamTaskListener(new ScriptBatch.FanOut(sinks), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Adds an agent, before the job is queued.
+         */
+        void add(String node) {
+            nodes.add(node);
+            sinks.add(SetupLogStore.get().open(node, "stop"));
+            stopping.put(node, done);
+        }
+
+        @Override
+        public void run() {
+            SetupConfig config = SetupConfig.get();
+            attempt++;
+            try {
+                if (attempt > 1) listener.getLogger().println("Attempt " + attempt + " of the stop script.");
+                int timeout = config.getStopScriptTimeoutSeconds();
+                long started = System.currentTimeMillis();
+                int r = runScript(timeout);
+                if (r == 0) {
+                    listener.getLogger().println("Script executed successfully.");
+                    finish();
+                    return;
+                }
+                if (timeout > 0 && System.currentTimeMillis() - started >= TimeUnit.SECONDS.toMillis(timeout)) {
+                    listener.getLogger().println("Script killed after " + timeout + " seconds.");
+                } else {
+                    listener.getLogger().println("Script failed with return code " + r + ".");
+                }
+            } catch (IOException e) {
+                listener.getLogger().println("Failed executing script '" + script + "'.");
+                e.printStackTrace(listener.getLogger());
+            } catch (InterruptedException e) {
+                listener.getLogger().println("Script interrupted.");
+                finish();
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (attempt > config.getStopScriptRetries() || isTerminating()) {
+                LOGGER.log(Level.WARNING, "Stop script of {0} failed, see its Setup Log", nodes);
+                finish();
+                return;
+            }
+            Timer.get().schedule(() -> execute(this), (long) RETRY_DELAY_SECONDS * attempt, TimeUnit.SECONDS);
+        }
+
+        private int runScript(int timeout) throws IOException, InterruptedException {
+            if (!batched) {
+                Proc proc = Utils.multiOsStart(listener, script, Jenkins.get().getRootPath(), null);
+                return timeout > 0 ? proc.joinWithTimeout(timeout, TimeUnit.SECONDS, listener) : proc.join();
+            }
+            File dir = Files.createTempDirectory("slave-setup-batch").toFile();
+            try {
+                EnvVars env = ScriptBatch.environment(nodes, dir);
+                if (nodes.size() > 1) {
+                    listener.getLogger()
+                            .println("Stop script run for " + nodes.size() + " agents: " + env.get(ScriptBatch.NODES));
+                }
+                Proc proc = Utils.multiOsStart(listener, script, Jenkins.get().getRootPath(), env);
+                return timeout > 0 ? proc.joinWithTimeout(timeout, TimeUnit.SECONDS, listener) : proc.join();
+            } finally {
+                Util.deleteRecursive(dir);
+            }
+        }
+
+        void finish() {
+            for (SetupLogSink sink : sinks) {
+                sink.close();
+            }
+            for (String node : nodes) {
+                stopping.remove(node, done);
+            }
+            done.complete(null);
+        }
+    }
+}
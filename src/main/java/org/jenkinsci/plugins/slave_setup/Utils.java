@@ -3,6 +3,7 @@ package org.jenkinsci.plugins.slave_setup;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.model.Computer;
 import hudson.model.Label;
 import hudson.model.Node;
@@ -70,6 +71,45 @@ public class Utils {
      */
     public static int multiOsExecutor(TaskListener listener, String script, FilePath root, EnvVars enviroment)
             throws IOException, InterruptedException {
+        return multiOsStart(listener, script, root, enviroment).join();
+    }
+
+    /**
+     * Same as multiOsExecutor without waiting for the script to exit.
+     *
+     * @param listener TaskListener, connected to slave computer, will give us channel
+     * @param script String pure script content to be executed in Abstracted OS
+     * @param root FilePath (Jenkins) from Computer to be executed
+     * @param enviroment EnvVars, not necesary, but will be included in Computer before be executed
+     *
+     * @return Proc of the running script, to be joined or killed
+     *
+     * @throws IOException if failed to read/write some file
+     * @throws InterruptedException User request Disconnect/Cancel
+     */
+    public static Proc multiOsStart(TaskListener listener, String script, FilePath root, EnvVars enviroment)
+            throws IOException, InterruptedException {
+        return multiOsStart(listener, script, root, enviroment, root);
+    }
+
+    /**
+     * Same as multiOsStart, the script file being written in scriptDir, for the
+     * callers which run scripts often and delete them once done.
+     *
+     * @param listener TaskListener, connected to slave computer, will give us channel
+     * @param script String pure script content to be executed in Abstracted OS
+     * @param root FilePath (Jenkins) from Computer to be executed
+     * @param enviroment EnvVars, not necesary, but will be included in Computer before be executed
+     * @param scriptDir FilePath directory on the same computer receiving the script file
+     *
+     * @return Proc of the running script, to be joined or killed
+     *
+     * @throws IOException if failed to read/write some file
+     * @throws InterruptedException User request Disconnect/Cancel
+     */
+    public static Proc multiOsStart(
+            TaskListener listener, String script, FilePath root, EnvVars enviroment, FilePath scriptDir)
+            throws IOException, InterruptedException {
 
         Launcher launcher = root.createLauncher(listener);
         if (enviroment == null) enviroment = new EnvVars();
@@ -81,26 +121,26 @@ public class Utils {
              * executeScript method.
              */
             Shell shell = new Shell(script);
-            FilePath scriptFile = shell.createScriptFile(root);
+            FilePath scriptFile = shell.createScriptFile(scriptDir);
             return launcher.launch()
                     .cmds(shell.buildCommandLine(scriptFile))
                     .pwd(root)
                     .envs(enviroment)
                     .stdout(listener)
-                    .join();
+                    .start();
         } else {
             /*
              * We create a BatchFile obj instead a Shell classObject if the current OS is
              * not Unix Also we comment those verbose printings about Slave's OS
              */
             BatchFile batch = new BatchFile(script);
-            FilePath scriptFile = batch.createScriptFile(root);
+            FilePath scriptFile = batch.createScriptFile(scriptDir);
             return launcher.launch()
                     .cmds(batch.buildCommandLine(scriptFile))
                     .pwd(root)
                     .envs(enviroment)
                     .stdout(listener)
-                    .join();
+                    .start();
         }
     }
 
@@ -117,8 +157,19 @@ public class Utils {
      * @return boolean true if pattern matches with slave labels
      */
     public static boolean labelMatches(String pattern, Computer slave) {
+        return labelMatches(pattern, slave.getNode());
+    }
+
+    /**
+     * Same as labelMatches(pattern, slave) for a node which may not be connected.
+     *
+     * @param pattern String pattern containing one label or reggex
+     * @param node Node where will check if pattern matchs, may be null
+     *
+     * @return boolean true if pattern matches with node labels
+     */
+    public static boolean labelMatches(String pattern, Node node) {
         Label configLabel = Label.get(pattern.toLowerCase());
-        Node node = slave.getNode();
         if (node == null) return false;
         Set<LabelAtom> labels = node.getAssignedLabels();
         if (labels == null) return false;
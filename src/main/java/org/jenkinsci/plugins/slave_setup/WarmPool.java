@@ -0,0 +1,210 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.slaves.OfflineCause;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Keeps agents launched by SetupSlaveLauncher started and set up ahead of
+ * demand. The on-demand agents whose availability is WarmPool.Retention and
+ * sharing the same labels form a pool: every
+ * minute the builds waiting in the queue for it are counted, and as many of
+ * its agents as the most builds waiting over the last HISTORY minutes, between
+ * warmPoolMinSize and warmPoolMaxSize of SetupConfig, are kept idle or
+ * connecting. Connecting an agent runs its start script then its setup, so it
+ * is up to date once online.
+ *
+ * The agents of the pool which stay idle for warmPoolIdleMinutes are
+ * disconnected again, running their stop script, while the pool has more
+ * agents than it needs. Only the pool stops them, so that no other retention
+ * strategy disconnects the agents it keeps started.
+ */
+@Extension
+public class WarmPool extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(WarmPool.class.getName());
+
+    /**
+     * minutes of queue length kept for each pool
+     */
+    static final int HISTORY = 15;
+
+    /**
+     * builds waiting each minute, newest first, by the labels of the pool
+     */
+    private final Map<String, Deque<Integer>> demand = new HashMap<>();
+
+    public WarmPool() {
+        super("Agent setup warm pool");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        SetupConfig config = SetupConfig.get();
+        if (config.getWarmPoolMaxSize() <= 0) {
+            demand.clear();
+            return;
+        }
+        Map<String, List<Slave>> pools = getPools();
+        demand.keySet().retainAll(pools.keySet());
+        List<Queue.Item> waiting = new ArrayList<>(Jenkins.get().getQueue().getBuildableItems());
+        long idleMillis = TimeUnit.MINUTES.toMillis(config.getWarmPoolIdleMinutes());
+        for (Map.Entry<String, List<Slave>> pool : pools.entrySet()) {
+            Deque<Integer> samples = demand.computeIfAbsent(pool.getKey(), labels -> new ArrayDeque<>());
+            samples.addFirst(countWaiting(waiting, pool.getValue().get(0)));
+            while (samples.size() > HISTORY) samples.removeLast();
+            int target = target(samples, config.getWarmPoolMinSize(), config.getWarmPoolMaxSize());
+            resize(pool.getKey(), pool.getValue(), target, idleMillis);
+        }
+    }
+
+    /**
+     * @return Map of the labels to the agents launched by SetupSlaveLauncher and kept by Retention having them
+     */
+    private static Map<String, List<Slave>> getPools() {
+        Map<String, List<Slave>> pools = new TreeMap<>();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof Slave slave
+                    && slave.getLauncher() instanceof SetupSlaveLauncher
+                    && slave.getRetentionStrategy() instanceof Retention) {
+                String labels = Util.fixNull(slave.getLabelString()).trim();
+                pools.computeIfAbsent(labels, l -> new ArrayList<>()).add(slave);
+            }
+        }
+        return pools;
+    }
+
+    /**
+     * @param waiting List of the buildable items of the queue
+     * @param member  Slave of the pool, all of them having the same labels
+     * @return int number of the items which can only run on agents with a label the pool matches
+     */
+    private static int countWaiting(List<Queue.Item> waiting, Slave member) {
+        int count = 0;
+        for (Queue.Item item : waiting) {
+            Label label = item.getAssignedLabel();
+            if (label != null && label.matches(member)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param samples Collection of the builds waiting each minute
+     * @param min     int agents kept started at least
+     * @param max     int agents kept started at most
+     * @return int number of agents of the pool to keep idle or connecting
+     */
+    static int target(Collection<Integer> samples, int min, int max) {
+        int peak = 0;
+        for (int sample : samples) {
+            peak = Math.max(peak, sample);
+        }
+        return Math.max(Math.min(min, max), Math.min(peak, max));
+    }
+
+    /**
+     * Connects offline agents of the pool until target are idle or connecting,
+     * or disconnects the agents idle for longer than idleMillis while more than
+     * target are.
+     */
+    private void resize(String labels, List<Slave> members, int target, long idleMillis) {
+        int warm = 0;
+        List<Computer> offline = new ArrayList<>();
+        List<Computer> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Slave member : members) {
+            Computer computer = member.toComputer();
+            if (computer == null) continue;
+            if (computer.isConnecting() || computer.isOnline() && computer.isIdle()) {
+                warm++;
+                if (computer.isOnline() && now - computer.getIdleStartMilliseconds() > idleMillis) {
+                    expired.add(computer);
+                }
+            } else if (computer.isOffline() && !computer.isTemporarilyOffline()) {
+                offline.add(computer);
+            }
+        }
+        for (Computer computer : offline) {
+            if (warm >= target) break;
+            LOGGER.log(Level.INFO, "Warm pool [{0}]: starting {1}, {2} of {3} ready", new Object[] {
+                labels, computer.getName(), warm, target
+            });
+            computer.connect(false);
+            warm++;
+        }
+        for (Computer computer : expired) {
+            if (warm <= target) break;
+            LOGGER.log(Level.INFO, "Warm pool [{0}]: stopping idle {1}, {2} of {3} ready", new Object[] {
+                labels, computer.getName(), warm, target
+            });
+            computer.disconnect(new OfflineCause.IdleOfflineCause());
+            warm--;
+        }
+    }
+
+    /**
+     * Availability of the agents of a warm pool, which leaves stopping them to
+     * the pool. An offline agent is still started as soon as a build waits for
+     * it, and while the pool is disabled an agent idle for warmPoolIdleMinutes
+     * is stopped as with the "in demand" availability.
+     */
+    public static class Retention extends RetentionStrategy<SlaveComputer> {
+
+        @DataBoundConstructor
+        public Retention() {}
+
+        @Override
+        public long check(SlaveComputer c) {
+            SetupConfig config = SetupConfig.get();
+            if (c.isOffline()) {
+                if (c.isLaunchSupported()
+                        && !c.isConnecting()
+                        && !c.isTemporarilyOffline()
+                        && !Jenkins.get().getQueue().getBuildableItems(c).isEmpty()) {
+                    c.connect(false);
+                }
+            } else if (config.getWarmPoolMaxSize() <= 0
+                    && c.isIdle()
+                    && System.currentTimeMillis() - c.getIdleStartMilliseconds()
+                            > TimeUnit.MINUTES.toMillis(config.getWarmPoolIdleMinutes())) {
+                c.disconnect(new OfflineCause.IdleOfflineCause());
+            }
+            return 1;
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+            public String getDisplayName() {
+                return "Keep this agent in the warm pool of the agent setup";
+            }
+        }
+    }
+}
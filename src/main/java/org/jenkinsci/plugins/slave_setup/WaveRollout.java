@@ -0,0 +1,435 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Deployment of the deployNow items to the agents in waves: a canary wave
+ * with a percentage of the agents, then waves growing by a factor until all
+ * agents are done. Each wave runs with the concurrency and timeout of
+ * SetupConfig, and the rollout halts when more agents of a wave fail than its
+ * failure budget allows.
+ *
+ * The running rollout is saved after every wave in
+ * JENKINS_HOME/slave-setup/rollout.xml. A rollout which halted or was
+ * interrupted by a restart can be resumed, see RolloutQueue: the wave it
+ * stopped in runs again for its agents not set up successfully, then the next
+ * waves run.
+ *
+ * Each rollout is of a snapshot of the configuration, numbered in the order
+ * they were saved. A rollout of a newer snapshot supersedes the older ones: they
+ * stop starting agents and can't be resumed, the newer one setting up all of them.
+ */
+public class WaveRollout {
+
+    private static final Logger LOGGER = Logger.getLogger(WaveRollout.class.getName());
+
+    public enum Status {
+        /**
+         * waiting in the RolloutQueue
+         */
+        QUEUED,
+        RUNNING,
+        /**
+         * a wave went over the failure budget
+         */
+        HALTED,
+        /**
+         * the controller stopped while the rollout was running
+         */
+        INTERRUPTED,
+        COMPLETED,
+        /**
+         * a rollout of a newer configuration replaced this one
+         */
+        SUPERSEDED
+    }
+
+    /**
+     * last rollout run, loaded from disk on first use
+     */
+    private static WaveRollout current;
+
+    private static boolean loaded;
+
+    private final String id;
+    private final long started;
+
+    /**
+     * number of the configuration snapshot rolled out
+     */
+    private final long snapshot;
+
+    /**
+     * names of the agents, in the order they are set up
+     */
+    private final List<String> nodes;
+
+    /**
+     * index in nodes of the end of each wave, exclusive
+     */
+    private final List<Integer> waveEnds;
+
+    /**
+     * percentage of the agents of a wave allowed to fail
+     */
+    private final int failureBudgetPercent;
+
+    private int nextWave;
+    private Status status;
+    private String haltReason;
+
+    /**
+     * id of the rollout which superseded this one, null if none did
+     */
+    private String supersededBy;
+
+    private final Map<String, NodeSetupResult> results = new LinkedHashMap<>();
+
+    WaveRollout(long snapshot, List<String> nodes, List<Integer> waveEnds, int failureBudgetPercent) {
+        this.id = UUID.randomUUID().toString();
+        this.started = System.currentTimeMillis();
+        this.snapshot = snapshot;
+        this.nodes = new ArrayList<>(nodes);
+        this.waveEnds = new ArrayList<>(waveEnds);
+        this.failureBudgetPercent = failureBudgetPercent;
+        this.status = Status.QUEUED;
+    }
+
+    /**
+     * Plans a rollout to the given agents with the waves and failure budget of SetupConfig.
+     *
+     * @param computers List of the online agents
+     * @param snapshot  long number of the configuration snapshot
+     * @return WaveRollout ready to run
+     */
+    public static WaveRollout of(List<Computer> computers, long snapshot) {
+        SetupConfig config = SetupConfig.get();
+        List<String> names = new ArrayList<>();
+        for (Computer computer : computers) {
+            names.add(computer.getName());
+        }
+        return new WaveRollout(
+                snapshot,
+                names,
+                waves(names.size(), config.getRolloutCanaryPercent(), config.getRolloutWaveGrowth()),
+                config.getRolloutFailureBudgetPercent());
+    }
+
+    /**
+     * @return WaveRollout last run, null if there never was one
+     */
+    public static synchronized WaveRollout getCurrent() {
+        if (!loaded) {
+            loaded = true;
+            XmlFile file = getFile();
+            if (file.exists()) {
+                try {
+                    current = (WaveRollout) file.read();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load the agent setup rollout from " + file, e);
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Splits size agents in waves, the first one having canaryPercent of them
+     * and each of the next ones growth times the previous one.
+     *
+     * @param size          int number of agents
+     * @param canaryPercent int percentage of the agents in the first wave, 100 for a single wave
+     * @param growth        int factor between the sizes of two waves
+     * @return List of the end index of each wave, exclusive
+     */
+    static List<Integer> waves(int size, int canaryPercent, int growth) {
+        List<Integer> ends = new ArrayList<>();
+        long wave = Math.max(1, ((long) size * Math.max(1, Math.min(100, canaryPercent)) + 99) / 100);
+        int end = 0;
+        while (end < size) {
+            end = (int) Math.min(size, end + wave);
+            ends.add(end);
+            wave *= Math.max(1, growth);
+        }
+        return ends;
+    }
+
+    /**
+     * Runs the waves left, saving the rollout after each one. It becomes the
+     * current rollout, the one resumed after a restart. A rollout superseded
+     * before it starts doesn't run, one superseded while running stops after
+     * the agents it already started.
+     *
+     * @return Map of node name to the result of its setup, for all the waves run so far
+     * @throws InterruptedException if interrupted while waiting for the agents
+     */
+    public Map<String, NodeSetupResult> run() throws InterruptedException {
+        synchronized (this) {
+            if (supersededBy != null) {
+                status = Status.SUPERSEDED;
+                return getResults();
+            }
+            status = Status.RUNNING;
+        }
+        synchronized (WaveRollout.class) {
+            current = this;
+            loaded = true;
+        }
+        save();
+        while (true) {
+            int wave;
+            List<String> members;
+            List<String> names = new ArrayList<>();
+            synchronized (this) {
+                if (supersededBy != null) {
+                    status = Status.SUPERSEDED;
+                    break;
+                }
+                if (nextWave >= waveEnds.size()) {
+                    status = Status.COMPLETED;
+                    break;
+                }
+                wave = nextWave;
+                members = nodes.subList(wave == 0 ? 0 : waveEnds.get(wave - 1), waveEnds.get(wave));
+                // a resumed wave only retries the agents which failed or weren't reached
+                for (String name : members) {
+                    NodeSetupResult previous = results.get(name);
+                    if (previous == null || !previous.isSuccess()) names.add(name);
+                }
+            }
+            Components.info("Agent setup rollout %s: wave %d of %d, %d agents"
+                    .formatted(id, wave + 1, waveEnds.size(), names.size()));
+            Map<String, NodeSetupResult> waveResults;
+            try {
+                waveResults = runWave(names, id, this::isSuperseded);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    status = Status.INTERRUPTED;
+                }
+                save();
+                throw e;
+            }
+
+            boolean halted;
+            String reason;
+            synchronized (this) {
+                results.putAll(waveResults);
+                int failures = 0;
+                for (String name : members) {
+                    NodeSetupResult result = results.get(name);
+                    if (result != null && !result.isSuccess()) failures++;
+                }
+                halted = (long) failures * 100 > (long) failureBudgetPercent * members.size() && supersededBy == null;
+                reason = "%d of %d agents failed in wave %d, the budget is %d%%"
+                        .formatted(failures, members.size(), wave + 1, failureBudgetPercent);
+                if (halted) {
+                    // the wave is run again on resume, for its failed agents
+                    status = Status.HALTED;
+                    haltReason = reason;
+                } else {
+                    nextWave = wave + 1;
+                }
+            }
+            save();
+            if (halted) {
+                Components.info("Agent setup rollout %s halted: %s".formatted(id, reason));
+                return getResults();
+            }
+        }
+        save();
+        if (getStatus() == Status.SUPERSEDED) {
+            Components.info("Agent setup rollout %s superseded by %s".formatted(id, getSupersededBy()));
+        }
+        return getResults();
+    }
+
+    private static Map<String, NodeSetupResult> runWave(List<String> names, String id, BooleanSupplier superseded)
+            throws InterruptedException {
+        Map<String, NodeSetupResult> waveResults = new LinkedHashMap<>();
+        List<Computer> computers = new ArrayList<>();
+        for (String name : names) {
+            Computer computer = Jenkins.get().getComputer(name);
+            if (computer != null) {
+                computers.add(computer);
+            } else {
+                // removed since the rollout started
+                waveResults.put(name, new NodeSetupResult(name, NodeSetupResult.Status.OFFLINE, null, 0));
+            }
+        }
+        waveResults.putAll(Components.doConfigSetups(computers, id, superseded));
+        return waveResults;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getSnapshot() {
+        return snapshot;
+    }
+
+    public synchronized Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return String id of the rollout which superseded this one, null if none did
+     */
+    public synchronized String getSupersededBy() {
+        return supersededBy;
+    }
+
+    synchronized boolean isSuperseded() {
+        return supersededBy != null;
+    }
+
+    /**
+     * Replaces this rollout by one of a newer configuration snapshot. A queued,
+     * halted or interrupted rollout is superseded right away, a running one
+     * once the agents it already started are done.
+     *
+     * @param newer WaveRollout of a newer snapshot
+     * @return true if this rollout had work left and is now superseded
+     */
+    boolean supersede(WaveRollout newer) {
+        synchronized (this) {
+            if (newer.snapshot <= snapshot || supersededBy != null) return false;
+            if (status == Status.COMPLETED || status == Status.SUPERSEDED) return false;
+            supersededBy = newer.id;
+            if (status == Status.RUNNING) return true;
+            status = Status.SUPERSEDED;
+            haltReason = null;
+        }
+        if (this == getCurrent()) save();
+        return true;
+    }
+
+    /**
+     * @return String why the rollout halted, null if it didn't
+     */
+    public synchronized String getHaltReason() {
+        return haltReason;
+    }
+
+    public synchronized int getNextWave() {
+        return nextWave;
+    }
+
+    public int getWaveCount() {
+        return waveEnds.size();
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * @return int number of agents whose setup failed or timed out so far
+     */
+    public synchronized int getFailureCount() {
+        int failures = 0;
+        for (NodeSetupResult result : results.values()) {
+            if (!result.isSuccess()) failures++;
+        }
+        return failures;
+    }
+
+    /**
+     * @return true if the rollout halted or was interrupted and has waves left,
+     *         the one it stopped in included
+     */
+    public synchronized boolean isResumable() {
+        return (status == Status.HALTED || status == Status.INTERRUPTED) && nextWave < waveEnds.size();
+    }
+
+    /**
+     * Marks a resumable rollout as running again, so it is resumed only once.
+     *
+     * @return true if the rollout is to be run, false if it can't be resumed
+     */
+    synchronized boolean markResumed() {
+        if (!isResumable()) return false;
+        status = Status.RUNNING;
+        haltReason = null;
+        return true;
+    }
+
+    /**
+     * @return Map of node name to the result of its setup, for all the waves run so far
+     */
+    public synchronized Map<String, NodeSetupResult> getResults() {
+        return new LinkedHashMap<>(results);
+    }
+
+    synchronized JSONObject toJSON() {
+        JSONArray agents = new JSONArray();
+        for (NodeSetupResult result : results.values()) {
+            agents.element(new JSONObject()
+                    .element("node", result.getNodeName())
+                    .element("status", result.getStatus().name())
+                    .element("message", result.getMessage())
+                    .element("durationMillis", result.getDurationMillis()));
+        }
+        return new JSONObject()
+                .element("id", id)
+                .element("started", started)
+                .element("snapshot", snapshot)
+                .element("status", status.name())
+                .element("haltReason", haltReason)
+                .element("supersededBy", supersededBy)
+                .element("waves", waveEnds.size())
+                .element("nextWave", nextWave)
+                .element("agents", nodes.size())
+                .element("results", agents);
+    }
+
+    private void save() {
+        try {
+            XmlFile file = getFile();
+            file.getFile().getParentFile().mkdirs();
+            synchronized (this) {
+                file.write(this);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the agent setup rollout " + id, e);
+        }
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(new File(Jenkins.get().getRootDir(), "slave-setup/rollout.xml"));
+    }
+
+    /**
+     * A rollout running when the controller stopped is left to be resumed.
+     */
+    @Initializer(after = InitMilestone.SYSTEM_CONFIG_LOADED)
+    public static void markInterrupted() {
+        WaveRollout rollout = getCurrent();
+        if (rollout == null) return;
+        synchronized (rollout) {
+            if (rollout.status != Status.RUNNING) return;
+            rollout.status = Status.INTERRUPTED;
+        }
+        rollout.save();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Posts the configuration being edited to the dry-run planner and shows what a
+ * rollout of its items would deploy. Once shown, the plan follows the edits.
+ */
+Behaviour.specify("BUTTON.slave-setup-preview", "slave-setup-preview", 0, function (button) {
+    var form = button.closest("form");
+    var result = button.parentNode.querySelector(".slave-setup-preview-result");
+    var pending = null;
+
+    function text(parent, tag, value) {
+        var element = document.createElement(tag);
+        element.textContent = value;
+        parent.appendChild(element);
+        return element;
+    }
+
+    function render(plan) {
+        result.textContent = "";
+        text(result, "p", plan.redeploy + " of " + plan.nodes + " agents would be set up (" + plan.redeployOnline
+                + " online), up to " + plan.bytes + " bytes sent"
+                + (plan.sizeUnknown ? " plus the files of the directories not indexed yet" : "")
+                + ", planned in " + plan.durationMillis + " ms");
+        if (plan.plan.length === 0) return;
+        var table = document.createElement("table");
+        table.className = "jenkins-table jenkins-table--small";
+        var head = table.createTHead().insertRow();
+        ["Agent", "Online", "Items", "Bytes"].forEach(function (title) {
+            text(head, "th", title);
+        });
+        var body = table.createTBody();
+        plan.plan.forEach(function (node) {
+            var row = body.insertRow();
+            text(row, "td", node.node);
+            text(row, "td", node.online ? "yes" : "no");
+            text(row, "td", node.items.join(", ") + (node.unknown ? " (no state recorded)" : ""));
+            text(row, "td", node.bytes + (node.sizeUnknown ? " + size unknown" : ""));
+        });
+        result.appendChild(table);
+        if (plan.truncated) text(result, "p", "Only the first " + plan.plan.length + " agents are listed.");
+    }
+
+    function preview() {
+        pending = null;
+        buildFormTree(form);
+        var body = new URLSearchParams();
+        body.append("json", form.elements["json"].value);
+        fetch(button.getAttribute("data-url"), {
+            method: "post",
+            headers: crumb.wrap({}),
+            body: body,
+        })
+            .then(function (rsp) {
+                return rsp.json();
+            })
+            .then(function (rsp) {
+                if (rsp.status === "ok") render(rsp.data);
+                else result.textContent = rsp.message;
+            })
+            .catch(function (e) {
+                result.textContent = "Preview failed: " + e;
+            });
+    }
+
+    button.addEventListener("click", function () {
+        if (!button.classList.contains("slave-setup-preview--live")) {
+            button.classList.add("slave-setup-preview--live");
+            form.addEventListener("change", function () {
+                clearTimeout(pending);
+                pending = setTimeout(preview, 500);
+            });
+        }
+        preview();
+    });
+});
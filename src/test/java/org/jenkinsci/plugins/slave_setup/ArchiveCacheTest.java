@@ -0,0 +1,101 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class ArchiveCacheTest {
+
+    private JenkinsRule j;
+
+    @TempDir
+    File source;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+    }
+
+    private FileManifest write(String content) throws Exception {
+        Files.writeString(new File(source, "a.txt").toPath(), content, StandardCharsets.UTF_8);
+        return FileTreeIndex.get().scan(source);
+    }
+
+    private File[] archives() {
+        File[] archives = new File(j.jenkins.getRootDir(), "slave-setup/archives").listFiles();
+        return archives == null ? new File[0] : archives;
+    }
+
+    @Test
+    void testVersionIsPackedOnce() throws Exception {
+        FileManifest manifest = write("one");
+        Callable<File> lease = () -> {
+            try (ArchiveCache.Lease l = ArchiveCache.get().lease(source, manifest, ArchiveCache.Codec.GZIP, 6)) {
+                return l.getFile();
+            }
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<File>> files = pool.invokeAll(List.of(lease, lease, lease, lease));
+            for (Future<File> file : files) {
+                assertEquals(files.get(0).get(), file.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        // no leftover temporary archive either
+        assertEquals(1, archives().length);
+    }
+
+    @Test
+    void testLeastRecentlyUsedIsEvictedUnlessLeased() throws Exception {
+        ArchiveCache cache = ArchiveCache.get();
+        File oldest;
+        File older;
+        File newest;
+        try (ArchiveCache.Lease l = cache.lease(source, write("one"), ArchiveCache.Codec.NONE, 6)) {
+            oldest = l.getFile();
+        }
+        try (ArchiveCache.Lease l = cache.lease(source, write("two"), ArchiveCache.Codec.NONE, 6)) {
+            older = l.getFile();
+        }
+        try (ArchiveCache.Lease l = cache.lease(source, write("six"), ArchiveCache.Codec.NONE, 6)) {
+            newest = l.getFile();
+        }
+        long now = System.currentTimeMillis();
+        oldest.setLastModified(now - 20_000);
+        older.setLastModified(now - 10_000);
+
+        cache.evict(oldest.length() * 2);
+
+        assertFalse(oldest.isFile());
+        assertTrue(older.isFile());
+        assertTrue(newest.isFile());
+
+        try (ArchiveCache.Lease l = cache.lease(source, write("two"), ArchiveCache.Codec.NONE, 6)) {
+            assertEquals(older, l.getFile());
+            // being streamed, so it stays even past the capacity
+            cache.evict(0);
+            assertTrue(older.isFile());
+            assertFalse(newest.isFile());
+        }
+        cache.evict(0);
+        assertEquals(0, archives().length);
+    }
+}
@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.FilePath;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class DryRunPlannerTest {
+
+    @TempDir
+    File stateRoot;
+
+    @TempDir
+    File typed;
+
+    private SetupConfigItem linuxItem;
+    private SetupConfigItem windowsItem;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) throws Exception {
+        // the index outlives the Jenkins of each test
+        InstallStateIndex.get().remove("agent-1");
+        j.createSlave("agent-1", "linux", null);
+        j.createSlave("agent-2", "linux", null);
+        j.createSlave("agent-3", "windows", null);
+
+        linuxItem = new SetupConfigItem(null, null, "echo linux", false, "linux");
+        windowsItem = new SetupConfigItem(null, null, "echo windows", false, "windows");
+    }
+
+    @Test
+    void testNodesWithoutStateGetAllTheirItems() {
+        DryRunPlanner.Plan plan = DryRunPlanner.plan(List.of(linuxItem, windowsItem));
+
+        List<DryRunPlanner.NodePlan> nodes = plan.getNodes();
+        assertEquals(3, nodes.size());
+        assertEquals("agent-1", nodes.get(0).getName());
+        assertEquals(List.of("linux"), nodes.get(0).getItems());
+        assertTrue(nodes.get(0).isUnknown());
+        assertEquals(List.of("windows"), nodes.get(2).getItems());
+        assertEquals(0, plan.getBytes());
+    }
+
+    @Test
+    void testInstalledVersionIsSkipped() throws Exception {
+        InstallState state = new InstallState();
+        state.put(new InstallState.Record(linuxItem.getIdentity(), linuxItem.getVersion(), 10, 5, 0));
+        InstallStateIndex.get().store("agent-1", new FilePath(stateRoot), state);
+
+        DryRunPlanner.Plan plan = DryRunPlanner.plan(List.of(linuxItem));
+
+        assertEquals(1, plan.getNodes().size());
+        assertEquals("agent-2", plan.getNodes().get(0).getName());
+
+        SetupConfigItem changed = new SetupConfigItem(null, null, "echo changed", false, "linux");
+        plan = DryRunPlanner.plan(List.of(changed));
+
+        assertEquals(2, plan.getNodes().size());
+        assertFalse(plan.getNodes().get(0).isUnknown());
+    }
+
+    @Test
+    void testDirectoryOnlyTypedInTheFormIsNotScanned() throws Exception {
+        Files.writeString(new File(typed, "tool.tar").toPath(), "payload", StandardCharsets.UTF_8);
+        SetupConfigItem edited = new SetupConfigItem(null, typed, "echo edited", false, "linux");
+
+        DryRunPlanner.Plan plan = DryRunPlanner.plan(List.of(edited));
+
+        assertEquals(2, plan.getNodes().size());
+        assertTrue(plan.isSizeUnknown());
+        assertEquals(0, plan.getBytes());
+        // nothing was walked, watched or stored for it
+        assertNull(FileTreeIndex.get().peek(typed));
+    }
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileManifestTest {
+
+    @TempDir
+    File source;
+
+    @TempDir
+    File agent;
+
+    @Test
+    void testChangedAndRemovedFiles() throws Exception {
+        write(source, "a.txt", "a");
+        write(source, "sub/b.txt", "b");
+        write(source, "sub/c.txt", "c");
+        FileManifest first = FileManifest.of(source);
+        assertEquals(3, first.size());
+
+        // nothing installed yet, everything has to be sent
+        FileManifest nothing = new FileManifest(Map.of());
+        assertEquals(List.of("a.txt", "sub/b.txt", "sub/c.txt"), first.changedSince(nothing, agent));
+
+        write(agent, "a.txt", "a");
+        write(agent, "sub/b.txt", "b");
+        write(agent, "sub/c.txt", "c");
+        assertTrue(first.changedSince(first, agent).isEmpty());
+
+        write(source, "sub/b.txt", "bb");
+        new File(source, "sub/c.txt").delete();
+        write(source, "d.txt", "d");
+        FileManifest second = FileManifest.of(source);
+
+        assertNotEquals(first.digest(), second.digest());
+        assertEquals(List.of("d.txt", "sub/b.txt"), second.changedSince(first, agent));
+        assertEquals(List.of("sub/c.txt"), second.removedSince(first));
+    }
+
+    @Test
+    void testMissingCopyIsSentAgain() throws Exception {
+        write(source, "a.txt", "a");
+        FileManifest manifest = FileManifest.of(source);
+
+        assertEquals(List.of("a.txt"), manifest.changedSince(manifest, agent));
+    }
+
+    @Test
+    void testFileStillShippedByAnotherDirectoryIsKept() throws Exception {
+        write(agent, "tools/x", "x");
+        write(agent, "tools/y", "y");
+        FileManifest.Entry x = new FileManifest.Entry(FileManifest.digestOf("x"), 1);
+        FileManifest.Entry y = new FileManifest.Entry(FileManifest.digestOf("y"), 1);
+        FileSync.writeManifest(agent, "a.txt", new FileManifest(Map.of("tools/x", x, "tools/y", y)));
+        FileSync.writeManifest(agent, "b.txt", new FileManifest(Map.of("tools/x", x)));
+
+        // a drops both files, b still ships tools/x
+        FileManifest installed = FileSync.readManifest(agent, "a.txt");
+        FileSync.removeGone(agent, "a.txt", new FileManifest(Map.of()), installed);
+
+        assertTrue(new File(agent, "tools/x").isFile());
+        assertFalse(new File(agent, "tools/y").exists());
+    }
+
+    @Test
+    void testTextRoundTrip() throws Exception {
+        write(source, "with space.txt", "x");
+        write(source, "sub/y.txt", "y");
+        FileManifest manifest = FileManifest.of(source);
+
+        String windows = manifest.toText().replace("\n", "\r\n");
+        FileManifest parsed = FileManifest.fromText(windows);
+
+        assertEquals(manifest.getEntries(), parsed.getEntries());
+        assertEquals(manifest.digest(), parsed.digest());
+        assertTrue(FileManifest.fromText("garbage").isEmpty());
+    }
+
+    private static void write(File dir, String path, String content) throws Exception {
+        File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        Files.writeString(file.toPath(), content, StandardCharsets.UTF_8);
+    }
+}
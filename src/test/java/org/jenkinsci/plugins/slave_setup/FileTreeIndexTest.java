@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileTreeIndexTest {
+
+    @TempDir
+    File source;
+
+    @Test
+    void testSameSizeEditIsSeen() throws Exception {
+        File file = new File(source, "a.txt");
+        Files.writeString(file.toPath(), "one", StandardCharsets.UTF_8);
+        FileManifest first = FileTreeIndex.get().scan(source);
+
+        // same size and, on coarse filesystems, same mtime
+        long mtime = file.lastModified();
+        Files.writeString(file.toPath(), "two", StandardCharsets.UTF_8);
+        file.setLastModified(mtime);
+        FileManifest second = FileTreeIndex.get().scan(source);
+
+        assertNotEquals(first.digest(), second.digest());
+        assertEquals(FileManifest.digestOf(file.toPath()), second.getEntries().get("a.txt").getDigest());
+    }
+
+    @Test
+    void testVersionCoversFileContent() throws Exception {
+        File file = new File(source, "tool.cfg");
+        Files.writeString(file.toPath(), "v1", StandardCharsets.UTF_8);
+        SetupConfigItem item = new SetupConfigItem(null, source, "install", false, "linux");
+        String first = item.getVersion();
+        assertEquals(first, item.getVersion());
+
+        Files.writeString(file.toPath(), "v2", StandardCharsets.UTF_8);
+        FileTreeIndex.get().scan(source);
+
+        assertNotEquals(first, item.getVersion());
+        assertNotEquals(
+                item.getVersion(), new SetupConfigItem(null, source, "install2", false, "linux").getVersion());
+    }
+
+    @Test
+    void testVersionFollowsTheScripts() throws Exception {
+        SetupConfigItem item = new SetupConfigItem(null, source, "install", false, "linux");
+        String first = item.getVersion();
+
+        item.setCommandLine("install --force");
+        assertNotEquals(first, item.getVersion());
+
+        item.setCommandLine("install");
+        assertEquals(first, item.getVersion());
+    }
+
+    @Test
+    void testTreeIsForgottenOnceNoItemUsesIt() throws Exception {
+        Files.writeString(new File(source, "a.txt").toPath(), "one", StandardCharsets.UTF_8);
+        FileManifest first = FileTreeIndex.get().scan(source);
+        // nothing changed, what was computed from the manifest is kept
+        assertSame(first, FileTreeIndex.get().scan(source));
+
+        FileTreeIndex.get().retain(List.of(new SetupConfigItem(null, source, "install", false, "linux")));
+        assertSame(first, FileTreeIndex.get().scan(source));
+
+        FileTreeIndex.get().retain(List.of());
+        FileManifest rescanned = FileTreeIndex.get().scan(source);
+        assertNotSame(first, rescanned);
+        assertEquals(first.digest(), rescanned.digest());
+    }
+}
@@ -0,0 +1,80 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class InstallStateIndexTest {
+
+    @TempDir
+    File root;
+
+    @Test
+    void testJournalIsOnlyWrittenNextToAStateFile() throws Exception {
+        String line = InstallState.journalLine(1, new InstallState.Record("foo", "1", 10, 5, 0));
+
+        assertEquals(-1, (long) new InstallStateIndex.AppendJournal(line).invoke(root, null));
+        assertFalse(new File(root, InstallState.JOURNAL_FILENAME).exists());
+    }
+
+    @Test
+    void testTornJournalTailOnlyLosesItsRecord() throws Exception {
+        InstallState state = new InstallState();
+        state.put(new InstallState.Record("foo", "1", 10, 5, 0));
+        long written = state.nextGeneration();
+        InstallStateIndex.writeAgentState(root, state.toText());
+
+        new InstallStateIndex.AppendJournal(
+                        InstallState.journalLine(written + 1, new InstallState.Record("bar", "1", 20, 5, 0)))
+                .invoke(root, null);
+        // a connection lost in the middle of the next append
+        String torn = InstallState.journalLine(written + 2, new InstallState.Record("baz", "1", 30, 5, 0));
+        Files.writeString(
+                new File(root, InstallState.JOURNAL_FILENAME).toPath(),
+                torn.substring(0, torn.length() / 2),
+                StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+        new InstallStateIndex.AppendJournal(
+                        InstallState.journalLine(written + 3, new InstallState.Record("qux", "1", 40, 5, 0)))
+                .invoke(root, null);
+
+        InstallStateIndex.Snapshot snapshot = new InstallStateIndex.ReadState(-1).invoke(root, null);
+        InstallState read = InstallState.fromText(snapshot.text);
+        assertEquals(1, read.replay(snapshot.journal));
+        assertTrue(read.isInstalled("foo", "1"));
+        assertTrue(read.isInstalled("bar", "1"));
+        assertNull(read.get("baz"));
+        assertTrue(read.isInstalled("qux", "1"));
+        assertEquals(written + 3, read.getGeneration());
+        assertTrue(new InstallStateIndex.ReadState(written + 3).invoke(root, null).current);
+    }
+
+    @Test
+    void testCompactionFoldsTheJournalIntoTheStateFile() throws Exception {
+        InstallState state = new InstallState();
+        state.put(new InstallState.Record("foo", "1", 10, 5, 0));
+        state.nextGeneration();
+        InstallStateIndex.writeAgentState(root, state.toText());
+        InstallState.Record bar = new InstallState.Record("bar", "1", 20, 5, 0);
+        state.put(bar);
+        long size = new InstallStateIndex.AppendJournal(InstallState.journalLine(state.nextGeneration(), bar))
+                .invoke(root, null);
+        assertTrue(size > 0 && size < InstallStateIndex.COMPACTION_THRESHOLD);
+
+        InstallStateIndex.writeAgentState(root, state.toText());
+
+        assertFalse(new File(root, InstallState.JOURNAL_FILENAME).exists());
+        InstallStateIndex.Snapshot snapshot = new InstallStateIndex.ReadState(-1).invoke(root, null);
+        assertNull(snapshot.journal);
+        assertEquals(state.toText(), snapshot.text);
+        assertTrue(new InstallStateIndex.ReadState(state.getGeneration()).invoke(root, null).current);
+    }
+}
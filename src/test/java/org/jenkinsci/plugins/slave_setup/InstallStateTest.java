@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class InstallStateTest {
+
+    @Test
+    void testSimilarLabelsDontClobberEachOther() {
+        InstallState state = new InstallState();
+        state.put(new InstallState.Record("linux-arm", "1", 10, 5, 0));
+        state.put(new InstallState.Record("linux", "2", 20, 5, 0));
+
+        assertEquals(2, state.size());
+        assertTrue(state.isInstalled("linux-arm", "1"));
+        assertTrue(state.isInstalled("linux", "2"));
+        assertFalse(state.isInstalled("linux", "1"));
+    }
+
+    @Test
+    void testFailedDeployIsNotInstalled() {
+        InstallState state = new InstallState();
+        state.put(new InstallState.Record("foo", "1", 10, 5, 3));
+
+        assertFalse(state.isInstalled("foo", "1"));
+        assertEquals(3, state.get("foo").getExitStatus());
+    }
+
+    @Test
+    void testTextRoundTripIgnoresLineEndings() {
+        InstallState state = new InstallState();
+        state.put(new InstallState.Record("foo && bar", "abc", 10, 5, 0));
+        state.put(new InstallState.Record("tab\there", "def", 20, 6, 1));
+
+        InstallState parsed = InstallState.fromText(state.toText().replace("\n", "\r\n"));
+
+        assertEquals(state.toText(), parsed.toText());
+        assertEquals(6, parsed.get("tab\there").getDurationMillis());
+    }
+
+    @Test
+    void testGenerationChangesOnEveryWrite() {
+        InstallState state = new InstallState();
+        state.put(new InstallState.Record("foo", "1", 10, 5, 0));
+        long first = state.nextGeneration();
+        long second = state.nextGeneration();
+
+        assertTrue(second > first);
+        InstallState parsed = InstallState.fromText(state.toText());
+        assertEquals(second, parsed.getGeneration());
+        assertEquals(second, parsed.copy().getGeneration());
+        assertTrue(parsed.copy().isInstalled("foo", "1"));
+    }
+
+    @Test
+    void testJournalReplaySkipsTornLines() {
+        InstallState state = new InstallState();
+        state.put(new InstallState.Record("foo", "1", 10, 5, 0));
+        String first = InstallState.journalLine(100, new InstallState.Record("foo", "2", 20, 5, 0));
+        String corrupted = InstallState.journalLine(101, new InstallState.Record("bar", "1", 30, 5, 0))
+                .replace("bar", "baz");
+        String last = InstallState.journalLine(102, new InstallState.Record("qux", "1", 40, 5, 0));
+        String torn = InstallState.journalLine(103, new InstallState.Record("foo", "3", 50, 5, 0));
+
+        int skipped = state.replay(first + corrupted + last.replace("\n", "\r\n") + torn.substring(0, 20));
+
+        assertEquals(2, skipped);
+        assertTrue(state.isInstalled("foo", "2"));
+        assertTrue(state.isInstalled("qux", "1"));
+        assertNull(state.get("bar"));
+        assertNull(state.get("baz"));
+        assertEquals(102, state.getGeneration());
+        assertEquals(0, state.replay(null));
+    }
+
+    @Test
+    void testUnknownContentIsEmpty() {
+        assertTrue(InstallState.fromText(null).isEmpty());
+        assertTrue(InstallState.fromText("").isEmpty());
+        assertTrue(InstallState.fromText("#slave-setup-state v99\nfoo\t1\t2\t3\t0").isEmpty());
+        assertNull(InstallState.fromText(InstallState.HEADER + "\nbroken line").get("broken line"));
+    }
+
+    @Test
+    void testLegacyIniMigration() {
+        SetupConfigItem labeled = new SetupConfigItem("prep", null, "cmd", false, "linux");
+        SetupConfigItem unlabeled = new SetupConfigItem("prep", null, "other", false, null);
+        String ini = labeled.remoteCache() + "\r\n" + unlabeled.remoteCache() + "\r\n";
+
+        InstallState state = InstallState.fromLegacyIni(ini);
+
+        assertEquals(2, state.size());
+        assertEquals(Integer.toString(labeled.hashCode()), state.get(labeled.getIdentity()).getDigest());
+        assertEquals(Integer.toString(unlabeled.hashCode()), state.get(unlabeled.getIdentity()).getDigest());
+        assertNull(state.get("linux-arm"));
+        // the old hash didn't cover the files, migrated items are deployed once more
+        assertFalse(state.isInstalled(labeled.getIdentity(), labeled.getVersion()));
+    }
+
+    @Test
+    void testItemsSharingALabelHaveTheirOwnIdentity() {
+        SetupConfigItem jdk = new SetupConfigItem(null, null, "install jdk", false, "linux");
+        jdk.setName("jdk");
+        SetupConfigItem node = new SetupConfigItem(null, null, "install node", false, "linux");
+        SetupConfigItem android = new SetupConfigItem(null, null, "install android", false, "linux");
+        SetupConfigItem windows = new SetupConfigItem(null, null, "install", false, "windows");
+        SetupConfigItem first = new SetupConfigItem(null, null, "echo 1", false, null);
+        SetupConfigItem second = new SetupConfigItem(null, null, "echo 2", false, null);
+
+        SetupConfigItem.assignIdentities(List.of(jdk, node, android, windows, first, second));
+
+        assertEquals("jdk", jdk.getIdentity());
+        assertEquals("linux#1", node.getIdentity());
+        assertEquals("linux#2", android.getIdentity());
+        assertEquals("windows", windows.getIdentity());
+        assertEquals("#1", first.getIdentity());
+        assertEquals("#2", second.getIdentity());
+        // dependencies still refer to unnamed items by their label
+        assertEquals("linux", node.getName());
+    }
+
+    @Test
+    void testLabelKeyedRecordIsAdoptedByItsItem() {
+        SetupConfigItem jdk = new SetupConfigItem(null, null, "install jdk", false, "linux");
+        jdk.setName("jdk");
+        SetupConfigItem node = new SetupConfigItem(null, null, "install node", false, "linux");
+        node.setName("node");
+        SetupConfigItem.assignIdentities(List.of(jdk, node));
+        InstallState state = new InstallState();
+        // both used to write this record, node last
+        state.put(new InstallState.Record("linux", node.getVersion(), 10, 5, 0));
+
+        InstallStateIndex.adopt(state, List.of(jdk, node));
+
+        assertTrue(state.isInstalled("node", node.getVersion()));
+        assertNull(state.get("jdk"));
+        assertFalse(state.adopt("linux", "node", node.getVersion()));
+    }
+}
@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.slaves.DumbSlave;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class LabelMatchIndexTest {
+
+    private JenkinsRule j;
+
+    private DumbSlave linux;
+    private DumbSlave windows;
+
+    private SetupConfigItem linuxItem;
+    private SetupConfigItem anyItem;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) throws Exception {
+        j = rule;
+        linux = j.createSlave("agent-1", "linux docker", null);
+        windows = j.createSlave("agent-2", "windows", null);
+
+        linuxItem = new SetupConfigItem(null, null, "echo linux", false, "linux");
+        anyItem = new SetupConfigItem(null, null, "echo any", false, "linux || windows");
+        SetupConfig.get().setSetupConfigItems(List.of(linuxItem, anyItem));
+    }
+
+    @Test
+    void testItemsAndNodesAgree() {
+        LabelMatchIndex index = LabelMatchIndex.get();
+
+        assertEquals(List.of(linuxItem, anyItem), index.getItems(linux));
+        assertEquals(List.of(anyItem), index.getItems(windows));
+        assertEquals(List.of("agent-1"), index.getNodeNames(linuxItem));
+        assertEquals(List.of("agent-1", "agent-2"), index.getNodeNames(anyItem));
+        assertTrue(index.matches(linuxItem, linux));
+        assertFalse(index.matches(linuxItem, windows.toComputer()));
+    }
+
+    @Test
+    void testLabelChangeIsSeen() throws Exception {
+        LabelMatchIndex index = LabelMatchIndex.get();
+        assertFalse(index.matches(linuxItem, windows));
+
+        windows.setLabelString("linux");
+        j.jenkins.updateNode(windows);
+
+        assertTrue(index.matches(linuxItem, windows));
+        assertEquals(List.of("agent-1", "agent-2"), index.getNodeNames(linuxItem));
+    }
+
+    @Test
+    void testSavedItemsReplaceTheMatrix() {
+        LabelMatchIndex index = LabelMatchIndex.get();
+        assertEquals(List.of(linuxItem, anyItem), index.getItems(linux));
+
+        SetupConfigItem windowsItem = new SetupConfigItem(null, null, "echo windows", false, "windows");
+        SetupConfig.get().setSetupConfigItems(List.of(windowsItem));
+
+        assertTrue(index.getItems(linux).isEmpty());
+        assertEquals(List.of("agent-2"), index.getNodeNames(windowsItem));
+    }
+}
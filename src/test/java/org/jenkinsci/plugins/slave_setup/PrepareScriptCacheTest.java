@@ -0,0 +1,99 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import hudson.EnvVars;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class PrepareScriptCacheTest {
+
+    private JenkinsRule j;
+
+    @TempDir
+    File work;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+    }
+
+    @Test
+    void testConcurrentDeploysShareOneRun() throws Exception {
+        File runs = new File(work, "runs.txt");
+        SetupConfigItem item = new SetupConfigItem(
+                "sleep 2; echo run >> " + runs.getCanonicalPath(), work, null, false, "linux");
+        item.setPrepareScriptOnce(true);
+        SetupLog log = new SetupLog(j.createTaskListener(), true);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = pool.invokeAll(List.of(
+                    () -> PrepareScriptCache.get().run(item, new EnvVars(), log),
+                    () -> PrepareScriptCache.get().run(item, new EnvVars(), log),
+                    () -> PrepareScriptCache.get().run(item, new EnvVars(), log),
+                    () -> PrepareScriptCache.get().run(item, new EnvVars(), log)));
+            for (Future<Integer> result : results) {
+                assertEquals(0, result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(List.of("run"), Files.readAllLines(runs.toPath(), StandardCharsets.UTF_8));
+
+        // remembered until the script changes
+        assertEquals(0, PrepareScriptCache.get().run(item, new EnvVars(), log));
+        assertEquals(1, Files.readAllLines(runs.toPath(), StandardCharsets.UTF_8).size());
+
+        item.setPrepareScript("echo again >> " + runs.getCanonicalPath());
+        assertEquals(0, PrepareScriptCache.get().run(item, new EnvVars(), log));
+        assertEquals(List.of("run", "again"), Files.readAllLines(runs.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testEditedFileRunsTheScriptAgain() throws Exception {
+        File files = new File(work, "files");
+        File config = new File(files, "tool.cfg");
+        Files.createDirectories(files.toPath());
+        Files.writeString(config.toPath(), "v1", StandardCharsets.UTF_8);
+        File runs = new File(work, "runs.txt");
+        SetupConfigItem item =
+                new SetupConfigItem("echo run >> " + runs.getCanonicalPath(), files, null, false, "linux");
+        item.setPrepareScriptOnce(true);
+        SetupLog log = new SetupLog(j.createTaskListener(), false);
+
+        assertEquals(0, PrepareScriptCache.get().run(item, new EnvVars(), log));
+        assertEquals(0, PrepareScriptCache.get().run(item, new EnvVars(), log));
+        assertEquals(1, Files.readAllLines(runs.toPath(), StandardCharsets.UTF_8).size());
+
+        Files.writeString(config.toPath(), "v2", StandardCharsets.UTF_8);
+        FileTreeIndex.get().scan(files);
+
+        assertEquals(0, PrepareScriptCache.get().run(item, new EnvVars(), log));
+        assertEquals(2, Files.readAllLines(runs.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    void testFailureIsNotRemembered() throws Exception {
+        File runs = new File(work, "runs.txt");
+        SetupConfigItem item =
+                new SetupConfigItem("echo run >> " + runs.getCanonicalPath() + "; exit 3", work, null, false, "");
+        item.setPrepareScriptOnce(true);
+        SetupLog log = new SetupLog(j.createTaskListener(), false);
+
+        assertEquals(3, PrepareScriptCache.get().run(item, new EnvVars(), log));
+        assertEquals(3, PrepareScriptCache.get().run(item, new EnvVars(), log));
+        assertEquals(2, Files.readAllLines(runs.toPath(), StandardCharsets.UTF_8).size());
+    }
+}
@@ -0,0 +1,56 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class ReadinessProbeTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testPortIsReadyOnceListening() throws Exception {
+        int port;
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = server.getLocalPort();
+            assertTrue(new ReadinessProbe.Port("127.0.0.1", port).isReady(null));
+        }
+        assertFalse(new ReadinessProbe.Port("127.0.0.1", port).isReady(null));
+        assertFalse(new ReadinessProbe.Port(" ", port).isReady(null));
+    }
+
+    @Test
+    void testFileIsReadyOnceCreated() throws Exception {
+        File marker = new File(dir, "up");
+        ReadinessProbe probe = new ReadinessProbe.FileExists(marker.getAbsolutePath());
+
+        assertFalse(probe.isReady(null));
+        assertTrue(marker.createNewFile());
+        assertTrue(probe.isReady(null));
+    }
+
+    @Test
+    void testCommandIsReadyOnceItSucceeds(JenkinsRule j) throws Exception {
+        File marker = new File(dir, "up");
+        ReadinessProbe probe = new ReadinessProbe.Command("test -f " + marker);
+        File home = j.jenkins.getRootDir();
+        int scripts = home.list((d, name) -> name.endsWith(".sh")).length;
+
+        assertFalse(probe.isReady(null));
+        assertTrue(marker.createNewFile());
+        assertTrue(probe.isReady(null));
+        assertFalse(new ReadinessProbe.Command(" ").isReady(null));
+        // the script files of the polls are not left in JENKINS_HOME
+        assertEquals(scripts, home.list((d, name) -> name.endsWith(".sh")).length);
+    }
+}
@@ -0,0 +1,72 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.EnvVars;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class ScriptBatchTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testEnvironmentListsTheAgents() throws Exception {
+        EnvVars env = ScriptBatch.environment(List.of("vm-1", "vm-2", "vm-3"), dir);
+
+        assertEquals("vm-1 vm-2 vm-3", env.get(ScriptBatch.NODES));
+        assertEquals(
+                List.of("vm-1", "vm-2", "vm-3"),
+                Files.readAllLines(new File(env.get(ScriptBatch.NODES_FILE)).toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testOutputGoesToEveryLog() throws Exception {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        try (ScriptBatch.FanOut out = new ScriptBatch.FanOut(List.of(first, second))) {
+            out.write("powering on".getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+
+        assertEquals("powering on\n", first.toString(StandardCharsets.UTF_8));
+        assertEquals("powering on\n", second.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testLaunchGivenUpBeforeTheStartIsLeftOut() throws Exception {
+        SetupConfig.get().setScriptBatchWindowSeconds(1);
+        ByteArrayOutputStream gone = new ByteArrayOutputStream();
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        TaskListener goneListener = new StreamTaskListener(gone, StandardCharsets.UTF_8);
+        TaskListener keptListener = new StreamTaskListener(kept, StandardCharsets.UTF_8);
+        String script = "echo started $SETUP_NODES";
+
+        ScriptBatch batch = ScriptBatch.join(script, "vm-1", goneListener, 0);
+        assertSame(batch, ScriptBatch.join(script, "vm-2", keptListener, 0));
+        assertTrue(batch.leave("vm-1", goneListener));
+
+        batch.awaitStarted();
+        while (batch.getExitCode() == null) {
+            Thread.sleep(50);
+        }
+        assertEquals(Integer.valueOf(0), batch.getExitCode());
+        assertTrue(kept.toString(StandardCharsets.UTF_8).contains("started vm-2\n"));
+        assertEquals("", gone.toString(StandardCharsets.UTF_8));
+        // the script ran for it, its machine may be up
+        assertFalse(batch.leave("vm-2", keptListener));
+    }
+}
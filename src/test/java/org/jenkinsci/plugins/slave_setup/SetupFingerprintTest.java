@@ -0,0 +1,40 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SetupFingerprintTest {
+
+    @TempDir
+    File root;
+
+    @Test
+    void testFingerprintFollowsTheItemsAndTheirVersions() {
+        SetupConfigItem linux = new SetupConfigItem(null, null, "install.sh", false, "linux");
+        SetupConfigItem arm = new SetupConfigItem(null, null, "install.sh", false, "arm");
+        SetupConfigItem newer = new SetupConfigItem(null, null, "install.sh --v2", false, "linux");
+
+        String fingerprint = SetupFingerprint.of(List.of(linux, arm));
+
+        assertEquals(fingerprint, SetupFingerprint.of(List.of(linux, arm)));
+        assertNotEquals(fingerprint, SetupFingerprint.of(List.of(linux)));
+        assertNotEquals(fingerprint, SetupFingerprint.of(List.of(newer, arm)));
+    }
+
+    @Test
+    void testAgentMatchesOnlyTheFingerprintItHolds() throws Exception {
+        String fingerprint = SetupFingerprint.of(List.of(new SetupConfigItem(null, null, "a", false, null)));
+
+        assertFalse(new SetupFingerprint.Check(fingerprint).invoke(root, null));
+        new SetupFingerprint.Write(fingerprint).invoke(root, null);
+        assertTrue(new SetupFingerprint.Check(fingerprint).invoke(root, null));
+        assertFalse(new SetupFingerprint.Check(SetupFingerprint.of(List.of())).invoke(root, null));
+    }
+}
@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class SetupGraphTest {
+
+    private static SetupConfigItem item(String name, String dependsOn) {
+        SetupConfigItem item = new SetupConfigItem(null, null, "echo " + name, false, "linux");
+        item.setName(name);
+        item.setDependsOn(dependsOn);
+        return item;
+    }
+
+    @Test
+    void testOrderKeepsTheListOrderOfIndependentItems() {
+        SetupConfigItem maven = item("maven", "jdk");
+        SetupConfigItem jdk = item("jdk", null);
+        SetupConfigItem node = item("node", null);
+        SetupConfigItem android = item("android", "jdk, node");
+
+        SetupGraph graph = new SetupGraph(List.of(maven, jdk, node, android));
+
+        assertTrue(graph.hasDependencies());
+        assertEquals(List.of(jdk, maven, node, android), graph.getOrder());
+        assertEquals(List.of(maven, android), graph.getDependents(jdk));
+        assertEquals(List.of(node, android), graph.inOrder(List.of(android, node)));
+    }
+
+    @Test
+    void testItemsWithoutNameAreNamedByLabel() {
+        SetupConfigItem base = new SetupConfigItem(null, null, "echo base", false, "linux && docker");
+        SetupConfigItem tools = item("tools", "linux && docker");
+
+        SetupGraph graph = new SetupGraph(List.of(tools, base));
+
+        assertEquals(List.of(base, tools), graph.getOrder());
+    }
+
+    @Test
+    void testSameLabelsAreOnlyAProblemWhenDependedOn() {
+        SetupConfigItem first = new SetupConfigItem(null, null, "echo 1", false, "linux");
+        SetupConfigItem second = new SetupConfigItem(null, null, "echo 2", false, "linux");
+        SetupConfigItem.assignIdentities(List.of(first, second));
+
+        assertFalse(new SetupGraph(List.of(first, second)).hasDependencies());
+        assertThrows(IllegalArgumentException.class, () -> new SetupGraph(List.of(first, second, item("x", "linux"))));
+    }
+
+    @Test
+    void testItemsNamedAlikeAreRejected() {
+        List<SetupConfigItem> items = List.of(item("jdk", null), item("jdk", null));
+        SetupConfigItem.assignIdentities(items);
+
+        // they would overwrite each other's install state
+        assertThrows(IllegalArgumentException.class, () -> new SetupGraph(items));
+    }
+
+    @Test
+    void testBrokenDependenciesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new SetupGraph(List.of(item("a", "missing"))));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new SetupGraph(List.of(item("a", "c"), item("b", "a"), item("c", "b"))));
+    }
+}
@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class SetupLogStoreTest {
+
+    @Test
+    void testLogKeepsItsTailAndSpillsEverything(JenkinsRule j) throws Exception {
+        SetupLogStore store = SetupLogStore.get();
+        SetupLogSink sink = store.open("agent-1", "connect");
+        StringBuilder expected = new StringBuilder();
+        try (PrintStream out = new PrintStream(sink, false, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 10_000; i++) {
+                String line = "line " + i + " of a chatty install script";
+                out.println(line);
+                expected.append(line).append(System.lineSeparator());
+            }
+            out.flush();
+
+            assertTrue(store.getEntries("agent-1").get(0).isRunning());
+            assertEquals(SetupLogSink.TAIL_SIZE, sink.getTail().length());
+            assertTrue(expected.toString().endsWith(sink.getTail()));
+        }
+
+        SetupLogStore.Entry entry = awaitDone(store, "agent-1").get(0);
+        assertEquals("connect", entry.getRun());
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        entry.writeTo(full);
+        assertEquals(expected.toString(), full.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testOnlyTheLastLogsOfANodeAreKept(JenkinsRule j) throws Exception {
+        SetupLogStore store = SetupLogStore.get();
+        for (int i = 0; i < SetupLogStore.RUNS_KEPT + 3; i++) {
+            SetupLogSink sink = store.open("agent-2", "rollout-" + i);
+            sink.write(("setup " + i).getBytes(StandardCharsets.UTF_8));
+            sink.close();
+        }
+        // pruned when the next log is opened
+        store.open("agent-2", "last").close();
+
+        List<SetupLogStore.Entry> entries = awaitDone(store, "agent-2");
+        assertEquals(SetupLogStore.RUNS_KEPT + 1, entries.size());
+        assertEquals("last", entries.get(0).getRun());
+        assertFalse(entries.stream().anyMatch(e -> e.getRun().equals("rollout-0")));
+    }
+
+    private static List<SetupLogStore.Entry> awaitDone(SetupLogStore store, String node) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            List<SetupLogStore.Entry> entries = store.getEntries(node);
+            if (entries.stream().noneMatch(SetupLogStore.Entry::isRunning)) return entries;
+            Thread.sleep(50);
+        }
+        throw new AssertionError("the logs of " + node + " are still being written");
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SetupMetricsTest {
+
+    @Test
+    void testEveryValueFallsInItsBucket() {
+        long[] values = {0, 1, 3, 4, 5, 7, 8, 1000, 59_999, 60_000, 540_000, Long.MAX_VALUE / 3};
+        for (long value : values) {
+            int bucket = SetupMetrics.Histogram.bucketOf(value);
+            assertTrue(value <= SetupMetrics.Histogram.upperBoundOf(bucket), "upper bound of " + value);
+            assertTrue(bucket == 0 || value > SetupMetrics.Histogram.upperBoundOf(bucket - 1), "bucket of " + value);
+        }
+    }
+
+    @Test
+    void testPercentilesAreWithinABucket() {
+        SetupMetrics.Histogram histogram = new SetupMetrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(100_000, histogram.getMax());
+        long p95 = histogram.percentile(0.95);
+        assertTrue(p95 >= 95_000 && p95 <= 95_000 * 1.25, "p95 " + p95);
+        assertEquals(100_000, histogram.percentile(1));
+    }
+
+    @Test
+    void testMetricsByNodeAreDroppedWithTheNode() {
+        SetupMetrics metrics = new SetupMetrics();
+        metrics.record(SetupMetrics.Phase.COMMAND, "agent-1", "linux", 120);
+        metrics.record(SetupMetrics.Phase.COMMAND, "agent-2", "linux", 80);
+        metrics.recordBytes("agent-1", "linux", 2048);
+
+        assertEquals(2, metrics.getHistogram(SetupMetrics.Phase.COMMAND, null).getCount());
+        assertEquals(120, metrics.getHistogram(SetupMetrics.Phase.COMMAND, "agent-1").getMax());
+        assertEquals(2048, metrics.getBytes());
+
+        metrics.removeNode("agent-1");
+        assertNull(metrics.getHistogram(SetupMetrics.Phase.COMMAND, "agent-1"));
+        assertEquals(2, metrics.getHistogram(SetupMetrics.Phase.COMMAND, null).getCount());
+    }
+
+    @Test
+    void testLaunchesOfOnDemandAgentsAreCounted() {
+        SetupMetrics metrics = new SetupMetrics();
+        metrics.recordLaunch(SetupMetrics.LaunchEvent.COLD_START);
+        metrics.recordLaunch(SetupMetrics.LaunchEvent.REUSED);
+        metrics.recordLaunch(SetupMetrics.LaunchEvent.REUSED);
+
+        assertEquals(1, metrics.getLaunchCount(SetupMetrics.LaunchEvent.COLD_START));
+        assertEquals(2, metrics.getLaunchCount(SetupMetrics.LaunchEvent.REUSED));
+        assertEquals(0, metrics.getLaunchCount(SetupMetrics.LaunchEvent.STOPPED));
+    }
+}
@@ -0,0 +1,117 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.slaves.DumbSlave;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class SetupPlanTest {
+
+    private JenkinsRule j;
+
+    private DumbSlave slave;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) throws Exception {
+        j = rule;
+        slave = j.createOnlineSlave();
+    }
+
+    @Test
+    void testPlanStopsAtFirstFailure() throws Exception {
+        FilePath root = slave.getRootPath();
+        EnvVars env = new EnvVars("GREETING", "hello");
+        SetupPlan plan = new SetupPlan(
+                List.of(
+                        new SetupPlan.Step("first", "echo $GREETING > first.txt"),
+                        new SetupPlan.Step("files-only", null),
+                        new SetupPlan.Step("broken", "exit 4"),
+                        new SetupPlan.Step("never", "touch never.txt")),
+                env);
+
+        List<SetupPlan.StepResult> results = plan.execute(root, j.createTaskListener());
+
+        assertEquals(3, results.size());
+        assertEquals(0, results.get(0).getExitStatus());
+        assertEquals(0, results.get(1).getExitStatus());
+        assertEquals(4, results.get(2).getExitStatus());
+        assertEquals("hello", root.child("first.txt").readToString().trim());
+        assertFalse(root.child("never.txt").exists());
+    }
+
+    @Test
+    void testBatchedSetupKeepsItemsBeforeTheFailure() throws Exception {
+        SetupConfig config = SetupConfig.get();
+        config.setExecutionMode(SetupPlan.ExecutionMode.BATCHED);
+        SetupConfigItem ok = new SetupConfigItem(null, null, "touch ok.txt", false, slave.getNodeName());
+        SetupConfigItem broken = new SetupConfigItem(null, null, "exit 2", false, slave.getNodeName() + " || none");
+        config.setSetupConfigItems(List.of(ok, broken));
+
+        Components components = new Components(slave.getRootPath(), slave.toComputer(), Components.defaultLog());
+        assertThrows(AbortException.class, components::doSetup);
+
+        InstallState state = InstallStateIndex.get().getState(slave.getNodeName());
+        assertTrue(state.isInstalled(ok.getIdentity(), ok.getVersion()));
+        assertEquals(2, state.get(broken.getIdentity()).getExitStatus());
+        assertTrue(slave.getRootPath().child("ok.txt").exists());
+    }
+
+    @Test
+    void testAgentSetupCopiesFilesAndWritesItsState(@TempDir File files) throws Exception {
+        Files.writeString(new File(files, "tool.txt").toPath(), "tool");
+        SetupConfig config = SetupConfig.get();
+        config.setExecutionMode(SetupPlan.ExecutionMode.AGENT);
+        SetupConfigItem ok = new SetupConfigItem(null, files, "cp tool.txt ok.txt", false, slave.getNodeName());
+        SetupConfigItem broken = new SetupConfigItem(null, null, "exit 3", false, slave.getNodeName() + " || none");
+        SetupConfigItem never = new SetupConfigItem(null, null, "touch never.txt", false, null);
+        config.setSetupConfigItems(List.of(ok, broken, never));
+
+        Components components = new Components(slave.getRootPath(), slave.toComputer(), Components.defaultLog());
+        assertThrows(AbortException.class, components::doSetup);
+
+        FilePath root = slave.getRootPath();
+        assertEquals("tool", root.child("ok.txt").readToString());
+        assertFalse(root.child("never.txt").exists());
+        InstallState written = InstallState.fromText(root.child(InstallState.FILENAME).readToString());
+        assertTrue(written.isInstalled(ok.getIdentity(), ok.getVersion()));
+        assertEquals(3, written.get(broken.getIdentity()).getExitStatus());
+        assertEquals(written.toText(), InstallStateIndex.get().getState(slave.getNodeName()).toText());
+    }
+
+    @Test
+    void testFailureOnlySkipsItsDependents() throws Exception {
+        SetupConfig config = SetupConfig.get();
+        config.setMaxParallelItems(2);
+        String label = slave.getNodeName();
+        SetupConfigItem broken = new SetupConfigItem(null, null, "exit 5", false, label);
+        broken.setName("broken");
+        SetupConfigItem dependent = new SetupConfigItem(null, null, "touch dependent.txt", false, label + " || a");
+        dependent.setDependsOn("broken");
+        SetupConfigItem independent = new SetupConfigItem(null, null, "touch independent.txt", false, label + " || b");
+        config.setSetupConfigItems(List.of(broken, dependent, independent));
+
+        Components components = new Components(slave.getRootPath(), slave.toComputer(), Components.defaultLog());
+        assertThrows(AbortException.class, components::doSetup);
+
+        FilePath root = slave.getRootPath();
+        assertTrue(root.child("independent.txt").exists());
+        assertFalse(root.child("dependent.txt").exists());
+        InstallState state = InstallStateIndex.get().getState(slave.getNodeName());
+        assertEquals(5, state.get(broken.getIdentity()).getExitStatus());
+        assertTrue(state.isInstalled(independent.getIdentity(), independent.getVersion()));
+    }
+}
@@ -0,0 +1,63 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class SetupRolloutTest {
+
+    private static List<Computer> computers(JenkinsRule j, int count) throws Exception {
+        List<Computer> computers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            computers.add(j.createOnlineSlave().toComputer());
+        }
+        return computers;
+    }
+
+    @Test
+    void testAtMostMaxConcurrencyNodesAtATime(JenkinsRule j) throws Exception {
+        List<Computer> computers = computers(j, 5);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger most = new AtomicInteger();
+
+        Map<String, NodeSetupResult> results = new SetupRollout(TaskListener.NULL, false, 2, 0)
+                .run(computers, manager -> {
+                    most.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(300);
+                    running.decrementAndGet();
+                });
+
+        assertEquals(2, most.get());
+        assertEquals(5, results.size());
+        assertTrue(results.values().stream().allMatch(NodeSetupResult::isSuccess));
+    }
+
+    @Test
+    void testWatchdogInterruptsASlowNodeOnly(JenkinsRule j) throws Exception {
+        List<Computer> computers = computers(j, 2);
+        AtomicInteger calls = new AtomicInteger();
+        long started = System.currentTimeMillis();
+
+        // a single thread taking the nodes in order, the second one running on the thread the watchdog interrupted
+        Map<String, NodeSetupResult> results = new SetupRollout(TaskListener.NULL, false, 1, 500)
+                .run(computers, manager -> {
+                    if (calls.incrementAndGet() == 1) Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    Thread.sleep(100);
+                });
+
+        assertEquals(NodeSetupResult.Status.TIMED_OUT, results.get(computers.get(0).getName()).getStatus());
+        assertEquals(NodeSetupResult.Status.SUCCESS, results.get(computers.get(1).getName()).getStatus());
+        assertTrue(System.currentTimeMillis() - started < TimeUnit.SECONDS.toMillis(30));
+    }
+}
@@ -0,0 +1,129 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.slaves.DumbSlave;
+import hudson.slaves.RetentionStrategy;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class SetupSlaveLauncherTest {
+
+    @TempDir
+    File dir;
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) {
+        this.j = j;
+        SetupConfig.get().setScriptBatchWindowSeconds(0);
+        SetupConfig.get().setStopGraceSeconds(0);
+    }
+
+    @Test
+    void testStartScriptPastItsTimeoutIsKilledAndAbortsTheLaunch() throws Exception {
+        File pid = new File(dir, "pid");
+        SetupSlaveLauncher launcher = launcher("echo $$ > " + pid + "\nsleep 60");
+        launcher.setStartTimeoutSeconds(1);
+        DumbSlave agent = addAgent(launcher);
+        long started = System.currentTimeMillis();
+
+        awaitLaunch(agent.toComputer().connect(false));
+
+        assertTrue(System.currentTimeMillis() - started < TimeUnit.SECONDS.toMillis(30));
+        assertFalse(agent.toComputer().isOnline());
+        assertTrue(agent.toComputer().getLog().contains("Script still running after 1 seconds."));
+        awaitDead(pid);
+    }
+
+    @Test
+    void testFailedStartScriptAbortsTheLaunch() throws Exception {
+        DumbSlave agent = addAgent(launcher("exit 3"));
+
+        awaitLaunch(agent.toComputer().connect(false));
+
+        assertFalse(agent.toComputer().isOnline());
+        assertTrue(agent.toComputer().getLog().contains("Script failed with return code 3."));
+    }
+
+    @Test
+    void testCancelledLaunchKillsTheStartScript() throws Exception {
+        File pid = new File(dir, "pid");
+        DumbSlave agent = addAgent(launcher("echo $$ > " + pid + "\nsleep 60"));
+
+        Future<?> launch = agent.toComputer().connect(false);
+        awaitFile(pid);
+        launch.cancel(true);
+
+        awaitDead(pid);
+        assertFalse(agent.toComputer().isOnline());
+    }
+
+    @Test
+    void testProbeConnectsWhileTheScriptRunsUntilItsTimeout() throws Exception {
+        File pid = new File(dir, "pid");
+        File up = new File(dir, "up");
+        SetupSlaveLauncher launcher = launcher("echo $$ > " + pid + "\ntouch " + up + "\nsleep 60");
+        launcher.setStartTimeoutSeconds(10);
+        launcher.setReadinessProbe(new ReadinessProbe.Command("test -f " + up));
+        DumbSlave agent = addAgent(launcher);
+
+        awaitLaunch(agent.toComputer().connect(false));
+        j.waitOnline(agent);
+
+        assertTrue(agent.toComputer().getLog().contains("Agent is reachable, connecting while the script runs."));
+        // left running once the agent is online, then killed at the deadline
+        awaitDead(pid);
+        assertTrue(agent.toComputer().isOnline());
+    }
+
+    private SetupSlaveLauncher launcher(String startScript) throws Exception {
+        return new SetupSlaveLauncher(j.createComputerLauncher(null), startScript, "");
+    }
+
+    private DumbSlave addAgent(SetupSlaveLauncher launcher) throws Exception {
+        DumbSlave agent = new DumbSlave("on-demand", j.createTmpDir().getPath(), launcher);
+        // only launched when the test connects it
+        agent.setRetentionStrategy(new RetentionStrategy.Demand(0, 10));
+        j.jenkins.addNode(agent);
+        return agent;
+    }
+
+    private static void awaitLaunch(Future<?> launch) throws InterruptedException {
+        try {
+            launch.get();
+        } catch (ExecutionException e) {
+            // failed launches are told in the log of the agent
+        }
+    }
+
+    private static void awaitFile(File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!file.exists() || file.length() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline, file + " not written");
+            Thread.sleep(100);
+        }
+    }
+
+    private static void awaitDead(File pid) throws Exception {
+        awaitFile(pid);
+        long id = Long.parseLong(Files.readString(pid.toPath(), StandardCharsets.UTF_8).trim());
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (ProcessHandle.of(id).map(ProcessHandle::isAlive).orElse(false)) {
+            assertTrue(System.currentTimeMillis() < deadline, "start script " + id + " still running");
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.TaskListener;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class StopScriptQueueTest {
+
+    @TempDir
+    File dir;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) {
+        SetupConfig config = SetupConfig.get();
+        config.setStopGraceSeconds(0);
+        config.setScriptBatchWindowSeconds(0);
+        config.setStopScriptTimeoutSeconds(0);
+        config.setStopScriptRetries(0);
+    }
+
+    @Test
+    void testAtMostMaxConcurrentScriptsRun() throws Exception {
+        SetupConfig.get().setMaxConcurrentStopScripts(2);
+        StopScriptQueue queue = new StopScriptQueue();
+        for (int i = 0; i < 5; i++) {
+            // every script writes how many were running with it
+            queue.submit(
+                    "vm-" + i,
+                    "touch " + dir + "/running." + i + "\n"
+                            + "ls " + dir + " | grep -c running > " + dir + "/seen." + i + "\n"
+                            + "sleep 1\n"
+                            + "rm " + dir + "/running." + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            queue.awaitStopped("vm-" + i, TaskListener.NULL);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            int seen = Integer.parseInt(read(new File(dir, "seen." + i)).trim());
+            assertTrue(seen <= 2, "script " + i + " ran with " + seen + " scripts");
+        }
+    }
+
+    @Test
+    void testScriptKilledAtItsTimeoutIsRetried() throws Exception {
+        SetupConfig.get().setStopScriptTimeoutSeconds(1);
+        SetupConfig.get().setStopScriptRetries(1);
+        StopScriptQueue queue = new StopScriptQueue();
+        File attempts = new File(dir, "attempts");
+        long started = System.currentTimeMillis();
+
+        queue.submit("vm-1", "echo attempt >> " + attempts + "\nsleep 60");
+        queue.awaitStopped("vm-1", TaskListener.NULL);
+
+        assertEquals(2, Files.readAllLines(attempts.toPath()).size());
+        assertTrue(System.currentTimeMillis() - started < TimeUnit.SECONDS.toMillis(30));
+    }
+
+    @Test
+    void testShutdownWaitsForTheScriptsUntilTheDeadline() throws Exception {
+        SetupConfig.get().setMaxConcurrentStopScripts(1);
+        SetupConfig.get().setShutdownStopWaitSeconds(1);
+        StopScriptQueue queue = new StopScriptQueue() {
+            @Override
+            boolean isTerminating() {
+                return true;
+            }
+        };
+        long started = System.currentTimeMillis();
+        ExecutorService disconnects = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> stops = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                String node = "vm-" + i;
+                String done = dir + "/done." + i;
+                stops.add(disconnects.submit(() -> {
+                    queue.submit(node, "sleep 60\ntouch " + done);
+                    return null;
+                }));
+            }
+            for (Future<?> stop : stops) {
+                stop.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            disconnects.shutdownNow();
+        }
+
+        // the running script was killed and the queued one never ran
+        assertTrue(System.currentTimeMillis() - started < TimeUnit.SECONDS.toMillis(30));
+        assertFalse(new File(dir, "done.0").exists());
+        assertFalse(new File(dir, "done.1").exists());
+    }
+
+    @Test
+    void testLaunchDuringTheGracePeriodCancelsTheStop() throws Exception {
+        SetupConfig.get().setStopGraceSeconds(1);
+        StopScriptQueue queue = new StopScriptQueue();
+        File stopped = new File(dir, "stopped");
+
+        queue.submit("vm-1", "touch " + stopped);
+        assertTrue(queue.cancelStop("vm-1"));
+        Thread.sleep(TimeUnit.SECONDS.toMillis(3));
+
+        assertFalse(stopped.exists());
+        // nothing left to cancel, the agent is started
+        assertFalse(queue.cancelStop("vm-1"));
+    }
+
+    @Test
+    void testGracedStopsRunOnShutdown() throws Exception {
+        SetupConfig.get().setStopGraceSeconds(3600);
+        StopScriptQueue queue = new StopScriptQueue();
+        File stopped = new File(dir, "stopped");
+
+        queue.submit("vm-1", "touch " + stopped);
+        queue.flushGraced();
+        queue.awaitStopped("vm-1", TaskListener.NULL);
+
+        assertTrue(stopped.exists());
+        assertFalse(queue.cancelStop("vm-1"));
+    }
+
+    private static String read(File file) throws Exception {
+        return Files.readString(file.toPath(), StandardCharsets.UTF_8);
+    }
+}
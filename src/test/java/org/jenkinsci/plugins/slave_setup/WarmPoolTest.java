@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.ExtensionList;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.SlaveComputer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class WarmPoolTest {
+
+    @Test
+    void testTargetFollowsThePeakOfTheQueue(JenkinsRule j) {
+        assertEquals(3, WarmPool.target(List.of(0, 3, 1), 0, 5));
+        assertEquals(5, WarmPool.target(List.of(0, 12, 1), 0, 5));
+        assertEquals(0, WarmPool.target(List.of(), 0, 5));
+    }
+
+    @Test
+    void testTargetKeepsTheMinimumWithinTheMaximum(JenkinsRule j) {
+        assertEquals(2, WarmPool.target(List.of(0, 0), 2, 5));
+        assertEquals(4, WarmPool.target(List.of(4), 2, 5));
+        assertEquals(3, WarmPool.target(List.of(0), 7, 3));
+    }
+
+    @Test
+    void testPoolStartsItsMembersUpToTheMinimum(JenkinsRule j) throws Exception {
+        SetupConfig config = SetupConfig.get();
+        config.setWarmPoolMinSize(1);
+        config.setWarmPoolMaxSize(2);
+        List<DumbSlave> members = List.of(addMember(j, "pooled-1"), addMember(j, "pooled-2"));
+        // nothing waits for them, so their retention strategy leaves them offline
+        assertEquals(0, countStarted(members));
+
+        ExtensionList.lookupSingleton(WarmPool.class).execute(TaskListener.NULL);
+
+        assertEquals(1, countStarted(members));
+        for (DumbSlave member : members) {
+            if (member.toComputer().isConnecting()) j.waitOnline(member);
+        }
+        assertEquals(1, countStarted(members));
+    }
+
+    @Test
+    void testIdleMemberIsNotStoppedBeforeTheIdleDelay(JenkinsRule j) throws Exception {
+        SetupConfig config = SetupConfig.get();
+        config.setWarmPoolMinSize(0);
+        config.setWarmPoolMaxSize(2);
+        config.setWarmPoolIdleMinutes(10);
+        List<DumbSlave> members = List.of(addMember(j, "pooled-1"), addMember(j, "pooled-2"));
+        for (DumbSlave member : members) {
+            member.toComputer().connect(false).get();
+            j.waitOnline(member);
+        }
+        assertEquals(2, countStarted(members));
+
+        // no build waits, the pool needs none of them but they are idle for less than 10 minutes
+        ExtensionList.lookupSingleton(WarmPool.class).execute(TaskListener.NULL);
+        WarmPool.Retention retention = new WarmPool.Retention();
+        for (DumbSlave member : members) {
+            retention.check((SlaveComputer) member.toComputer());
+        }
+
+        for (DumbSlave member : members) {
+            assertTrue(member.toComputer().isOnline(), member.getNodeName());
+        }
+    }
+
+    private static DumbSlave addMember(JenkinsRule j, String name) throws Exception {
+        SetupSlaveLauncher launcher = new SetupSlaveLauncher(j.createComputerLauncher(null), "", "");
+        DumbSlave member = new DumbSlave(name, j.createTmpDir().getPath(), launcher);
+        member.setLabelString("pooled");
+        member.setRetentionStrategy(new WarmPool.Retention());
+        j.jenkins.addNode(member);
+        return member;
+    }
+
+    private static int countStarted(List<DumbSlave> members) {
+        int count = 0;
+        for (DumbSlave member : members) {
+            Computer computer = member.toComputer();
+            if (computer.isConnecting() || computer.isOnline()) count++;
+        }
+        return count;
+    }
+}
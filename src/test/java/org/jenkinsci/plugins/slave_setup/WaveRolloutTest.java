@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.slave_setup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.Computer;
+import hudson.slaves.DumbSlave;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class WaveRolloutTest {
+
+    @Test
+    void testWavesGrowFromTheCanary(JenkinsRule j) {
+        assertEquals(List.of(5, 15, 35, 75, 100), WaveRollout.waves(100, 5, 2));
+        assertEquals(List.of(3), WaveRollout.waves(3, 100, 2));
+        assertEquals(List.of(1, 2, 3), WaveRollout.waves(3, 1, 1));
+        assertEquals(List.of(), WaveRollout.waves(0, 10, 2));
+    }
+
+    @Test
+    void testRolloutHaltsOverBudgetAndResumes(JenkinsRule j) throws Exception {
+        List<Computer> computers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            DumbSlave slave = j.createOnlineSlave();
+            computers.add(slave.toComputer());
+        }
+        SetupConfig config = SetupConfig.get();
+        config.setRolloutCanaryPercent(25);
+        config.setRolloutWaveGrowth(3);
+        config.setRolloutFailureBudgetPercent(0);
+        config.setSetupConfigItems(List.of(new SetupConfigItem(null, null, "exit 1", true, null)));
+
+        WaveRollout rollout = WaveRollout.of(computers, 1);
+        Map<String, NodeSetupResult> results = rollout.run();
+
+        assertEquals(WaveRollout.Status.HALTED, rollout.getStatus());
+        assertEquals(1, results.size());
+        String canary = results.keySet().iterator().next();
+        // the halted wave is the one resumed
+        assertEquals(0, rollout.getNextWave());
+        assertTrue(rollout.isResumable());
+
+        config.setSetupConfigItems(List.of(new SetupConfigItem(null, null, "echo fixed", true, null)));
+        assertTrue(rollout.markResumed());
+        results = rollout.run();
+
+        assertEquals(WaveRollout.Status.COMPLETED, rollout.getStatus());
+        assertEquals(4, results.size());
+        assertTrue(results.get(canary).isSuccess());
+        assertFalse(rollout.isResumable());
+    }
+
+    @Test
+    void testQueuedRolloutRunsInTheBackground(JenkinsRule j) throws Exception {
+        DumbSlave slave = j.createOnlineSlave();
+        SetupConfig.get().setRolloutDebounceSeconds(0);
+        SetupConfig.get().setSetupConfigItems(List.of(new SetupConfigItem(null, null, "echo queued", true, null)));
+
+        WaveRollout rollout = RolloutQueue.get().submit(List.of(slave.toComputer()));
+
+        assertEquals(rollout, RolloutQueue.get().getRollout(rollout.getId()));
+        awaitStatus(rollout, WaveRollout.Status.COMPLETED);
+        assertTrue(rollout.getResults().get(slave.getNodeName()).isSuccess());
+    }
+
+    @Test
+    void testSavesWithinTheDebounceWindowMergeIntoTheLastRollout(JenkinsRule j) throws Exception {
+        DumbSlave slave = j.createOnlineSlave();
+        SetupConfig.get().setRolloutDebounceSeconds(2);
+        SetupConfig.get().setSetupConfigItems(List.of(new SetupConfigItem(null, null, "echo first", true, null)));
+
+        WaveRollout first = RolloutQueue.get().submit(List.of(slave.toComputer()));
+        WaveRollout second = RolloutQueue.get().submit(List.of(slave.toComputer()));
+
+        assertTrue(second.getSnapshot() > first.getSnapshot());
+        assertEquals(WaveRollout.Status.SUPERSEDED, first.getStatus());
+        assertEquals(second.getId(), first.getSupersededBy());
+        awaitStatus(second, WaveRollout.Status.COMPLETED);
+        assertTrue(first.getResults().isEmpty());
+        assertEquals(1, second.getResults().size());
+    }
+
+    @Test
+    void testSupersededRolloutIsNotResumed(JenkinsRule j) throws Exception {
+        List<Computer> computers = List.of(j.createOnlineSlave().toComputer());
+        SetupConfig.get().setRolloutFailureBudgetPercent(0);
+        SetupConfig.get().setSetupConfigItems(List.of(new SetupConfigItem(null, null, "exit 1", true, null)));
+
+        WaveRollout halted = WaveRollout.of(computers, 1);
+        halted.run();
+        assertTrue(halted.isResumable());
+
+        assertTrue(halted.supersede(WaveRollout.of(computers, 2)));
+        assertEquals(WaveRollout.Status.SUPERSEDED, halted.getStatus());
+        assertFalse(halted.isResumable());
+        assertFalse(halted.supersede(WaveRollout.of(computers, 3)));
+    }
+
+    private static void awaitStatus(WaveRollout rollout, WaveRollout.Status status) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (rollout.getStatus() != status && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(status, rollout.getStatus());
+    }
+}